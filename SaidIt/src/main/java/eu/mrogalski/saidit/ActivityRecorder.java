@@ -0,0 +1,367 @@
+package eu.mrogalski.saidit;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import simplesound.pcm.WavAudioFormat;
+import simplesound.pcm.WavFileWriter;
+
+/**
+ * Records audio only while there is activity.
+ * Every captured block goes through the VoiceActivityDetector; on onset a new file is started with
+ * a pre-roll out of an AudioMemory snapshot, and it is closed once the post-activity silence has elapsed.
+ * Clips are written as WAV, or streamed through an AudioEncoder when a codec is given.
+ * The pre-roll is copied, encoding is done, and finished files are closed and registered in the
+ * ActivityRecordingDatabase on a writer thread of the recorder, so the audio worker never waits for them.
+ * Audio for the encoder is copied into a bounded pool of reusable blocks; when the encoder falls so far
+ * behind that every block is waiting, new audio is dropped and counted instead of queued without limit.
+ * All methods run on the audio worker thread.
+ */
+class ActivityRecorder {
+    private static final String TAG = ActivityRecorder.class.getSimpleName();
+    static final int FRAME_MS = 20; // VAD frame length
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final int ENCODE_BLOCK_SIZE = 64 * 1024;
+    private static final int ENCODE_BLOCK_COUNT = 32; // bounds the audio waiting for the encoder
+
+    private static final class Block {
+        final byte[] data = new byte[ENCODE_BLOCK_SIZE];
+        int length;
+    }
+
+    /**
+     * Source of the audio captured before the activity was detected.
+     */
+    interface HistorySource {
+        /**
+         * Pins the buffered history. Capture is held off only while the snapshot is taken.
+         * @param livePosition Receives the audio worker ring position at which the live audio continues
+         */
+        AudioMemory.Snapshot takeHistory(long[] livePosition);
+    }
+
+    private final Context context;
+    private final VoiceActivityDetector detector;
+    private final ActivityRecordingDatabase database;
+    private final HistorySource history;
+    private final File outputDir;
+    private final WavAudioFormat format;
+    private final int bytesPerSecond;
+    private final int frameBytes;
+    private final int preBufferBytes;
+    private final long postBufferBytes;
+    private final int autoDeleteDays;
+    private final AudioEncoder.Codec codec; // null for WAV
+    private final AudioEncoder.Quality quality;
+    private final ExecutorService executor; // copies pre-rolls, encodes and closes clips, in order
+    private final ArrayBlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(ENCODE_BLOCK_COUNT);
+    private int allocatedBlocks = 0;
+    private volatile long droppedBytes;
+    private boolean dropping = false;
+
+    private Closeable writer;
+    private AudioMemory.Consumer sink; // writes into writer
+    private long bytesWritten;
+    private File file;
+    private long liveStartPosition; // first ring position not covered by the pre-roll
+    private long lastActivityPosition; // ring position right after the last active frame
+    private long startTimeMillis;
+
+    ActivityRecorder(Context context, VoiceActivityDetector detector, ActivityRecordingDatabase database,
+                     HistorySource history, File outputDir, int sampleRate,
+                     int preBufferSeconds, int postBufferSeconds, int autoDeleteDays,
+                     AudioEncoder.Codec codec, AudioEncoder.Quality quality) {
+        this.context = context;
+        this.detector = detector;
+        this.database = database;
+        this.history = history;
+        this.outputDir = outputDir;
+        this.format = new WavAudioFormat.Builder().sampleRate(sampleRate).build();
+        this.bytesPerSecond = 2 * sampleRate;
+        this.frameBytes = (bytesPerSecond * FRAME_MS / 1000) & ~1;
+        this.preBufferBytes = preBufferSeconds * bytesPerSecond;
+        this.postBufferBytes = (long) postBufferSeconds * bytesPerSecond;
+        this.autoDeleteDays = autoDeleteDays;
+        this.codec = codec;
+        this.quality = quality;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "activityWriter");
+            }
+        });
+        detector.reset();
+    }
+
+    /**
+     * Runs detection on a captured block and writes it out while a recording is open.
+     * @param position Audio worker ring position of array[offset]
+     */
+    void process(byte[] array, int offset, int count, long position) {
+        for (int i = 0; i < count; i += frameBytes) {
+            final int length = Math.min(frameBytes, count - i);
+            if (detector.process(array, offset + i, length)) {
+                lastActivityPosition = position + i + length;
+                if (writer == null) {
+                    start();
+                }
+            }
+        }
+
+        if (writer == null) return;
+
+        // The pre-roll already covers everything before liveStartPosition
+        final int skip = (int) Math.max(0, Math.min(count, liveStartPosition - position));
+        if (skip < count) {
+            try {
+                sink.consume(array, offset + skip, count - skip);
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "Error writing activity recording " + file.getAbsolutePath(), e);
+                finish();
+                return;
+            }
+        }
+
+        if (!detector.isActive() && position + count - lastActivityPosition >= postBufferBytes) {
+            finish();
+        }
+    }
+
+    private void start() {
+        if (!outputDir.exists()) {
+            outputDir.mkdirs();
+        }
+        final long now = System.currentTimeMillis();
+        final int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_WEEKDAY | DateUtils.FORMAT_SHOW_DATE;
+        final String dateTime = DateUtils.formatDateTime(context, now, flags);
+        final String extension = codec == null ? ".wav" : codec.getFileExtension();
+        file = new File(outputDir, ("Activity - " + dateTime + extension).replace(':', '.'));
+
+        bytesWritten = 0;
+        final long[] livePosition = new long[1];
+        final AudioMemory.Snapshot snapshot = history.takeHistory(livePosition);
+        final int prerollBytes = Math.min(preBufferBytes, snapshot.getLength());
+        try {
+            if (codec == null) {
+                final WavFileWriter wavWriter = new WavFileWriter(format, file);
+                writer = wavWriter;
+                sink = new AudioMemory.Consumer() {
+                    @Override
+                    public int consume(byte[] array, int offset, int count) throws IOException {
+                        wavWriter.write(array, offset, count);
+                        bytesWritten += count;
+                        return 0;
+                    }
+                };
+                // Live audio goes right after the room for the pre-roll, which is copied meanwhile
+                wavWriter.reserve(prerollBytes);
+                bytesWritten = prerollBytes;
+                final File clip = file;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        copyPreroll(snapshot, prerollBytes, wavWriter, clip);
+                    }
+                });
+            } else {
+                final AudioEncoder encoder = new AudioEncoder(file, format.getSampleRate(), codec, quality);
+                writer = encoder;
+                final Encoding encoding = new Encoding(encoder, file);
+                // The encoder needs the pre-roll before any live audio - the writer thread runs it first
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            snapshot.read(snapshot.getLength() - prerollBytes, encoding);
+                        } catch (IOException e) {
+                            encoding.failed(e);
+                        } finally {
+                            snapshot.close();
+                        }
+                    }
+                });
+                bytesWritten = prerollBytes;
+                sink = new AudioMemory.Consumer() {
+                    @Override
+                    public int consume(byte[] array, int offset, int count) {
+                        // The worker reuses its buffer - hand a copy over
+                        while (count > 0) {
+                            final Block block = obtainBlock(count);
+                            if (block == null) return 0;
+                            block.length = Math.min(count, block.data.length);
+                            System.arraycopy(array, offset, block.data, 0, block.length);
+                            bytesWritten += block.length;
+                            offset += block.length;
+                            count -= block.length;
+                            executor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    encoding.consume(block.data, 0, block.length);
+                                    freeBlocks.add(block);
+                                }
+                            });
+                        }
+                        return 0;
+                    }
+                };
+            }
+            liveStartPosition = livePosition[0];
+        } catch (IOException e) {
+            Log.e(TAG, "Can't start activity recording " + file.getAbsolutePath(), e);
+            snapshot.close();
+            if (writer != null) {
+                closeQuietly(writer);
+            }
+            writer = null;
+            return;
+        }
+        startTimeMillis = now - 1000L * bytesWritten / bytesPerSecond;
+        Log.d(TAG, "Activity recording started: " + file.getName());
+    }
+
+    /**
+     * Copies the newest bytes of the snapshot into the room reserved at the head of a clip.
+     * Runs on the writer thread.
+     */
+    private static void copyPreroll(AudioMemory.Snapshot snapshot, int bytes, final WavFileWriter wavWriter, File clip) {
+        final long[] written = {0};
+        try {
+            snapshot.read(snapshot.getLength() - bytes, new AudioMemory.Consumer() {
+                @Override
+                public int consume(byte[] array, int offset, int count) throws IOException {
+                    wavWriter.writeAt(written[0], array, offset, count);
+                    written[0] += count;
+                    return 0;
+                }
+            });
+        } catch (IOException e) {
+            // The rest of the reserved room stays silent
+            Log.e(TAG, "Error writing pre-roll of " + clip.getAbsolutePath(), e);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Feeds a clip's audio to its encoder on the writer thread. After the first error the rest of the clip is dropped.
+     */
+    private static final class Encoding implements AudioMemory.Consumer {
+        private final AudioEncoder encoder;
+        private final File clip;
+        private boolean failed = false;
+
+        Encoding(AudioEncoder encoder, File clip) {
+            this.encoder = encoder;
+            this.clip = clip;
+        }
+
+        @Override
+        public int consume(byte[] array, int offset, int count) {
+            if (failed) return 0;
+            try {
+                encoder.write(array, offset, count);
+            } catch (IOException | IllegalStateException e) {
+                failed(e);
+            }
+            return 0;
+        }
+
+        void failed(Exception e) {
+            if (!failed) {
+                failed = true;
+                Log.e(TAG, "Error encoding activity recording " + clip.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Takes a free encoder block, allocating it while the pool is not full.
+     * @param count Bytes waiting for a block, counted as dropped if there is none
+     * @return null when every block is waiting for the encoder
+     */
+    private Block obtainBlock(int count) {
+        Block block = freeBlocks.poll();
+        if (block == null && allocatedBlocks < ENCODE_BLOCK_COUNT) {
+            block = new Block();
+            allocatedBlocks++;
+        }
+        if (block == null) {
+            droppedBytes = droppedBytes + count;
+            if (!dropping) {
+                dropping = true;
+                Log.w(TAG, "Encoder too slow - dropping activity audio (" + droppedBytes + " bytes so far)");
+            }
+            return null;
+        }
+        if (dropping) {
+            dropping = false;
+            Log.w(TAG, "Encoder caught up, " + droppedBytes + " bytes dropped so far");
+        }
+        return block;
+    }
+
+    /**
+     * Closes the current recording (if any) and registers it in the database once the writer thread is done with it.
+     */
+    void finish() {
+        if (writer == null) return;
+
+        final Closeable clipWriter = writer;
+        final File clip = file;
+        final ActivityRecording recording = new ActivityRecording();
+        recording.setTimestamp(startTimeMillis);
+        recording.setDurationSeconds((int) (bytesWritten / bytesPerSecond));
+        recording.setFilePath(clip.getAbsolutePath());
+        recording.setDeleteAfterTimestamp(System.currentTimeMillis() + autoDeleteDays * DAY_MILLIS);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // After the pre-roll copy, if it is still going on
+                closeQuietly(clipWriter);
+                recording.setFileSize((int) Math.min(Integer.MAX_VALUE, clip.length()));
+                database.addRecording(recording);
+                Log.d(TAG, "Activity recording finished: " + clip.getName());
+            }
+        });
+
+        writer = null;
+        sink = null;
+        file = null;
+    }
+
+    /**
+     * Finishes the current recording and stops the writer thread once it has written everything.
+     */
+    void release() {
+        finish();
+        executor.shutdown();
+    }
+
+    private static void closeQuietly(Closeable writer) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing activity recording", e);
+        }
+    }
+
+    boolean isRecording() {
+        return writer != null;
+    }
+
+    /**
+     * Bytes of activity audio dropped because the encoder could not keep up.
+     */
+    long getDroppedBytes() {
+        return droppedBytes;
+    }
+}
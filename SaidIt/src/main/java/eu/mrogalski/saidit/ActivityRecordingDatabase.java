@@ -1,7 +1,12 @@
 package eu.mrogalski.saidit;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import org.json.JSONArray;
@@ -10,236 +15,298 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.List;
 
 /**
- * Simple database for storing activity recording metadata using SharedPreferences.
- * For a production app, consider using SQLite for better performance with many recordings.
+ * Stores activity recording metadata in SQLite.
+ * Timestamps, expiry and the flag are indexed, so listing and cleanup do not scan or rewrite every entry.
+ * Entries saved by older versions as a JSON string in SharedPreferences are imported once when the database is created.
  */
 public class ActivityRecordingDatabase {
     private static final String TAG = ActivityRecordingDatabase.class.getSimpleName();
+    private static final String DATABASE_NAME = "activity_recordings.db";
+    private static final int DATABASE_VERSION = 1;
+
+    // Legacy SharedPreferences storage
     private static final String PREFS_NAME = "activity_recordings";
     private static final String KEY_RECORDINGS = "recordings_json";
-    private static final String KEY_NEXT_ID = "next_id";
-    
-    private final Context context;
-    private final SharedPreferences prefs;
-    
+
+    private static final String TABLE = "recordings";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_TIMESTAMP = "timestamp";
+    private static final String COLUMN_DURATION_SECONDS = "durationSeconds";
+    private static final String COLUMN_FILE_PATH = "filePath";
+    private static final String COLUMN_IS_FLAGGED = "isFlagged";
+    private static final String COLUMN_DELETE_AFTER_TIMESTAMP = "deleteAfterTimestamp";
+    private static final String COLUMN_FILE_SIZE = "fileSize";
+    private static final String[] COLUMNS = {
+            COLUMN_ID, COLUMN_TIMESTAMP, COLUMN_DURATION_SECONDS, COLUMN_FILE_PATH,
+            COLUMN_IS_FLAGGED, COLUMN_DELETE_AFTER_TIMESTAMP, COLUMN_FILE_SIZE
+    };
+    private static final String NEWEST_FIRST = COLUMN_TIMESTAMP + " DESC";
+    private static final String EXPIRED = COLUMN_IS_FLAGGED + " = 0 AND " + COLUMN_DELETE_AFTER_TIMESTAMP + " <= ?";
+
+    private final OpenHelper helper;
+
     public ActivityRecordingDatabase(Context context) {
-        this.context = context;
-        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.helper = new OpenHelper(context);
+    }
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+        private final Context context;
+
+        OpenHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            this.context = context;
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " ("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                    + COLUMN_DURATION_SECONDS + " INTEGER NOT NULL, "
+                    + COLUMN_FILE_PATH + " TEXT NOT NULL, "
+                    + COLUMN_IS_FLAGGED + " INTEGER NOT NULL DEFAULT 0, "
+                    + COLUMN_DELETE_AFTER_TIMESTAMP + " INTEGER NOT NULL, "
+                    + COLUMN_FILE_SIZE + " INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX recordings_timestamp ON " + TABLE + " (" + COLUMN_TIMESTAMP + ")");
+            db.execSQL("CREATE INDEX recordings_delete_after ON " + TABLE + " (" + COLUMN_DELETE_AFTER_TIMESTAMP + ")");
+            db.execSQL("CREATE INDEX recordings_flagged ON " + TABLE + " (" + COLUMN_IS_FLAGGED + ")");
+            migrateFromPreferences(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+
+        /**
+         * Imports the recordings kept in SharedPreferences by older versions, keeping their IDs.
+         */
+        private void migrateFromPreferences(SQLiteDatabase db) {
+            final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            final String json = prefs.getString(KEY_RECORDINGS, null);
+            if (json == null) return;
+
+            int count = 0;
+            int skipped = 0;
+            try {
+                JSONArray array = new JSONArray(json);
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject obj = array.optJSONObject(i);
+                    // An entry without an ID or a file cannot be used, the rest of the list still can
+                    final long id = obj != null ? obj.optLong("id", -1) : -1;
+                    final String filePath = obj != null ? obj.optString("filePath", "") : "";
+                    if (id < 0 || filePath.isEmpty()) {
+                        skipped++;
+                        continue;
+                    }
+                    ActivityRecording recording = new ActivityRecording(
+                            id,
+                            obj.optLong("timestamp", 0),
+                            obj.optInt("durationSeconds", 0),
+                            filePath,
+                            obj.optBoolean("isFlagged", false),
+                            // Without a known expiry, keep the recording until the user deletes it
+                            obj.optLong("deleteAfterTimestamp", Long.MAX_VALUE),
+                            obj.optInt("fileSize", 0));
+                    ContentValues values = toValues(recording);
+                    values.put(COLUMN_ID, recording.getId());
+                    db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    count++;
+                }
+            } catch (JSONException e) {
+                // Leave the legacy data in place rather than losing it
+                Log.e(TAG, "Error parsing legacy recordings JSON", e);
+                return;
+            }
+
+            prefs.edit().clear().apply();
+            Log.d(TAG, "Migrated " + count + " recordings from SharedPreferences, skipped " + skipped);
+        }
     }
-    
+
     /**
      * Adds a new recording to the database.
      */
     public synchronized long addRecording(ActivityRecording recording) {
-        List<ActivityRecording> recordings = getAllRecordings();
-        
-        // Assign new ID
-        long nextId = prefs.getLong(KEY_NEXT_ID, 1);
-        recording.setId(nextId);
-        prefs.edit().putLong(KEY_NEXT_ID, nextId + 1).apply();
-        
-        recordings.add(recording);
-        saveRecordings(recordings);
-        
+        long id = helper.getWritableDatabase().insert(TABLE, null, toValues(recording));
+        recording.setId(id);
         Log.d(TAG, "Added recording: " + recording);
-        return nextId;
+        return id;
     }
-    
+
     /**
      * Updates an existing recording.
      */
     public synchronized boolean updateRecording(ActivityRecording recording) {
-        List<ActivityRecording> recordings = getAllRecordings();
-        
-        for (int i = 0; i < recordings.size(); i++) {
-            if (recordings.get(i).getId() == recording.getId()) {
-                recordings.set(i, recording);
-                saveRecordings(recordings);
-                Log.d(TAG, "Updated recording: " + recording);
-                return true;
-            }
+        int rows = helper.getWritableDatabase().update(TABLE, toValues(recording),
+                COLUMN_ID + " = ?", new String[]{Long.toString(recording.getId())});
+        if (rows > 0) {
+            Log.d(TAG, "Updated recording: " + recording);
         }
-        
-        return false;
+        return rows > 0;
     }
-    
+
     /**
      * Deletes a recording from the database and optionally deletes the file.
      */
     public synchronized boolean deleteRecording(long id, boolean deleteFile) {
-        List<ActivityRecording> recordings = getAllRecordings();
-        
-        for (int i = 0; i < recordings.size(); i++) {
-            if (recordings.get(i).getId() == id) {
-                ActivityRecording recording = recordings.remove(i);
-                
-                if (deleteFile) {
-                    File file = recording.getFile();
-                    if (file.exists()) {
-                        if (file.delete()) {
-                            Log.d(TAG, "Deleted file: " + file.getAbsolutePath());
-                        } else {
-                            Log.w(TAG, "Failed to delete file: " + file.getAbsolutePath());
-                        }
+        ActivityRecording recording = deleteFile ? getRecording(id) : null;
+        int rows = helper.getWritableDatabase().delete(TABLE, COLUMN_ID + " = ?", new String[]{Long.toString(id)});
+        if (rows == 0) {
+            return false;
+        }
+        if (recording != null) {
+            deleteFile(recording);
+        }
+        Log.d(TAG, "Deleted recording: " + id);
+        return true;
+    }
+
+    /**
+     * Deletes several recordings in a single transaction and optionally deletes their files.
+     * @return Number of recordings removed from the database
+     */
+    public synchronized int deleteRecordings(Collection<ActivityRecording> recordings, boolean deleteFiles) {
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final List<ActivityRecording> deleted = new ArrayList<>();
+        db.beginTransaction();
+        try {
+            final SQLiteStatement statement = db.compileStatement("DELETE FROM " + TABLE + " WHERE " + COLUMN_ID + " = ?");
+            try {
+                for (ActivityRecording recording : recordings) {
+                    statement.bindLong(1, recording.getId());
+                    if (statement.executeUpdateDelete() > 0) {
+                        deleted.add(recording);
                     }
                 }
-                
-                saveRecordings(recordings);
-                Log.d(TAG, "Deleted recording: " + id);
-                return true;
+            } finally {
+                statement.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Files go only after the rows are gone for good
+        if (deleteFiles) {
+            for (ActivityRecording recording : deleted) {
+                deleteFile(recording);
+            }
+        }
+        Log.d(TAG, "Deleted " + deleted.size() + " recordings");
+        return deleted.size();
+    }
+
+    private static void deleteFile(ActivityRecording recording) {
+        File file = recording.getFile();
+        if (file.exists()) {
+            if (file.delete()) {
+                Log.d(TAG, "Deleted file: " + file.getAbsolutePath());
+            } else {
+                Log.w(TAG, "Failed to delete file: " + file.getAbsolutePath());
             }
         }
-        
-        return false;
     }
-    
+
     /**
      * Gets a recording by ID.
      */
     public synchronized ActivityRecording getRecording(long id) {
-        List<ActivityRecording> recordings = getAllRecordings();
-        
-        for (ActivityRecording recording : recordings) {
-            if (recording.getId() == id) {
-                return recording;
-            }
-        }
-        
-        return null;
+        List<ActivityRecording> recordings = query(COLUMN_ID + " = ?", new String[]{Long.toString(id)});
+        return recordings.isEmpty() ? null : recordings.get(0);
     }
-    
+
     /**
      * Gets all recordings, sorted by timestamp (newest first).
      */
     public synchronized List<ActivityRecording> getAllRecordings() {
-        List<ActivityRecording> recordings = new ArrayList<>();
-        
-        String json = prefs.getString(KEY_RECORDINGS, "[]");
-        try {
-            JSONArray array = new JSONArray(json);
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject obj = array.getJSONObject(i);
-                ActivityRecording recording = fromJSON(obj);
-                recordings.add(recording);
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error parsing recordings JSON", e);
-        }
-        
-        // Sort by timestamp, newest first
-        Collections.sort(recordings, new Comparator<ActivityRecording>() {
-            @Override
-            public int compare(ActivityRecording r1, ActivityRecording r2) {
-                long t1 = r1.getTimestamp();
-                long t2 = r2.getTimestamp();
-                // Newest first (reverse order)
-                return (t2 < t1) ? -1 : ((t2 == t1) ? 0 : 1);
-            }
-        });
-        
-        return recordings;
+        return query(null, null);
     }
-    
+
+    /**
+     * Gets flagged recordings, sorted by timestamp (newest first).
+     */
+    public synchronized List<ActivityRecording> getFlaggedRecordings() {
+        return query(COLUMN_IS_FLAGGED + " = 1", null);
+    }
+
     /**
      * Gets recordings that should be auto-deleted.
      */
     public synchronized List<ActivityRecording> getRecordingsToDelete() {
-        List<ActivityRecording> allRecordings = getAllRecordings();
-        List<ActivityRecording> toDelete = new ArrayList<>();
-        
-        for (ActivityRecording recording : allRecordings) {
-            if (recording.shouldDelete()) {
-                toDelete.add(recording);
-            }
-        }
-        
-        return toDelete;
+        return query(EXPIRED, new String[]{Long.toString(System.currentTimeMillis())});
     }
-    
+
     /**
      * Deletes all expired recordings and returns the count.
      */
     public synchronized int cleanupExpiredRecordings() {
-        List<ActivityRecording> toDelete = getRecordingsToDelete();
-        int count = 0;
-        
-        for (ActivityRecording recording : toDelete) {
-            if (deleteRecording(recording.getId(), true)) {
-                count++;
-            }
-        }
-        
+        int count = deleteRecordings(getRecordingsToDelete(), true);
         Log.d(TAG, "Cleaned up " + count + " expired recordings");
         return count;
     }
-    
+
     /**
      * Toggles the flagged status of a recording.
      */
     public synchronized boolean toggleFlag(long id) {
-        ActivityRecording recording = getRecording(id);
-        if (recording != null) {
-            recording.setFlagged(!recording.isFlagged());
-            return updateRecording(recording);
+        final SQLiteStatement statement = helper.getWritableDatabase().compileStatement(
+                "UPDATE " + TABLE + " SET " + COLUMN_IS_FLAGGED + " = 1 - " + COLUMN_IS_FLAGGED
+                        + " WHERE " + COLUMN_ID + " = ?");
+        try {
+            statement.bindLong(1, id);
+            return statement.executeUpdateDelete() > 0;
+        } finally {
+            statement.close();
         }
-        return false;
     }
-    
+
     /**
      * Clears all recordings (but doesn't delete files).
      */
     public synchronized void clearAll() {
-        prefs.edit().clear().apply();
+        helper.getWritableDatabase().delete(TABLE, null, null);
         Log.d(TAG, "Cleared all recordings from database");
     }
-    
+
     /**
-     * Saves the list of recordings to SharedPreferences.
+     * Closes the underlying database.
      */
-    private void saveRecordings(List<ActivityRecording> recordings) {
+    public synchronized void close() {
+        helper.close();
+    }
+
+    private List<ActivityRecording> query(String selection, String[] selectionArgs) {
+        List<ActivityRecording> recordings = new ArrayList<>();
+        Cursor cursor = helper.getReadableDatabase().query(TABLE, COLUMNS, selection, selectionArgs, null, null, NEWEST_FIRST);
         try {
-            JSONArray array = new JSONArray();
-            for (ActivityRecording recording : recordings) {
-                array.put(toJSON(recording));
+            while (cursor.moveToNext()) {
+                recordings.add(new ActivityRecording(
+                        cursor.getLong(0),
+                        cursor.getLong(1),
+                        cursor.getInt(2),
+                        cursor.getString(3),
+                        cursor.getInt(4) != 0,
+                        cursor.getLong(5),
+                        cursor.getInt(6)));
             }
-            prefs.edit().putString(KEY_RECORDINGS, array.toString()).apply();
-        } catch (JSONException e) {
-            Log.e(TAG, "Error saving recordings to JSON", e);
+        } finally {
+            cursor.close();
         }
+        return recordings;
     }
-    
-    /**
-     * Converts a recording to JSON.
-     */
-    private JSONObject toJSON(ActivityRecording recording) throws JSONException {
-        JSONObject obj = new JSONObject();
-        obj.put("id", recording.getId());
-        obj.put("timestamp", recording.getTimestamp());
-        obj.put("durationSeconds", recording.getDurationSeconds());
-        obj.put("filePath", recording.getFilePath());
-        obj.put("isFlagged", recording.isFlagged());
-        obj.put("deleteAfterTimestamp", recording.getDeleteAfterTimestamp());
-        obj.put("fileSize", recording.getFileSize());
-        return obj;
-    }
-    
-    /**
-     * Creates a recording from JSON.
-     */
-    private ActivityRecording fromJSON(JSONObject obj) throws JSONException {
-        return new ActivityRecording(
-            obj.getLong("id"),
-            obj.getLong("timestamp"),
-            obj.getInt("durationSeconds"),
-            obj.getString("filePath"),
-            obj.getBoolean("isFlagged"),
-            obj.getLong("deleteAfterTimestamp"),
-            obj.getInt("fileSize")
-        );
+
+    private static ContentValues toValues(ActivityRecording recording) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_TIMESTAMP, recording.getTimestamp());
+        values.put(COLUMN_DURATION_SECONDS, recording.getDurationSeconds());
+        values.put(COLUMN_FILE_PATH, recording.getFilePath());
+        values.put(COLUMN_IS_FLAGGED, recording.isFlagged() ? 1 : 0);
+        values.put(COLUMN_DELETE_AFTER_TIMESTAMP, recording.getDeleteAfterTimestamp());
+        values.put(COLUMN_FILE_SIZE, recording.getFileSize());
+        return values;
     }
 }
@@ -0,0 +1,241 @@
+package eu.mrogalski.saidit;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes captured audio to a {@link DiskAudioBuffer} on a dedicated thread, so slow storage can only
+ * cost disk history and never stalls the audio worker feeding recordings and analysis.
+ * Audio is copied into a bounded pool of reusable buffers, allocated as they are first needed; when
+ * every buffer is waiting to be written, new audio is dropped and counted instead of waited for.
+ * The producer methods are synchronized, so the audio worker and the memory spilling history can share
+ * a writer; neither ever waits for storage.
+ * Every buffer carries the capture time of its first byte, so dropped audio shows up as a gap in the
+ * DiskAudioBuffer timeline instead of shifting everything after it.
+ */
+public class AsyncDiskWriter implements Runnable {
+    private static final String TAG = AsyncDiskWriter.class.getSimpleName();
+
+    private static final class Block {
+        final byte[] data;
+        int length;
+        final Runnable task;
+        long startElapsedNanos = -1; // capture time of data[0], negative when unknown
+        long startWallMillis;
+
+        Block(byte[] data, Runnable task) {
+            this.data = data;
+            this.task = task;
+        }
+    }
+
+    private static final Block END = new Block(null, null);
+
+    private final DiskAudioBuffer buffer;
+    private final int bufferSize;
+    private final int bufferCount;
+    private int allocated = 0;
+    private final ArrayBlockingQueue<Block> free;
+    private final LinkedBlockingQueue<Block> filled = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private Block current; // being filled by the producer
+
+    private volatile int highWaterMark;
+    private volatile long droppedBytes;
+    private volatile long failedBytes;
+    private boolean dropping = false;
+
+    /**
+     * @param bufferSize Bytes per pooled buffer
+     * @param bufferCount Number of pooled buffers; together they bound the audio waiting for storage
+     */
+    public AsyncDiskWriter(DiskAudioBuffer buffer, int bufferSize, int bufferCount) {
+        this.buffer = buffer;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+        this.free = new ArrayBlockingQueue<>(bufferCount);
+        this.thread = new Thread(this, "diskWriter");
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Copies audio that directly continues the previous write into the pool, see {@link #write(byte[], int, int, long, long)}.
+     */
+    public synchronized void write(byte[] data, int offset, int length) {
+        write(data, offset, length, -1, 0);
+    }
+
+    /**
+     * Copies audio into the pool. Never blocks; drops the audio when no buffer is free.
+     * @param startElapsedNanos SystemClock.elapsedRealtimeNanos() when data[offset] was captured, negative if unknown
+     * @param startWallMillis Wall-clock time of data[offset]
+     */
+    public synchronized void write(byte[] data, int offset, int length, long startElapsedNanos, long startWallMillis) {
+        final AudioTimeline timeline = buffer.getTimeline();
+        if (current != null && current.length > 0 && startElapsedNanos >= 0 && current.startElapsedNanos >= 0
+                && !timeline.follows(current.startElapsedNanos, current.length, startElapsedNanos)) {
+            // Not continuous - a buffer is written with one start time
+            handOff();
+        }
+        while (length > 0) {
+            if (current == null) {
+                current = free.poll();
+                if (current == null && allocated < bufferCount) {
+                    current = new Block(new byte[bufferSize], null);
+                    allocated++;
+                }
+                if (current == null) {
+                    droppedBytes = droppedBytes + length;
+                    if (!dropping) {
+                        dropping = true;
+                        Log.w(TAG, "Storage too slow - dropping disk history (" + droppedBytes + " bytes so far)");
+                    }
+                    return;
+                }
+                if (dropping) {
+                    dropping = false;
+                    Log.w(TAG, "Storage caught up, " + droppedBytes + " bytes dropped so far");
+                }
+            }
+            if (current.length == 0) {
+                current.startElapsedNanos = startElapsedNanos;
+                current.startWallMillis = startWallMillis;
+            }
+            final int count = Math.min(length, current.data.length - current.length);
+            System.arraycopy(data, offset, current.data, current.length, count);
+            current.length += count;
+            offset += count;
+            length -= count;
+            if (startElapsedNanos >= 0) {
+                final long nanos = timeline.nanosFor(count);
+                startElapsedNanos += nanos;
+                startWallMillis += nanos / 1000000;
+            }
+            if (current.length == current.data.length) {
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * Queues the partially filled buffer for writing.
+     */
+    public synchronized void flush() {
+        if (current != null && current.length > 0) {
+            handOff();
+        }
+    }
+
+    private void handOff() {
+        filled.add(current);
+        current = null;
+        final int depth = filled.size();
+        if (depth > highWaterMark) {
+            highWaterMark = depth;
+        }
+    }
+
+    /**
+     * Runs the task on the writer thread once all audio written so far is in the DiskAudioBuffer.
+     */
+    public synchronized void post(Runnable task) {
+        flush();
+        filled.add(new Block(null, task));
+    }
+
+    /**
+     * Writes out the queued audio and stops the writer thread.
+     * @param timeoutMillis How long to wait for the queue to drain
+     * @return false if the thread was still writing when the timeout ran out
+     */
+    public boolean close(long timeoutMillis) {
+        synchronized (this) {
+            flush();
+            filled.add(END);
+        }
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final Block block;
+            try {
+                block = filled.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (block == END) {
+                break;
+            }
+            if (block.task != null) {
+                try {
+                    block.task.run();
+                } catch (RuntimeException e) {
+                    // The thread must survive, or the pool runs dry and all later audio is dropped
+                    Log.e(TAG, "Unexpected error in disk writer task", e);
+                }
+                continue;
+            }
+            store(block);
+        }
+    }
+
+    private void store(Block block) {
+        try {
+            buffer.write(block.data, 0, block.length, block.startElapsedNanos, block.startWallMillis);
+        } catch (IOException e) {
+            failedBytes = failedBytes + block.length;
+            Log.e(TAG, "Error writing to disk buffer", e);
+        } catch (RuntimeException e) {
+            failedBytes = failedBytes + block.length;
+            Log.e(TAG, "Unexpected error writing to disk buffer", e);
+        }
+        block.length = 0;
+        block.startElapsedNanos = -1;
+        free.add(block);
+    }
+
+    /**
+     * Number of buffers waiting to be written.
+     */
+    public int getQueueDepth() {
+        return filled.size();
+    }
+
+    /**
+     * Largest number of buffers that were waiting at once.
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Bytes dropped because all buffers were waiting for storage.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Bytes lost because the DiskAudioBuffer failed to write them.
+     */
+    public long getFailedBytes() {
+        return failedBytes;
+    }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+}
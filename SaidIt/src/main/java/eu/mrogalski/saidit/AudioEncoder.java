@@ -1,31 +1,38 @@
 package eu.mrogalski.saidit;
 
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
- * Utility class for audio encoding with multiple quality levels.
- * 
- * STATUS: NOT YET IMPLEMENTED - Stub class for future development
- * 
- * This class would provide functionality for encoding audio at different bitrates,
- * supporting the multi-quality encoding feature (Phase 4).
- * 
- * PLANNED FUNCTIONALITY:
- * - Encode PCM audio to AAC/MP3/Opus formats
- * - Support multiple bitrate levels (low, medium, high)
- * - Real-time encoding for recent audio
- * - Re-encoding of older audio to lower bitrates
- * 
- * IMPLEMENTATION CHALLENGES:
- * - Real-time encoding impact on battery life
- * - CPU usage during continuous encoding
- * - Memory overhead for encoding buffers
- * - Android MediaCodec integration complexity
- * 
- * RECOMMENDATION:
- * Implement only if there's clear user demand, as the performance impact
- * may outweigh the storage savings for many users.
+ * Streaming encoder for 16-bit mono PCM.
+ * PCM blocks are fed to a MediaCodec encoder as they arrive and the encoded frames go straight into
+ * a MediaMuxer container (MPEG-4 for AAC-LC, Ogg for Opus), so nothing is held in memory besides
+ * the codec's own reused buffers.
+ * {@link #write(byte[], int, int)} waits while the codec has no free input buffer; when it runs on
+ * the audio worker this pushes back on the capture ring instead of growing a queue.
  */
-public class AudioEncoder {
-    
+public class AudioEncoder implements Closeable {
+    private static final String TAG = AudioEncoder.class.getSimpleName();
+
+    private static final long INPUT_TIMEOUT_US = 10000;
+    private static final long OUTPUT_TIMEOUT_US = 10000;
+    private static final long MAX_STALL_US = 2000000; // give up when the codec takes no input for this long
+    private static final int MAX_INPUT_SIZE = 16 * 1024;
+    private static final int AAC_PRIMING_FRAMES = 1024; // silence every AAC-LC encoder puts in front of the audio
+
     /**
      * Encoding quality presets
      */
@@ -33,66 +40,463 @@ public class AudioEncoder {
         LOW(64000),     // 64 kbps - suitable for speech
         MEDIUM(128000), // 128 kbps - balanced quality/size
         HIGH(256000);   // 256 kbps - high quality
-        
+
         private final int bitrate;
-        
+
         Quality(int bitrate) {
             this.bitrate = bitrate;
         }
-        
+
         public int getBitrate() {
             return bitrate;
         }
     }
-    
+
     /**
      * Supported audio codecs
      */
     public enum Codec {
         AAC,  // Advanced Audio Coding - good compatibility
-        MP3,  // MPEG Layer 3 - universal compatibility
-        OPUS  // Opus - best quality/bitrate ratio but less compatible
+        MP3,  // MPEG Layer 3 - universal compatibility (no Android encoder)
+        OPUS; // Opus - best quality/bitrate ratio but less compatible
+
+        String getMimeType() {
+            switch (this) {
+                case AAC:
+                    return MediaFormat.MIMETYPE_AUDIO_AAC;
+                case OPUS:
+                    return MediaFormat.MIMETYPE_AUDIO_OPUS;
+                default:
+                    return null;
+            }
+        }
+
+        int getMuxerFormat() {
+            return this == OPUS ? MediaMuxer.OutputFormat.MUXER_OUTPUT_OGG : MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
+        }
+
+        /**
+         * File extension for the container this codec is written into.
+         */
+        public String getFileExtension() {
+            return this == OPUS ? ".ogg" : ".m4a";
+        }
+    }
+
+    private final File output;
+    private final int sampleRate;
+    private final MediaCodec codec;
+    private final MediaMuxer muxer;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    private int track = -1;
+    private boolean muxerStarted = false;
+    private boolean closed = false;
+    private long samplesQueued = 0;
+    private long encodedBytes = 0;
+
+    /**
+     * Starts a new encoded file.
+     * @param output File to write; any existing file is replaced
+     * @param sampleRate Sample rate of the PCM input
+     * @param codec Target codec
+     * @param quality Target quality level
+     * @throws IOException if the codec is not available or the file cannot be created
+     */
+    public AudioEncoder(File output, int sampleRate, Codec codec, Quality quality) throws IOException {
+        final MediaFormat format = createFormat(codec, sampleRate, quality);
+        if (format == null) {
+            throw new IOException("No encoder for " + codec);
+        }
+        this.output = output;
+        this.sampleRate = sampleRate;
+
+        MediaCodec mediaCodec = null;
+        MediaMuxer mediaMuxer = null;
+        try {
+            mediaCodec = MediaCodec.createEncoderByType(codec.getMimeType());
+            mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mediaMuxer = new MediaMuxer(output.getAbsolutePath(), codec.getMuxerFormat());
+            mediaCodec.start();
+        } catch (IOException | RuntimeException e) {
+            if (mediaCodec != null) mediaCodec.release();
+            if (mediaMuxer != null) mediaMuxer.release();
+            throw e instanceof IOException ? (IOException) e : new IOException("Can't start " + codec + " encoder", e);
+        }
+        this.codec = mediaCodec;
+        this.muxer = mediaMuxer;
+        Log.d(TAG, "Encoding " + codec + " at " + quality.getBitrate() + " bps into " + output.getName());
+    }
+
+    private static MediaFormat createFormat(Codec codec, int sampleRate, Quality quality) {
+        final String mimeType = codec.getMimeType();
+        if (mimeType == null) {
+            return null;
+        }
+        final MediaFormat format = MediaFormat.createAudioFormat(mimeType, sampleRate, 1);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, quality.getBitrate());
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
+        if (codec == Codec.AAC) {
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        }
+        return format;
+    }
+
+    /**
+     * Encodes a block of 16-bit little-endian PCM.
+     * @throws IOException if the codec fails or stops taking input
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Encoder is closed");
+        }
+        length &= ~1; // whole samples only
+        try {
+            long stalledUs = 0;
+            while (length > 0) {
+                final int index = codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+                if (index < 0) {
+                    drain(false);
+                    stalledUs += INPUT_TIMEOUT_US;
+                    if (stalledUs >= MAX_STALL_US) {
+                        throw new IOException("Encoder stalled");
+                    }
+                    continue;
+                }
+                stalledUs = 0;
+                final ByteBuffer input = codec.getInputBuffer(index);
+                input.clear();
+                final int count = Math.min(length, input.remaining()) & ~1;
+                input.put(data, offset, count);
+                codec.queueInputBuffer(index, 0, count, presentationTimeUs(), 0);
+                samplesQueued += count / 2;
+                offset += count;
+                length -= count;
+                drain(false);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Encoder failed", e);
+        }
+    }
+
+    private long presentationTimeUs() {
+        return samplesQueued * 1000000L / sampleRate;
+    }
+
+    /**
+     * Moves all available encoded frames to the muxer.
+     * @param endOfStream Wait until the codec has emitted its last frame
+     */
+    private void drain(boolean endOfStream) throws IOException {
+        long waitedUs = 0;
+        while (true) {
+            final int index = codec.dequeueOutputBuffer(bufferInfo, endOfStream ? OUTPUT_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                waitedUs += OUTPUT_TIMEOUT_US;
+                if (waitedUs >= MAX_STALL_US) {
+                    throw new IOException("Encoder did not finish");
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (muxerStarted) {
+                    throw new IOException("Encoder output format changed twice");
+                }
+                track = muxer.addTrack(codec.getOutputFormat());
+                muxer.start();
+                muxerStarted = true;
+            } else if (index >= 0) {
+                final ByteBuffer encoded = codec.getOutputBuffer(index);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Already passed to the muxer with the output format
+                    bufferInfo.size = 0;
+                }
+                if (bufferInfo.size > 0 && muxerStarted) {
+                    encoded.position(bufferInfo.offset);
+                    encoded.limit(bufferInfo.offset + bufferInfo.size);
+                    muxer.writeSampleData(track, encoded, bufferInfo);
+                    encodedBytes += bufferInfo.size;
+                }
+                codec.releaseOutputBuffer(index, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes the codec and finalizes the container.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            long stalledUs = 0;
+            int index;
+            while ((index = codec.dequeueInputBuffer(INPUT_TIMEOUT_US)) < 0) {
+                drain(false);
+                stalledUs += INPUT_TIMEOUT_US;
+                if (stalledUs >= MAX_STALL_US) {
+                    throw new IOException("Encoder stalled");
+                }
+            }
+            codec.queueInputBuffer(index, 0, 0, presentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+        } catch (IllegalStateException e) {
+            throw new IOException("Encoder failed", e);
+        } finally {
+            release();
+        }
+        Log.d(TAG, "Encoded " + samplesQueued + " samples into " + encodedBytes + " bytes: " + output.getName());
+    }
+
+    private void release() {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Error stopping codec", e);
+        }
+        codec.release();
+        try {
+            if (muxerStarted) {
+                muxer.stop();
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Error stopping muxer", e);
+        }
+        muxer.release();
+    }
+
+    /**
+     * Number of PCM samples taken so far.
+     */
+    public long getSamplesEncoded() {
+        return samplesQueued;
     }
-    
-    // Stub method signatures - not implemented
-    
+
     /**
-     * Encodes PCM audio data to the specified format and quality.
-     * 
-     * @param pcmData Raw PCM audio data (16-bit samples)
+     * Number of encoded bytes passed to the container so far.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    public File getFile() {
+        return output;
+    }
+
+    /**
+     * Encodes a raw 16-bit mono PCM file.
+     *
+     * @param pcmInput Raw PCM file
      * @param sampleRate Sample rate in Hz
+     * @param output Encoded file to create
      * @param codec Target codec
      * @param quality Target quality level
-     * @return Encoded audio data
-     * @throws UnsupportedOperationException This feature is not yet implemented
+     * @throws IOException if reading or encoding fails
      */
-    public byte[] encode(byte[] pcmData, int sampleRate, Codec codec, Quality quality) {
-        throw new UnsupportedOperationException(
-            "AudioEncoder is not yet implemented. See Phase 4 in IMPLEMENTATION_PLAN.md");
+    public static void encode(File pcmInput, int sampleRate, File output, Codec codec, Quality quality) throws IOException {
+        final AudioEncoder encoder = new AudioEncoder(output, sampleRate, codec, quality);
+        boolean done = false;
+        try {
+            final InputStream in = new FileInputStream(pcmInput);
+            try {
+                final byte[] buffer = new byte[MAX_INPUT_SIZE];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    encoder.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            done = true;
+        } finally {
+            try {
+                encoder.close();
+            } catch (IOException e) {
+                if (done) throw e;
+            }
+        }
     }
-    
+
     /**
-     * Re-encodes audio data from one quality to another.
-     * 
-     * @param encodedData Existing encoded audio
-     * @param sourceCodec Source codec
+     * Decodes an encoded file and encodes it again, typically at a lower quality.
+     *
+     * @param input Encoded audio file
+     * @param output Encoded file to create
+     * @param targetCodec Target codec
      * @param targetQuality Target quality level
-     * @return Re-encoded audio data
-     * @throws UnsupportedOperationException This feature is not yet implemented
+     * @throws IOException if the input cannot be decoded or encoding fails
+     */
+    public static void reEncode(File input, File output, Codec targetCodec, Quality targetQuality) throws IOException {
+        final AudioEncoder encoder = new AudioEncoder(output, getSampleRate(input), targetCodec, targetQuality);
+        boolean done = false;
+        try {
+            decode(input, new AudioMemory.Consumer() {
+                @Override
+                public int consume(byte[] array, int offset, int count) throws IOException {
+                    encoder.write(array, offset, count);
+                    return 0;
+                }
+            });
+            done = true;
+        } finally {
+            try {
+                encoder.close();
+            } catch (IOException e) {
+                if (done) throw e;
+            }
+        }
+    }
+
+    /**
+     * Gets the sample rate of the first audio track of an encoded file.
      */
-    public byte[] reEncode(byte[] encodedData, Codec sourceCodec, Quality targetQuality) {
-        throw new UnsupportedOperationException(
-            "AudioEncoder is not yet implemented. See Phase 4 in IMPLEMENTATION_PLAN.md");
+    public static int getSampleRate(File input) throws IOException {
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            return selectAudioTrack(extractor, input).getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor, File input) throws IOException {
+        extractor.setDataSource(input.getAbsolutePath());
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final MediaFormat trackFormat = extractor.getTrackFormat(i);
+            final String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return trackFormat;
+            }
+        }
+        throw new IOException("No audio track in " + input.getName());
+    }
+
+    /**
+     * Decodes an encoded file into 16-bit mono PCM, passed to the consumer block by block.
+     * The encoder delay is dropped from the head, so the output lines up with the PCM that was encoded.
+     *
+     * @param input Encoded audio file
+     * @param consumer Receives the decoded PCM
+     * @return Number of PCM bytes produced
+     * @throws IOException if the input cannot be decoded or the consumer fails
+     */
+    public static long decode(File input, AudioMemory.Consumer consumer) throws IOException {
+        final MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        long produced = 0;
+        try {
+            final MediaFormat format = selectAudioTrack(extractor, input);
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            final byte[] pcm = new byte[MAX_INPUT_SIZE];
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            long delayBytes = 2L * getEncoderDelay(format);
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    final int index = decoder.dequeueInputBuffer(INPUT_TIMEOUT_US);
+                    if (index >= 0) {
+                        final int size = extractor.readSampleData(decoder.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                final int index = decoder.dequeueOutputBuffer(info, OUTPUT_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    channels = decoder.getOutputFormat().getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (index >= 0) {
+                    if (info.size > 0) {
+                        final ByteBuffer decoded = decoder.getOutputBuffer(index);
+                        decoded.position(info.offset);
+                        decoded.limit(info.offset + info.size);
+                        decoded.order(ByteOrder.LITTLE_ENDIAN);
+                        int length;
+                        while ((length = downmix(decoded, channels, pcm)) > 0) {
+                            final int skipped = (int) Math.min(delayBytes, length);
+                            delayBytes -= skipped;
+                            if (length > skipped) {
+                                consumer.consume(pcm, skipped, length - skipped);
+                                produced += length - skipped;
+                            }
+                        }
+                    }
+                    decoder.releaseOutputBuffer(index, false);
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Can't decode " + input.getName(), e);
+        } finally {
+            if (decoder != null) {
+                try {
+                    decoder.stop();
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Error stopping decoder", e);
+                }
+                decoder.release();
+            }
+            extractor.release();
+        }
+        return produced;
     }
-    
+
+    /**
+     * Gets the number of priming frames the encoder put in front of the audio. MediaMuxer does not record it
+     * for AAC, so files without the key get the AAC-LC priming.
+     */
+    private static int getEncoderDelay(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_ENCODER_DELAY)) {
+            return format.getInteger(MediaFormat.KEY_ENCODER_DELAY);
+        }
+        return MediaFormat.MIMETYPE_AUDIO_AAC.equals(format.getString(MediaFormat.KEY_MIME)) ? AAC_PRIMING_FRAMES : 0;
+    }
+
+    /**
+     * Copies decoded 16-bit PCM into the array as mono, averaging the channels.
+     * @return Number of bytes stored
+     */
+    private static int downmix(ByteBuffer decoded, int channels, byte[] pcm) {
+        channels = Math.max(1, channels);
+        final int frames = Math.min(decoded.remaining() / (2 * channels), pcm.length / 2);
+        for (int i = 0; i < frames; i++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += decoded.getShort();
+            }
+            final int sample = sum / channels;
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return frames * 2;
+    }
+
     /**
      * Checks if a specific codec is available on this device.
-     * 
+     *
      * @param codec Codec to check
      * @return true if supported, false otherwise
      */
     public static boolean isCodecSupported(Codec codec) {
-        // Would check MediaCodecList for encoder availability
-        return false; // Stub implementation
+        final MediaFormat format = createFormat(codec, 48000, Quality.LOW);
+        if (format == null) {
+            return false;
+        }
+        return new MediaCodecList(MediaCodecList.REGULAR_CODECS).findEncoderForFormat(format) != null;
     }
 }
@@ -1,158 +1,339 @@
 package eu.mrogalski.saidit;
 
-import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
-public class AudioMemory {
+/**
+ * Rolling in-memory history of captured PCM audio.
+ * Implementations differ only in where and how the bytes live (Java heap, shared memory or compressed).
+ * An eviction listener, when set, gets every chunk of history right before it is overwritten.
+ * A {@link Snapshot} reads the history without holding the memory lock, so long dumps never stall capture.
+ * Bytes have absolute positions counted from the first byte ever filled; an {@link AudioTimeline}
+ * maps them to capture times.
+ */
+public abstract class AudioMemory {
     private static final String TAG = AudioMemory.class.getSimpleName();
 
-    private final LinkedList<byte[]> filled = new LinkedList<byte[]>();
-    private final LinkedList<byte[]> free = new LinkedList<byte[]>();
-
-    private long fillingStartUptimeMillis;
-    private boolean filling = false;
-    private boolean currentWasFilled = false;
-    private byte[] current = null;
-    private int offset = 0;
     static final int CHUNK_SIZE = 1920000; // 20 seconds of 48kHz wav (single channel, 16-bit samples) (1875 kB)
 
+    /**
+     * Creates the memory backend selected in the settings.
+     * @param offHeap true to keep the history in shared memory outside of the Java heap
+     * @param compressed true to keep the history losslessly compressed on the heap (takes precedence over offHeap)
+     */
+    public static AudioMemory create(boolean offHeap, boolean compressed) {
+        if (compressed) {
+            return new CompressedAudioMemory();
+        }
+        return offHeap ? new DirectAudioMemory() : new HeapAudioMemory();
+    }
+
+    public interface Consumer {
+        public int consume(byte[] array, int offset, int count) throws IOException;
+    }
+
+    public interface EvictionListener {
+        /**
+         * @param position Absolute position of array[offset]
+         */
+        public void evicted(byte[] array, int offset, int count, long position) throws IOException;
+    }
+
+    public static class Stats {
+        public int filled; // taken
+        public int total;
+        public int estimation;
+        public boolean overwriting; // currentWasFilled;
+    }
+
     /**
      * Attempts to allocate the requested memory size.
      * @param sizeToEnsure Target memory size in bytes
      * @return true if allocation succeeded, false if OutOfMemoryError occurred
      */
-    synchronized public boolean allocate(long sizeToEnsure) {
-        try {
-            long currentSize = getAllocatedMemorySize();
-            while(currentSize < sizeToEnsure) {
-                currentSize += CHUNK_SIZE;
-                free.addLast(new byte[CHUNK_SIZE]);
-            }
-            while(!free.isEmpty() && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
-                currentSize -= CHUNK_SIZE;
-                free.removeLast();
-            }
-            while(!filled.isEmpty() && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
-                currentSize -= CHUNK_SIZE;
-                filled.removeFirst();
-            }
-            if((current != null) && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
-                //currentSize -= CHUNK_SIZE;
-                current = null;
-                offset = 0;
-                currentWasFilled = false;
-            }
-            System.gc();
-            Log.d(TAG, "Memory allocation succeeded for " + (sizeToEnsure / (1024 * 1024)) + " MB");
-            return true;
-        } catch (OutOfMemoryError e) {
-            Log.e(TAG, "OutOfMemoryError during allocation of " + (sizeToEnsure / (1024 * 1024)) + " MB", e);
-            // Clear as much as we can
-            free.clear();
-            filled.clear();
-            current = null;
-            System.gc();
-            return false;
+    public abstract boolean allocate(long sizeToEnsure);
+
+    public abstract long getAllocatedMemorySize();
+
+    /**
+     * Feeds the buffered audio, oldest first, to the given consumer.
+     * @param skipBytes Number of the oldest bytes to leave out
+     */
+    public abstract void read(int skipBytes, Consumer reader) throws IOException;
+
+    public abstract int countFilled();
+
+    /**
+     * Takes a consistent view of all buffered audio. It must be closed once read.
+     */
+    public abstract Snapshot snapshot();
+
+    /**
+     * Lets the filler write the next block of audio straight into the buffer.
+     * The filler returns the number of bytes it actually produced.
+     */
+    public abstract void fill(Consumer filler) throws IOException;
+
+    public abstract Stats getStats(int fillRate);
+
+    private long endPosition = 0; // absolute position right after the newest byte
+    private volatile AudioTimeline timeline;
+
+    /**
+     * Sets the timeline the capture times of the filled audio are recorded in.
+     * It is trimmed along with the history.
+     */
+    public void setTimeline(AudioTimeline timeline) {
+        this.timeline = timeline;
+    }
+
+    public AudioTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Gets the absolute position right after the newest byte; countFilled() bytes before it are held.
+     */
+    public synchronized long getEndPosition() {
+        return endPosition;
+    }
+
+    /**
+     * Called by implementations, with the memory locked, after adding count bytes of audio.
+     */
+    protected void filled(int count) {
+        endPosition += count;
+        final AudioTimeline timeline = this.timeline;
+        if (timeline != null) {
+            timeline.trim(endPosition - countFilled());
         }
     }
 
-    synchronized public long getAllocatedMemorySize() {
-        return (free.size() + filled.size() + (current == null ? 0 : 1)) * CHUNK_SIZE;
+    private volatile EvictionListener evictionListener;
+
+    /**
+     * Sets the listener that gets the oldest audio right before it is overwritten, or null for none.
+     * It is called on the filling thread while the memory is locked, so it must not block.
+     */
+    public void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
     }
 
-    public interface Consumer {
-        public int consume(byte[] array, int offset, int count) throws IOException;
+    protected boolean hasEvictionListener() {
+        return evictionListener != null;
     }
 
-    private int skipAndFeed(int bytesToSkip, byte[] arr, int offset, int length, Consumer consumer)  throws IOException {
-        if(bytesToSkip >= length) {
-            return length;
-        } else if(bytesToSkip > 0) {
-            consumer.consume(arr, offset + bytesToSkip, length - bytesToSkip);
-            return bytesToSkip;
+    /**
+     * Passes audio that is about to be overwritten to the eviction listener.
+     */
+    protected void evict(long position, byte[] array, int offset, int count) {
+        final EvictionListener listener = evictionListener;
+        if (listener == null) return;
+        try {
+            listener.evicted(array, offset, count, position);
+        } catch (IOException e) {
+            Log.e(TAG, "Eviction listener failed", e);
         }
-        consumer.consume(arr, offset, length);
-        return 0;
     }
 
-    public void read(int skipBytes, Consumer reader)  throws IOException {
-        synchronized (this) {
-            if(!filling && current != null && currentWasFilled) {
-                skipBytes -= skipAndFeed(skipBytes, current, offset, current.length - offset, reader);
+    /**
+     * Number of the oldest bytes returned by read() that were already passed to the eviction listener.
+     * A whole chunk is evicted before its first byte is overwritten, so its rest stays readable for a while.
+     */
+    public abstract int countEvictedStillHeld();
+
+    /**
+     * The buffered audio at one moment, read without holding the memory lock.
+     * The chunks it reads are pinned: until the snapshot is closed the memory writes new audio into
+     * fresh chunks instead of overwriting them. When no fresh chunk can be allocated a pinned chunk is
+     * taken back, and reading the snapshot fails rather than returning newer audio.
+     */
+    public static final class Snapshot implements Closeable {
+        private final AudioMemory memory;
+        private final List<Piece> pieces = new ArrayList<Piece>();
+        private final long endPosition;
+        private int length = 0;
+        private int evictedStillHeld;
+        private boolean closed = false;
+
+        /**
+         * Called with the memory locked.
+         */
+        Snapshot(AudioMemory memory, int evictedStillHeld) {
+            this.memory = memory;
+            this.evictedStillHeld = evictedStillHeld;
+            this.endPosition = memory.endPosition;
+        }
+
+        /**
+         * Appends a piece, pinning its chunk. Called with the memory locked.
+         */
+        void add(Piece piece) {
+            if (piece.length <= 0) return;
+            if (piece.chunk != null) {
+                memory.pin(piece.chunk);
             }
-            for(byte[] arr : filled) {
-                skipBytes -= skipAndFeed(skipBytes, arr, 0, arr.length, reader);
+            pieces.add(piece);
+            length += piece.length;
+        }
+
+        void setEvictedStillHeld(int evictedStillHeld) {
+            this.evictedStillHeld = evictedStillHeld;
+        }
+
+        /**
+         * Number of bytes in the snapshot.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * What countEvictedStillHeld() returned when the snapshot was taken.
+         */
+        public int getEvictedStillHeld() {
+            return evictedStillHeld;
+        }
+
+        /**
+         * Absolute position right after the newest byte in the snapshot.
+         */
+        public long getEndPosition() {
+            return endPosition;
+        }
+
+        /**
+         * Timeline of the memory the snapshot was taken from, null if it has none.
+         */
+        public AudioTimeline getTimeline() {
+            return memory.getTimeline();
+        }
+
+        /**
+         * Feeds the audio, oldest first, to the given consumer.
+         * @param skipBytes Number of the oldest bytes to leave out
+         */
+        public void read(int skipBytes, Consumer reader) throws IOException {
+            read(skipBytes, Integer.MAX_VALUE, reader);
+        }
+
+        /**
+         * Feeds at most length bytes, oldest first, to the given consumer. Pieces before or after them are not touched.
+         * @param skipBytes Number of the oldest bytes to leave out
+         */
+        public void read(int skipBytes, int length, Consumer reader) throws IOException {
+            for (Piece piece : pieces) {
+                if (length <= 0) break;
+                if (skipBytes >= piece.length) {
+                    skipBytes -= piece.length;
+                    continue;
+                }
+                final int from = Math.max(0, skipBytes);
+                final int count = Math.min(length, piece.length - from);
+                piece.read(from, count, reader);
+                length -= count;
+                skipBytes = 0;
+                if (piece.chunk != null && memory.isRevoked(piece.chunk)) {
+                    throw new IOException("Audio memory ran out, snapshot was overwritten");
+                }
             }
-            if(current != null && offset > 0) {
-                skipAndFeed(skipBytes, current, 0, offset, reader);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            for (Piece piece : pieces) {
+                if (piece.chunk != null) {
+                    memory.unpin(piece.chunk);
+                }
             }
         }
     }
 
-    public int countFilled() {
-        int sum = 0;
-        synchronized (this) {
-            if(!filling && current != null && currentWasFilled) {
-                sum += current.length - offset;
-            }
-            for(byte[] arr : filled) {
-                sum += arr.length;
-            }
-            if(current != null && offset > 0) {
-                sum += offset;
-            }
+    /**
+     * Part of a snapshot, read out of a pinned chunk, or out of data nobody overwrites when chunk is null.
+     */
+    protected abstract static class Piece {
+        final Object chunk;
+        final int length;
+
+        protected Piece(Object chunk, int length) {
+            this.chunk = chunk;
+            this.length = length;
         }
-        return sum;
+
+        /**
+         * Feeds count bytes of the piece, from the given offset within it, to the consumer.
+         */
+        protected abstract void read(int skipBytes, int count, Consumer reader) throws IOException;
     }
 
-    public void fill(Consumer filler) throws IOException {
-        synchronized (this) {
-            if(current == null) {
-                if(free.isEmpty()) {
-                    if(filled.isEmpty()) return;
-                    currentWasFilled = true;
-                    current = filled.removeFirst();
-                } else {
-                    currentWasFilled = false;
-                    current = free.removeFirst();
-                }
-                offset = 0;
-            }
-            filling = true;
-            fillingStartUptimeMillis = SystemClock.uptimeMillis();
+    protected static class ArrayPiece extends Piece {
+        private final byte[] array;
+        private final int offset;
+
+        protected ArrayPiece(Object chunk, byte[] array, int offset, int length) {
+            super(chunk, length);
+            this.array = array;
+            this.offset = offset;
         }
 
-        final int read = filler.consume(current, offset, current.length - offset);
+        @Override
+        protected void read(int skipBytes, int count, Consumer reader) throws IOException {
+            reader.consume(array, offset + skipBytes, count);
+        }
+    }
 
-        synchronized (this) {
-            if(offset + read >= current.length) {
-                filled.addLast(current);
-                current = null;
-                offset = 0;
-            } else {
-                offset += read;
-            }
-            filling = false;
+    private final IdentityHashMap<Object, Integer> pins = new IdentityHashMap<Object, Integer>();
+    private final Set<Object> revoked = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    private synchronized void pin(Object chunk) {
+        final Integer count = pins.get(chunk);
+        pins.put(chunk, count == null ? 1 : count + 1);
+    }
+
+    private synchronized void unpin(Object chunk) {
+        final Integer count = pins.get(chunk);
+        if (count == null) return;
+        if (count > 1) {
+            pins.put(chunk, count - 1);
+        } else {
+            pins.remove(chunk);
+            revoked.remove(chunk);
         }
     }
 
-    public static class Stats {
-        public int filled; // taken
-        public int total;
-        public int estimation;
-        public boolean overwriting; // currentWasFilled;
+    /**
+     * Whether an open snapshot still reads the chunk, so it must not be overwritten.
+     */
+    protected synchronized boolean isPinned(Object chunk) {
+        return pins.containsKey(chunk) && !revoked.contains(chunk);
     }
 
-    public synchronized Stats getStats(int fillRate) {
-        final Stats stats = new Stats();
-        stats.filled = filled.size() * CHUNK_SIZE + (current == null ? 0 : currentWasFilled ? CHUNK_SIZE : offset);
-        stats.total = (filled.size() + free.size() + (current == null ? 0 : 1)) * CHUNK_SIZE;
-        stats.estimation = (int) (filling ? (SystemClock.uptimeMillis() - fillingStartUptimeMillis) * fillRate / 1000 : 0);
-        stats.overwriting = currentWasFilled;
-        return stats;
+    /**
+     * Whether an open snapshot still holds the chunk, even if it was taken back.
+     */
+    protected synchronized boolean isHeld(Object chunk) {
+        return pins.containsKey(chunk);
     }
 
+    /**
+     * Takes a pinned chunk back, e.g. when there is no memory for a fresh one; snapshots reading it fail.
+     */
+    protected synchronized void revoke(Object chunk) {
+        Log.w(TAG, "Overwriting audio pinned by a snapshot");
+        revoked.add(chunk);
+    }
+
+    private synchronized boolean isRevoked(Object chunk) {
+        return revoked.contains(chunk);
+    }
 }
@@ -0,0 +1,136 @@
+package eu.mrogalski.saidit;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer byte ring used to hand captured audio
+ * from the audio thread to the I/O worker.
+ * The producer never blocks: a block that does not fit is dropped and counted as an overrun.
+ * Positions are absolute byte counters, so the consumer can tell exactly which bytes it is looking at.
+ */
+public class AudioRingBuffer {
+
+    public interface Consumer {
+        /**
+         * @param position Absolute ring position of array[offset]
+         */
+        public void consume(byte[] array, int offset, int count, long position) throws IOException;
+    }
+
+    private final byte[] buffer;
+    private final int mask;
+
+    // Written only by the producer
+    private final AtomicLong writePosition = new AtomicLong();
+    // Written only by the consumer
+    private final AtomicLong readPosition = new AtomicLong();
+
+    // Statistics, written only by the producer
+    private volatile long overruns;
+    private volatile long droppedBytes;
+    private volatile long highWaterMark;
+
+    /**
+     * @param minCapacity Minimum capacity in bytes; rounded up to a power of two
+     */
+    public AudioRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Copies a block into the ring. Called only from the producer thread.
+     * @return false if there was not enough free space and the block was dropped
+     */
+    public boolean offer(byte[] data, int offset, int length) {
+        final long write = writePosition.get();
+        final long used = write - readPosition.get();
+        if (length > buffer.length - used) {
+            overruns = overruns + 1;
+            droppedBytes = droppedBytes + length;
+            return false;
+        }
+
+        final int index = (int) (write & mask);
+        final int first = Math.min(length, buffer.length - index);
+        System.arraycopy(data, offset, buffer, index, first);
+        if (first < length) {
+            System.arraycopy(data, offset + first, buffer, 0, length - first);
+        }
+        // Publish the data only after it has been copied
+        writePosition.lazySet(write + length);
+
+        if (used + length > highWaterMark) {
+            highWaterMark = used + length;
+        }
+        return true;
+    }
+
+    /**
+     * Feeds all currently available bytes to the consumer. Called only from the consumer thread.
+     * @return Number of bytes consumed
+     */
+    public int drain(Consumer consumer) throws IOException {
+        final long read = readPosition.get();
+        final long write = writePosition.get();
+        final int available = (int) (write - read);
+        if (available == 0) {
+            return 0;
+        }
+
+        final int index = (int) (read & mask);
+        final int first = Math.min(available, buffer.length - index);
+        try {
+            consumer.consume(buffer, index, first, read);
+            if (first < available) {
+                consumer.consume(buffer, 0, available - first, read + first);
+            }
+        } finally {
+            // Release the space even if the consumer failed, so that capture can go on
+            readPosition.lazySet(write);
+        }
+        return available;
+    }
+
+    /**
+     * Gets the absolute position right after the last byte offered so far.
+     */
+    public long getWritePosition() {
+        return writePosition.get();
+    }
+
+    public boolean isEmpty() {
+        return writePosition.get() == readPosition.get();
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Number of bytes waiting for the consumer.
+     */
+    public int getQueuedBytes() {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    /**
+     * Number of blocks dropped because the consumer fell behind.
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Largest number of bytes ever queued at once.
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+}
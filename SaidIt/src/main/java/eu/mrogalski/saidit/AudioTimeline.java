@@ -0,0 +1,249 @@
+package eu.mrogalski.saidit;
+
+import android.os.SystemClock;
+
+/**
+ * Maps absolute byte positions of a PCM stream to the time they were captured.
+ * Anchors (position, SystemClock.elapsedRealtimeNanos(), wall clock) are kept at every anchor interval
+ * (chunk or segment boundary) and wherever the audio is not continuous, e.g. after dropped reads.
+ * Times in between follow from the byte rate, so lookups are exact to the sample without scanning audio.
+ * Monotonic time is authoritative; the wall clock of each anchor is what it read when the anchor was taken.
+ */
+public class AudioTimeline {
+    // Blocks starting further than this from where the previous one ended leave a gap
+    static final long GAP_TOLERANCE_NANOS = 50000000L; // 50 ms
+
+    private final int bytesPerSecond;
+    private final int frameSize;
+    private final long anchorInterval;
+
+    // Anchors in position order, oldest at index first
+    private long[] positions = new long[64];
+    private long[] elapsedNanos = new long[64];
+    private long[] wallMillis = new long[64];
+    private int first = 0;
+    private int count = 0;
+    private long endPosition = -1; // right after the last appended byte
+    private int gapCount = 0;
+
+    /**
+     * @param bytesPerSecond Byte rate of the stream
+     * @param frameSize Bytes per sample frame; positions found by time are aligned to it
+     * @param anchorInterval Anchor every this many bytes, or 0 to anchor only where marked or discontinuous
+     */
+    public AudioTimeline(int bytesPerSecond, int frameSize, long anchorInterval) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.frameSize = Math.max(1, frameSize);
+        this.anchorInterval = anchorInterval;
+    }
+
+    /**
+     * Records a block of captured audio.
+     * @param startElapsedNanos SystemClock.elapsedRealtimeNanos() when the first byte was captured
+     * @param startWallMillis Wall-clock time of the first byte
+     */
+    public synchronized void append(long position, int length, long startElapsedNanos, long startWallMillis) {
+        if (count == 0 || position != endPosition
+                || Math.abs(startElapsedNanos - getElapsedNanos(position)) > GAP_TOLERANCE_NANOS) {
+            if (count > 0) {
+                gapCount++;
+            }
+            mark(position, startElapsedNanos, startWallMillis);
+        } else if (anchorInterval > 0) {
+            // Re-anchor on the boundaries inside the block, so that clock drift never adds up
+            final long boundary = (position + length) / anchorInterval * anchorInterval;
+            if (boundary > position && boundary > positions[index(count - 1)]) {
+                final long nanos = nanosFor(boundary - position);
+                mark(boundary, startElapsedNanos + nanos, startWallMillis + nanos / 1000000);
+            }
+        }
+        endPosition = position + length;
+    }
+
+    /**
+     * Adds an anchor, e.g. at the start of a segment. Positions must not go backwards.
+     */
+    public synchronized void mark(long position, long elapsedNanos, long wallMillis) {
+        if (count > 0 && positions[index(count - 1)] >= position) {
+            // Same position (or an older one after a reset) - the newer measurement wins
+            while (count > 0 && positions[index(count - 1)] >= position) {
+                count--;
+            }
+        }
+        if (count == positions.length) {
+            grow();
+        }
+        final int i = index(count);
+        positions[i] = position;
+        this.elapsedNanos[i] = elapsedNanos;
+        this.wallMillis[i] = wallMillis;
+        count++;
+        endPosition = Math.max(endPosition, position);
+    }
+
+    /**
+     * Drops the anchors no longer needed for positions from the given one on.
+     */
+    public synchronized void trim(long oldestPosition) {
+        while (count > 1 && positions[index(1)] <= oldestPosition) {
+            first = index(1);
+            count--;
+        }
+    }
+
+    public synchronized void clear() {
+        first = 0;
+        count = 0;
+        endPosition = -1;
+    }
+
+    /**
+     * Gets the SystemClock.elapsedRealtimeNanos() at which the byte at the given position was captured.
+     * @return The time, or -1 if nothing was recorded
+     */
+    public synchronized long getElapsedNanos(long position) {
+        if (count == 0) return -1;
+        final int i = index(find(position));
+        return elapsedNanos[i] + nanosFor(position - positions[i]);
+    }
+
+    /**
+     * Gets the wall-clock time at which the byte at the given position was captured.
+     * @return The time in milliseconds, or -1 if nothing was recorded
+     */
+    public synchronized long getWallMillis(long position) {
+        if (count == 0) return -1;
+        final int i = index(find(position));
+        return wallMillis[i] + nanosFor(position - positions[i]) / 1000000;
+    }
+
+    /**
+     * Finds the position of the audio captured at the given SystemClock.elapsedRealtimeNanos().
+     * A time that falls into a gap maps to the first byte after it.
+     * @return The frame-aligned position, or -1 if nothing was recorded
+     */
+    public synchronized long findPosition(long elapsedNanos) {
+        if (count == 0) return -1;
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (this.elapsedNanos[index(mid)] <= elapsedNanos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        final int i = index(low);
+        return limit(low, positions[i] + bytesFor(elapsedNanos - this.elapsedNanos[i]));
+    }
+
+    /**
+     * Finds the position of the audio captured at the given wall-clock time, see {@link #findPosition(long)}.
+     * Assumes the wall clock was not set back while the audio was captured.
+     */
+    public synchronized long findPositionAtWallClock(long wallMillis) {
+        if (count == 0) return -1;
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (this.wallMillis[index(mid)] <= wallMillis) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        final int i = index(low);
+        return limit(low, positions[i] + bytesFor((wallMillis - this.wallMillis[i]) * 1000000));
+    }
+
+    /**
+     * Gets the capture time of a block that continues the stream at the given position, or of one that
+     * ends right now when nothing was recorded yet.
+     * @return {elapsedRealtimeNanos, wall-clock millis}
+     */
+    public synchronized long[] continuation(long position, int length) {
+        if (count == 0) {
+            final long nanos = nanosFor(length);
+            return new long[] {SystemClock.elapsedRealtimeNanos() - nanos, System.currentTimeMillis() - nanos / 1000000};
+        }
+        return new long[] {getElapsedNanos(position), getWallMillis(position)};
+    }
+
+    /**
+     * Number of discontinuities recorded since the timeline was created.
+     */
+    public synchronized int getGapCount() {
+        return gapCount;
+    }
+
+    /**
+     * Whether a block captured at startElapsedNanos directly follows length bytes captured at previousElapsedNanos.
+     */
+    public boolean follows(long previousElapsedNanos, long length, long startElapsedNanos) {
+        return Math.abs(startElapsedNanos - previousElapsedNanos - nanosFor(length)) <= GAP_TOLERANCE_NANOS;
+    }
+
+    /**
+     * Duration of the given number of bytes.
+     */
+    public long nanosFor(long bytes) {
+        return bytes * 1000000000L / bytesPerSecond;
+    }
+
+    private long bytesFor(long nanos) {
+        final long bytes = nanos * bytesPerSecond / 1000000000L;
+        return bytes - bytes % frameSize;
+    }
+
+    /**
+     * Keeps a position found from anchor i within the stream and out of the gap before the next anchor.
+     */
+    private long limit(int i, long position) {
+        position = Math.max(positions[index(0)], position);
+        if (i + 1 < count) {
+            position = Math.min(position, positions[index(i + 1)]);
+        } else {
+            position = Math.min(position, endPosition);
+        }
+        return position;
+    }
+
+    /**
+     * Gets the number (not index) of the last anchor at or before the position, or 0 for earlier positions.
+     */
+    private int find(long position) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (positions[index(mid)] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private int index(int number) {
+        return (first + number) % positions.length;
+    }
+
+    private void grow() {
+        final int capacity = positions.length * 2;
+        final long[] newPositions = new long[capacity];
+        final long[] newElapsed = new long[capacity];
+        final long[] newWall = new long[capacity];
+        for (int n = 0; n < count; n++) {
+            newPositions[n] = positions[index(n)];
+            newElapsed[n] = elapsedNanos[index(n)];
+            newWall[n] = wallMillis[index(n)];
+        }
+        positions = newPositions;
+        elapsedNanos = newElapsed;
+        wallMillis = newWall;
+        first = 0;
+    }
+}
@@ -0,0 +1,113 @@
+package eu.mrogalski.saidit;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Worker thread that drains captured audio from an {@link AudioRingBuffer} and hands it to slow
+ * consumers (file writers, disk buffers, analysis), so that the audio thread only has to read AudioRecord.
+ * Tasks posted with {@link #post(Runnable)} run after all audio offered before them has been consumed.
+ */
+public class AudioWorker implements Runnable {
+    private static final String TAG = AudioWorker.class.getSimpleName();
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AudioRingBuffer ring;
+    private final AudioRingBuffer.Consumer consumer;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public AudioWorker(String name, int ringCapacity, AudioRingBuffer.Consumer consumer) {
+        this.ring = new AudioRingBuffer(ringCapacity);
+        this.consumer = consumer;
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a captured block. Never blocks; called only from the audio thread.
+     * @return false if the ring was full and the block was dropped
+     */
+    public boolean offer(byte[] data, int offset, int length) {
+        final boolean accepted = ring.offer(data, offset, length);
+        if (!accepted) {
+            Log.w(TAG, "Overrun - dropped " + length + " bytes (" + ring.getOverruns() + " overruns so far)");
+        }
+        LockSupport.unpark(thread);
+        return accepted;
+    }
+
+    /**
+     * Runs the task on the worker thread once everything offered so far has been consumed.
+     */
+    public void post(Runnable task) {
+        tasks.add(task);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Consumes the remaining audio and tasks, then stops the thread.
+     */
+    public void quit() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            // Poll before draining - whatever was offered before the task was posted gets drained first
+            final Runnable task = tasks.poll();
+            drain();
+            if (task != null) {
+                runTask(task);
+                continue;
+            }
+            if (!ring.isEmpty()) {
+                continue;
+            }
+            if (!running) {
+                break;
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+    }
+
+    // A failing consumer or task loses its own audio only - the worker keeps running, or nothing would be stored again
+    private void drain() {
+        try {
+            ring.drain(consumer);
+        } catch (IOException e) {
+            Log.e(TAG, "Error while consuming audio", e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unexpected error while consuming audio", e);
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unexpected error in worker task", e);
+        }
+    }
+
+    /**
+     * Gets the absolute ring position right after the last block offered so far.
+     */
+    public long getWritePosition() {
+        return ring.getWritePosition();
+    }
+
+    public AudioRingBuffer getRing() {
+        return ring;
+    }
+}
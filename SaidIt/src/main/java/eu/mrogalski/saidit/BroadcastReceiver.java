@@ -18,13 +18,18 @@ public class BroadcastReceiver extends android.content.BroadcastReceiver {
     public static final String ACTION_DISABLE_LISTENING = "eu.mrogalski.saidit.action.DISABLE_LISTENING";
     public static final String ACTION_SET_MEMORY_MODE = "eu.mrogalski.saidit.action.SET_MEMORY_MODE";
     public static final String ACTION_SET_DISK_MODE = "eu.mrogalski.saidit.action.SET_DISK_MODE";
+    public static final String ACTION_SET_MAPPED_MODE = "eu.mrogalski.saidit.action.SET_MAPPED_MODE";
+    public static final String ACTION_SET_HYBRID_MODE = "eu.mrogalski.saidit.action.SET_HYBRID_MODE";
     public static final String ACTION_SET_MEMORY_SIZE = "eu.mrogalski.saidit.action.SET_MEMORY_SIZE";
     public static final String ACTION_DUMP_RECORDING = "eu.mrogalski.saidit.action.DUMP_RECORDING";
+    public static final String ACTION_EXTRACT_RANGE = "eu.mrogalski.saidit.action.EXTRACT_RANGE";
 
     // Intent extras
     public static final String EXTRA_MEMORY_SIZE_MB = "memory_size_mb";
     public static final String EXTRA_PREPEND_SECONDS = "prepend_seconds";
     public static final String EXTRA_FILENAME = "filename";
+    public static final String EXTRA_START_TIME = "start_time";
+    public static final String EXTRA_END_TIME = "end_time";
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -114,6 +119,16 @@ public class BroadcastReceiver extends android.content.BroadcastReceiver {
                 Log.d(TAG, "Set storage mode to BATCH_TO_DISK");
                 break;
 
+            case ACTION_SET_MAPPED_MODE:
+                service.setStorageMode(StorageMode.MAPPED_FILE);
+                Log.d(TAG, "Set storage mode to MAPPED_FILE");
+                break;
+
+            case ACTION_SET_HYBRID_MODE:
+                service.setStorageMode(StorageMode.HYBRID);
+                Log.d(TAG, "Set storage mode to HYBRID");
+                break;
+
             case ACTION_SET_MEMORY_SIZE:
                 int memorySizeMB = intent.getIntExtra(EXTRA_MEMORY_SIZE_MB, 100);
                 // Validate memory size (10 MB to 10 GB)
@@ -134,6 +149,19 @@ public class BroadcastReceiver extends android.content.BroadcastReceiver {
                 Log.d(TAG, "Dumped recording");
                 break;
 
+            case ACTION_EXTRACT_RANGE:
+                long startTime = intent.getLongExtra(EXTRA_START_TIME, -1);
+                long endTime = intent.getLongExtra(EXTRA_END_TIME, System.currentTimeMillis());
+                if (startTime < 0 || endTime <= startTime) {
+                    Log.w(TAG, "Invalid range: " + startTime + " - " + endTime);
+                    break;
+                }
+                String rangeFilename = intent.getStringExtra(EXTRA_FILENAME);
+                if (rangeFilename == null) rangeFilename = "";
+                service.extractRange(startTime, endTime, null, rangeFilename);
+                Log.d(TAG, "Extracted range " + startTime + " - " + endTime);
+                break;
+
             default:
                 Log.w(TAG, "Unknown action: " + action);
                 break;
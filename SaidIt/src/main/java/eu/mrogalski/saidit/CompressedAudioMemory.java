@@ -0,0 +1,233 @@
+package eu.mrogalski.saidit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Keeps the history losslessly compressed on the Java heap.
+ * Audio is captured into a single raw CHUNK_SIZE array; once that is full it is sealed: encoded with
+ * {@link LosslessAudioCodec} and kept as an exactly sized array. The memory budget applies to the
+ * compressed data, so the same budget holds a longer history. Sealed chunks are decoded on demand in read().
+ */
+public class CompressedAudioMemory extends AudioMemory {
+    private static final String TAG = CompressedAudioMemory.class.getSimpleName();
+
+    private final LinkedList<byte[]> sealed = new LinkedList<byte[]>();
+    private final LosslessAudioCodec codec = new LosslessAudioCodec();
+
+    private long budget = 0;
+    private long sealedBytes = 0; // compressed size of all sealed chunks
+    private boolean overwriting = false;
+
+    private byte[] current = null;
+    private int offset = 0;
+    // Encoder output when sealing, decoder output when reading
+    private byte[] scratch = null;
+
+    private long fillingStartUptimeMillis;
+    private boolean filling = false;
+
+    @Override
+    synchronized public boolean allocate(long sizeToEnsure) {
+        budget = sizeToEnsure;
+        if (sizeToEnsure <= 0) {
+            sealed.clear();
+            sealedBytes = 0;
+            current = null;
+            scratch = null;
+            offset = 0;
+            overwriting = false;
+            return true;
+        }
+        try {
+            if (current == null) {
+                current = new byte[CHUNK_SIZE];
+                offset = 0;
+            }
+            if (scratch == null) {
+                scratch = new byte[LosslessAudioCodec.maxEncodedSize(CHUNK_SIZE)];
+            }
+            trim();
+            Log.d(TAG, "Compressed memory budget set to " + (sizeToEnsure / (1024 * 1024)) + " MB");
+            return true;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemoryError during allocation of " + (sizeToEnsure / (1024 * 1024)) + " MB", e);
+            sealed.clear();
+            sealedBytes = 0;
+            current = null;
+            scratch = null;
+            offset = 0;
+            System.gc();
+            return false;
+        }
+    }
+
+    /**
+     * Drops the oldest sealed chunks until the history fits the budget, passing them to the eviction listener.
+     */
+    private void trim() {
+        final long fixed = (current == null ? 0 : current.length) + (scratch == null ? 0 : scratch.length);
+        while (!sealed.isEmpty() && fixed + sealedBytes > budget) {
+            final long position = getEndPosition() - countFilled();
+            final byte[] block = sealed.removeFirst();
+            sealedBytes -= block.length;
+            overwriting = true;
+            if (hasEvictionListener()) {
+                evict(position, scratch, 0, codec.decode(block, 0, scratch, 0));
+            }
+        }
+    }
+
+    @Override
+    synchronized public long getAllocatedMemorySize() {
+        return current == null ? 0 : budget;
+    }
+
+    @Override
+    public void read(int skipBytes, Consumer reader) throws IOException {
+        synchronized (this) {
+            for (byte[] block : sealed) {
+                if (skipBytes >= CHUNK_SIZE) {
+                    skipBytes -= CHUNK_SIZE;
+                    continue;
+                }
+                final int length = codec.decode(block, 0, scratch, 0);
+                reader.consume(scratch, skipBytes, length - skipBytes);
+                skipBytes = 0;
+            }
+            if (current != null && offset > skipBytes) {
+                reader.consume(current, skipBytes, offset - skipBytes);
+            }
+        }
+    }
+
+    @Override
+    synchronized public int countFilled() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) sealed.size() * CHUNK_SIZE + offset);
+    }
+
+    @Override
+    public synchronized Snapshot snapshot() {
+        final Snapshot snapshot = new Snapshot(this, 0);
+        final Decoder decoder = new Decoder();
+        for (byte[] block : sealed) {
+            // Sealed blocks are never modified, only dropped - no need to pin them
+            snapshot.add(new EncodedPiece(decoder, block));
+        }
+        if (current != null && offset > 0) {
+            snapshot.add(new ArrayPiece(current, current, 0, offset));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Decoding state shared by the pieces of one snapshot, allocated when first read.
+     */
+    private static class Decoder {
+        LosslessAudioCodec codec;
+        byte[] pcm;
+
+        int decode(byte[] block) {
+            if (codec == null) {
+                codec = new LosslessAudioCodec();
+                pcm = new byte[CHUNK_SIZE];
+            }
+            return codec.decode(block, 0, pcm, 0);
+        }
+    }
+
+    private static class EncodedPiece extends Piece {
+        private final Decoder decoder;
+        private final byte[] block;
+
+        EncodedPiece(Decoder decoder, byte[] block) {
+            super(null, CHUNK_SIZE);
+            this.decoder = decoder;
+            this.block = block;
+        }
+
+        @Override
+        protected void read(int skipBytes, int count, Consumer reader) throws IOException {
+            final int length = decoder.decode(block);
+            if (skipBytes < length) {
+                reader.consume(decoder.pcm, skipBytes, Math.min(count, length - skipBytes));
+            }
+        }
+    }
+
+    @Override
+    public void fill(Consumer filler) throws IOException {
+        synchronized (this) {
+            if (current == null) return;
+            filling = true;
+            fillingStartUptimeMillis = SystemClock.uptimeMillis();
+        }
+
+        final int read = filler.consume(current, offset, current.length - offset);
+
+        synchronized (this) {
+            filling = false;
+            if (current == null) return; // released meanwhile
+            offset += Math.max(0, read);
+            filled(Math.max(0, read));
+            if (offset >= current.length) {
+                seal();
+            }
+        }
+    }
+
+    private void seal() {
+        try {
+            final int size = codec.encode(current, 0, current.length, scratch, 0);
+            final byte[] block = new byte[size];
+            System.arraycopy(scratch, 0, block, 0, size);
+            sealed.addLast(block);
+            sealedBytes += size;
+            if (isPinned(current)) {
+                // The snapshot keeps the old array until it is closed
+                final byte[] pinned = current;
+                try {
+                    current = new byte[CHUNK_SIZE];
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "OutOfMemoryError replacing a chunk pinned by a snapshot", e);
+                    revoke(pinned);
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemoryError while sealing a chunk - dropping the oldest history", e);
+            if (!sealed.isEmpty()) {
+                sealedBytes -= sealed.removeFirst().length;
+            }
+        }
+        offset = 0;
+        trim();
+    }
+
+    /**
+     * Average compressed size as a fraction of the raw size, 1 until the first chunk is sealed.
+     */
+    public synchronized float getCompressionRatio() {
+        return sealed.isEmpty() ? 1 : (float) sealedBytes / ((long) sealed.size() * CHUNK_SIZE);
+    }
+
+    @Override
+    public int countEvictedStillHeld() {
+        return 0; // chunks are dropped whole
+    }
+
+    @Override
+    public synchronized Stats getStats(int fillRate) {
+        final Stats stats = new Stats();
+        stats.filled = countFilled();
+        // Raw capacity estimated from the compression achieved so far
+        final long compressedCapacity = Math.max(0, budget - (current == null ? 0 : CHUNK_SIZE) - (scratch == null ? 0 : scratch.length));
+        final long rawCapacity = (current == null ? 0 : CHUNK_SIZE) + (long) (compressedCapacity / getCompressionRatio());
+        stats.total = (int) Math.min(Integer.MAX_VALUE, Math.max(rawCapacity, stats.filled));
+        stats.estimation = (int) (filling ? (SystemClock.uptimeMillis() - fillingStartUptimeMillis) * fillRate / 1000 : 0);
+        stats.overwriting = overwriting;
+        return stats;
+    }
+}
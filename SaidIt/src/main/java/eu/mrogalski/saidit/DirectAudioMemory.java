@@ -0,0 +1,300 @@
+package eu.mrogalski.saidit;
+
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the history in chunks of shared memory (ashmem) mapped into the process.
+ * ART allocates direct ByteBuffers on the managed heap, but these mappings are not counted against the
+ * heap limit, so the limit does not cap the history length and the garbage collector never has to scan
+ * or move the audio data. The chunks form a single ring with one write cursor.
+ */
+public class DirectAudioMemory extends AudioMemory {
+    private static final String TAG = DirectAudioMemory.class.getSimpleName();
+
+    // AudioRecord writes into a small heap array that is copied into the ring afterwards
+    private static final int STAGING_SIZE = 64 * 1024; // ~0.7 seconds of 48kHz wav
+
+    private ByteBuffer[] chunks = new ByteBuffer[0];
+    private long capacity = 0;
+    private long writePosition = 0; // position of the next byte in the ring
+    private long filledBytes = 0;
+    private long evictedHeld = 0; // bytes of the evicted chunk at writePosition not overwritten yet
+
+    private final byte[] fillStaging = new byte[STAGING_SIZE];
+    private final byte[] readStaging = new byte[STAGING_SIZE];
+
+    private long fillingStartUptimeMillis;
+    private boolean filling = false;
+
+    @Override
+    synchronized public boolean allocate(long sizeToEnsure) {
+        final int chunkCount = (int) ((sizeToEnsure + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (chunkCount == chunks.length) {
+            return true;
+        }
+        final ByteBuffer[] oldChunks = chunks;
+        final ByteBuffer[] newChunks = new ByteBuffer[chunkCount];
+        final long newCapacity = (long) chunkCount * CHUNK_SIZE;
+        // Keep the newest audio that still fits, moved to the start of the new ring
+        final long keep = Math.min(filledBytes, newCapacity);
+        final long start = ringPosition(writePosition - keep);
+        try {
+            // Old chunks are released as soon as their audio is copied, so a resize never needs both rings at once
+            final long[] kept = new long[oldChunks.length];
+            for (long from = start, counted = 0; counted < keep; ) {
+                final int length = (int) Math.min(keep - counted, CHUNK_SIZE - from % CHUNK_SIZE);
+                kept[(int) (from / CHUNK_SIZE)] += length;
+                from = ringPosition(from + length);
+                counted += length;
+            }
+            for (int i = 0; i < oldChunks.length; i++) {
+                if (kept[i] == 0) {
+                    releaseChunk(oldChunks[i]);
+                    oldChunks[i] = null;
+                }
+            }
+
+            long from = start;
+            long to = 0;
+            while (to < keep) {
+                final int length = (int) Math.min(keep - to,
+                        Math.min(CHUNK_SIZE - from % CHUNK_SIZE, CHUNK_SIZE - to % CHUNK_SIZE));
+                final int fromIndex = (int) (from / CHUNK_SIZE);
+                final int toIndex = (int) (to / CHUNK_SIZE);
+                if (newChunks[toIndex] == null) {
+                    newChunks[toIndex] = allocateChunk();
+                }
+                final ByteBuffer src = oldChunks[fromIndex].duplicate();
+                src.position((int) (from % CHUNK_SIZE));
+                src.limit((int) (from % CHUNK_SIZE) + length);
+                final ByteBuffer dst = newChunks[toIndex].duplicate();
+                dst.position((int) (to % CHUNK_SIZE));
+                dst.put(src);
+                kept[fromIndex] -= length;
+                if (kept[fromIndex] == 0) {
+                    releaseChunk(oldChunks[fromIndex]);
+                    oldChunks[fromIndex] = null;
+                }
+                from = ringPosition(from + length);
+                to += length;
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                if (newChunks[i] == null) {
+                    newChunks[i] = allocateChunk();
+                }
+            }
+
+            chunks = newChunks;
+            capacity = newCapacity;
+            filledBytes = keep;
+            evictedHeld = 0;
+            writePosition = newCapacity == 0 ? 0 : keep % newCapacity;
+            Log.d(TAG, "Shared memory allocation succeeded for " + (sizeToEnsure / (1024 * 1024)) + " MB");
+            return true;
+        } catch (ErrnoException | OutOfMemoryError e) {
+            Log.e(TAG, "Shared memory allocation of " + (sizeToEnsure / (1024 * 1024)) + " MB failed", e);
+            // Part of the history is already released - start over empty
+            for (ByteBuffer chunk : oldChunks) {
+                if (chunk != null) releaseChunk(chunk);
+            }
+            for (ByteBuffer chunk : newChunks) {
+                if (chunk != null) releaseChunk(chunk);
+            }
+            chunks = new ByteBuffer[0];
+            capacity = 0;
+            writePosition = 0;
+            filledBytes = 0;
+            evictedHeld = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Maps a new chunk of shared memory. The mapping outlives the file descriptor, which is closed right away.
+     */
+    private static ByteBuffer allocateChunk() throws ErrnoException {
+        final SharedMemory memory = SharedMemory.create(TAG, CHUNK_SIZE);
+        try {
+            return memory.mapReadWrite();
+        } finally {
+            memory.close();
+        }
+    }
+
+    /**
+     * Unmaps a chunk the ring no longer uses. A chunk a snapshot still holds is left to be unmapped
+     * when the garbage collector drops the buffer, as reading an unmapped chunk would crash.
+     */
+    private void releaseChunk(ByteBuffer chunk) {
+        if (!isHeld(chunk)) {
+            SharedMemory.unmap(chunk);
+        }
+    }
+
+    private long ringPosition(long position) {
+        if (capacity == 0) return 0;
+        position %= capacity;
+        return position < 0 ? position + capacity : position;
+    }
+
+    @Override
+    synchronized public long getAllocatedMemorySize() {
+        return capacity;
+    }
+
+    @Override
+    public void read(int skipBytes, Consumer reader) throws IOException {
+        synchronized (this) {
+            long remaining = filledBytes - Math.max(0, skipBytes);
+            long position = ringPosition(writePosition - filledBytes + Math.max(0, skipBytes));
+            while (remaining > 0) {
+                final int chunkOffset = (int) (position % CHUNK_SIZE);
+                final int length = (int) Math.min(remaining, Math.min(CHUNK_SIZE - chunkOffset, readStaging.length));
+                final ByteBuffer src = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+                src.position(chunkOffset);
+                src.get(readStaging, 0, length);
+                reader.consume(readStaging, 0, length);
+                position = ringPosition(position + length);
+                remaining -= length;
+            }
+        }
+    }
+
+    @Override
+    synchronized public int countFilled() {
+        return (int) Math.min(Integer.MAX_VALUE, filledBytes);
+    }
+
+    @Override
+    public void fill(Consumer filler) throws IOException {
+        final ByteBuffer[] ring;
+        final long position;
+        synchronized (this) {
+            if (capacity == 0) return;
+            ring = chunks;
+            position = writePosition;
+            if (filledBytes == capacity && evictedHeld == 0 && position % CHUNK_SIZE == 0) {
+                evictChunk((int) (position / CHUNK_SIZE));
+            }
+            filling = true;
+            fillingStartUptimeMillis = SystemClock.uptimeMillis();
+        }
+
+        // Never cross a chunk boundary, so that the block lands in a single buffer
+        final int chunkOffset = (int) (position % CHUNK_SIZE);
+        final int read = filler.consume(fillStaging, 0, Math.min(fillStaging.length, CHUNK_SIZE - chunkOffset));
+
+        synchronized (this) {
+            if (read > 0 && ring == chunks && position == writePosition) {
+                detach((int) (position / CHUNK_SIZE));
+                final ByteBuffer dst = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+                dst.position(chunkOffset);
+                dst.put(fillStaging, 0, read);
+                writePosition = ringPosition(position + read);
+                filledBytes = Math.min(capacity, filledBytes + read);
+                evictedHeld = Math.max(0, evictedHeld - read);
+                filled(read);
+            }
+            filling = false;
+        }
+    }
+
+    /**
+     * Moves a chunk pinned by a snapshot into a fresh buffer before it is written to.
+     */
+    private void detach(int index) {
+        final ByteBuffer chunk = chunks[index];
+        if (!isPinned(chunk)) return;
+        try {
+            // The rest of the chunk is still history - the copy carries it on, the snapshot keeps the old buffer
+            final ByteBuffer copy = allocateChunk();
+            final ByteBuffer src = chunk.duplicate();
+            src.clear();
+            copy.put(src);
+            chunks[index] = copy;
+        } catch (ErrnoException | OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemoryError replacing a chunk pinned by a snapshot", e);
+            revoke(chunk);
+        }
+    }
+
+    @Override
+    public synchronized Snapshot snapshot() {
+        final Snapshot snapshot = new Snapshot(this, (int) evictedHeld);
+        long remaining = filledBytes;
+        long position = ringPosition(writePosition - filledBytes);
+        while (remaining > 0) {
+            final int chunkOffset = (int) (position % CHUNK_SIZE);
+            final int length = (int) Math.min(remaining, CHUNK_SIZE - chunkOffset);
+            final ByteBuffer chunk = chunks[(int) (position / CHUNK_SIZE)];
+            snapshot.add(new BufferPiece(chunk, chunkOffset, length));
+            position = ringPosition(position + length);
+            remaining -= length;
+        }
+        return snapshot;
+    }
+
+    private static class BufferPiece extends Piece {
+        private final ByteBuffer buffer;
+        private final int offset;
+
+        BufferPiece(ByteBuffer buffer, int offset, int length) {
+            super(buffer, length);
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        @Override
+        protected void read(int skipBytes, int count, Consumer reader) throws IOException {
+            final ByteBuffer src = buffer.duplicate();
+            src.clear();
+            src.position(offset + skipBytes);
+            src.limit(offset + skipBytes + count);
+            final byte[] staging = new byte[Math.min(STAGING_SIZE, src.remaining())];
+            while (src.hasRemaining()) {
+                final int n = Math.min(src.remaining(), staging.length);
+                src.get(staging, 0, n);
+                reader.consume(staging, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Hands the oldest chunk to the eviction listener before the write cursor enters it.
+     */
+    private void evictChunk(int index) {
+        if (!hasEvictionListener()) return;
+        final ByteBuffer src = chunks[index].duplicate();
+        src.clear();
+        // The ring is full, so the chunk holds the oldest audio
+        final long position = getEndPosition() - filledBytes;
+        while (src.hasRemaining()) {
+            final int length = Math.min(src.remaining(), readStaging.length);
+            final long piecePosition = position + src.position();
+            src.get(readStaging, 0, length);
+            evict(piecePosition, readStaging, 0, length);
+        }
+        evictedHeld = CHUNK_SIZE;
+    }
+
+    @Override
+    public synchronized int countEvictedStillHeld() {
+        return (int) evictedHeld;
+    }
+
+    @Override
+    public synchronized Stats getStats(int fillRate) {
+        final Stats stats = new Stats();
+        stats.filled = (int) Math.min(Integer.MAX_VALUE, filledBytes);
+        stats.total = (int) Math.min(Integer.MAX_VALUE, capacity);
+        stats.estimation = (int) (filling ? (SystemClock.uptimeMillis() - fillingStartUptimeMillis) * fillRate / 1000 : 0);
+        stats.overwriting = capacity > 0 && filledBytes == capacity;
+        return stats;
+    }
+}
@@ -1,48 +1,142 @@
 package eu.mrogalski.saidit;
 
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import simplesound.pcm.WavFileWriter;
 
 /**
  * Manages a circular buffer of audio files on disk.
- * When the disk usage exceeds the configured limit, old files are automatically deleted.
+ * Audio is addressed by absolute offsets in PCM bytes, indexed by segment so reads seek straight to the
+ * file they need. When the disk usage exceeds the configured limit, the oldest segments are dropped.
+ * Dumps read from a {@link Snapshot} while the buffer keeps writing.
  */
 public class DiskAudioBuffer {
     private static final String TAG = DiskAudioBuffer.class.getSimpleName();
     private static final String BUFFER_DIR_NAME = "EchoBuffer";
     private static final String FILE_PREFIX = "buffer_";
     private static final String FILE_EXTENSION = ".raw";
+    private static final String ENCODED_EXTENSION = ".m4a";
+    private static final String LOSSLESS_EXTENSION = ".lac";
+    private static final String PREALLOCATED_EXTENSION = ".seg"; // raw PCM followed by stale data
+    private static final String COMPACTION_EXTENSION = ".tmp";
+    private static final int CHANNELS = 1;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int FRAME_SIZE = CHANNELS * BITS_PER_SAMPLE / 8;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
     
     private File bufferDir;
     private long maxDiskUsageBytes;
     private long currentDiskUsage;
-    private List<File> bufferFiles;
-    private FileOutputStream currentOutputStream;
+    private List<Segment> segments;
     private File currentFile;
+    private Segment currentSegment;
     private int fileCounter;
+    private long nextOffset; // absolute offset of the next byte to be written
     private final long chunkSize;
+    private final SegmentFormat format;
+    private final int sampleRate;
+    private LosslessSegmentFile.Writer losslessWriter; // writes currentSegment in lossless mode
+    private RandomAccessFile currentRandomAccessFile; // holds currentSegment in raw and preallocated mode
+    private FileChannel currentChannel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE); // see setDurability()
+    private long writePosition; // file position the write buffer is drained to
+    private long lastDrainUptimeMillis;
+    private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private int flushBytes = WRITE_BUFFER_SIZE;
+    private boolean syncOnRotation = false;
+    private SegmentMetadata.Writer metadataWriter; // writes the sidecar of currentSegment
+    private final AudioTimeline timeline; // capture times by absolute offset, anchored at every segment start
+    private final Map<File, Integer> pins = new HashMap<>(); // files listed by open snapshots
+    private final Set<File> pendingDeletes = new HashSet<>(); // pinned files to delete once unpinned
+
+    /**
+     * How new segments are stored.
+     */
+    public enum SegmentFormat {
+        RAW,         // one PCM file per segment, grown as it is written
+        LOSSLESS,    // losslessly compressed frames, see LosslessSegmentFile
+        // PCM in files created at full size once; the oldest is renamed and overwritten in place, so disk usage stays flat
+        PREALLOCATED
+    }
+
+    /**
+     * Index entry describing one buffer file.
+     */
+    static class Segment {
+        volatile File file; // swapped by replaceSegment()
+        long startOffset; // absolute byte offset of the first byte in this file, assigned once when indexed
+        final long startTimeMillis; // wall-clock time when the file was started
+        long length; // PCM bytes, also for compressed segments
+        long diskSize; // bytes taken on disk, counted against the disk limit
+        AudioEncoder.Quality quality; // null until a SegmentCompactor swaps in an AAC copy
+        LosslessSegmentFile.Index losslessIndex; // set for finished lossless segments
+        SegmentMetadata metadata; // PCM format and block CRCs, null for segments written before sidecars existed
+
+        Segment(File file, long startOffset, long startTimeMillis, long length) {
+            this.file = file;
+            this.startOffset = startOffset;
+            this.startTimeMillis = startTimeMillis;
+            this.length = length;
+            this.diskSize = length;
+        }
+
+        long endOffset() {
+            return startOffset + length;
+        }
+    }
     
     /**
      * Creates a new DiskAudioBuffer.
      * @param storageDir Base storage directory (can be internal or external storage)
      * @param maxDiskUsageBytes Maximum disk space to use for the buffer
      * @param chunkSize Size of each buffer chunk/file in bytes
+     * @param sampleRate Sample rate of the 16-bit mono PCM written to the buffer
+     */
+    public DiskAudioBuffer(File storageDir, long maxDiskUsageBytes, long chunkSize, int sampleRate) {
+        this(storageDir, maxDiskUsageBytes, chunkSize, sampleRate, SegmentFormat.RAW);
+    }
+
+    /**
+     * Creates a new DiskAudioBuffer.
+     * @param storageDir Base storage directory (can be internal or external storage)
+     * @param maxDiskUsageBytes Maximum disk space to use for the buffer
+     * @param chunkSize PCM bytes per buffer chunk/file
+     * @param sampleRate Sample rate of the 16-bit mono PCM written to the buffer
+     * @param format How new segments are stored; existing segments are read whatever their format
      */
-    public DiskAudioBuffer(File storageDir, long maxDiskUsageBytes, long chunkSize) {
+    public DiskAudioBuffer(File storageDir, long maxDiskUsageBytes, long chunkSize, int sampleRate, SegmentFormat format) {
         this.maxDiskUsageBytes = maxDiskUsageBytes;
         this.chunkSize = chunkSize;
+        this.sampleRate = sampleRate;
+        this.format = format;
         this.bufferDir = new File(storageDir, BUFFER_DIR_NAME);
-        this.bufferFiles = new ArrayList<>();
+        this.segments = new ArrayList<>();
         this.fileCounter = 0;
         this.currentDiskUsage = 0;
+        this.nextOffset = 0;
+        this.timeline = new AudioTimeline(sampleRate * FRAME_SIZE, FRAME_SIZE, 0);
         
         if (!bufferDir.exists()) {
             bufferDir.mkdirs();
@@ -54,34 +148,240 @@ public class DiskAudioBuffer {
     
     /**
      * Loads existing buffer files from disk and sorts them by creation time.
+     * The segments are recovered in parallel; their offsets are assigned in order afterwards.
+     * Torn or corrupt tails are cut off, and segments recorded in another PCM format (e.g. before a
+     * sample rate change) are dropped instead of being misread.
      */
     private void loadExistingFiles() {
         File[] files = bufferDir.listFiles(new java.io.FilenameFilter() {
             @Override
             public boolean accept(File dir, String name) {
-                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_EXTENSION);
+                return name.startsWith(FILE_PREFIX)
+                        && (name.endsWith(FILE_EXTENSION) || name.endsWith(ENCODED_EXTENSION)
+                            || name.endsWith(LOSSLESS_EXTENSION) || name.endsWith(PREALLOCATED_EXTENSION)
+                            || name.endsWith(COMPACTION_EXTENSION)
+                            || name.endsWith(SegmentMetadata.EXTENSION));
             }
         });
         
         if (files != null) {
-            for (File file : files) {
-                bufferFiles.add(file);
-                currentDiskUsage += file.length();
-            }
-            
             // Sort by filename (which includes timestamp/counter)
-            Collections.sort(bufferFiles, new java.util.Comparator<File>() {
+            java.util.Arrays.sort(files, new java.util.Comparator<File>() {
                 @Override
                 public int compare(File f1, File f2) {
                     return f1.getName().compareTo(f2.getName());
                 }
             });
+
+            List<File> metadataFiles = new ArrayList<>();
+            List<Future<Segment>> loads = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(files.length, Runtime.getRuntime().availableProcessors())));
+            try {
+                for (final File file : files) {
+                    if (file.getName().endsWith(COMPACTION_EXTENSION)) {
+                        // Left over from an interrupted compaction - the original segment is still there
+                        file.delete();
+                        continue;
+                    }
+                    if (file.getName().endsWith(SegmentMetadata.EXTENSION)) {
+                        metadataFiles.add(file);
+                        continue;
+                    }
+                    loads.add(executor.submit(new Callable<Segment>() {
+                        @Override
+                        public Segment call() {
+                            return loadSegment(file);
+                        }
+                    }));
+                }
+
+                Set<String> loaded = new HashSet<>();
+                for (Future<Segment> load : loads) {
+                    Segment segment;
+                    try {
+                        segment = load.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException e) {
+                        Log.w(TAG, "Failed to load buffer file", e.getCause());
+                        continue;
+                    }
+                    if (segment == null) {
+                        continue;
+                    }
+                    segment.startOffset = nextOffset;
+                    markRecovered(segment);
+                    segments.add(segment);
+                    loaded.add(baseName(segment));
+                    nextOffset += segment.length;
+                    currentDiskUsage += segment.diskSize;
+                }
+
+                for (File file : metadataFiles) {
+                    String name = file.getName();
+                    if (!loaded.contains(name.substring(0, name.length() - SegmentMetadata.EXTENSION.length()))) {
+                        file.delete(); // its segment was deleted or dropped
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
             
             // Clean up if we exceed max disk usage
             cleanupOldFiles();
         }
     }
+
+    /**
+     * Indexes one segment file and cuts off anything its sidecar does not vouch for.
+     * @return The segment with a zero start offset, or null if it cannot be used
+     */
+    private Segment loadSegment(File file) {
+        Segment segment = new Segment(file, 0, parseStartTime(file), file.length());
+        if (file.getName().endsWith(ENCODED_EXTENSION) && !parseEncodedName(segment)) {
+            Log.w(TAG, "Ignoring unrecognized buffer file: " + file.getName());
+            return null;
+        }
+        File metadataFile = getMetadataFile(segment);
+        try {
+            if (file.getName().endsWith(LOSSLESS_EXTENSION)) {
+                segment.losslessIndex = LosslessSegmentFile.load(file);
+                segment.length = segment.losslessIndex.pcmLength;
+                segment.diskSize = file.length();
+            }
+            if (metadataFile.exists()) {
+                segment.metadata = SegmentMetadata.read(metadataFile);
+                if (segment.metadata == null) {
+                    Log.w(TAG, "Unreadable metadata for " + file.getName() + ", assuming the current format");
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable buffer file: " + file.getName(), e);
+            return null;
+        }
+
+        if (file.getName().endsWith(PREALLOCATED_EXTENSION) && segment.metadata == null) {
+            // Without the block records there is no telling where the segment ends and stale data begins
+            Log.w(TAG, "Dropping " + file.getName() + " without metadata");
+            file.delete();
+            return null;
+        }
+        if (segment.metadata != null && !segment.metadata.matches(sampleRate, CHANNELS, BITS_PER_SAMPLE)) {
+            Log.w(TAG, "Dropping " + file.getName() + " recorded at " + segment.metadata.sampleRate + " Hz");
+            file.delete();
+            metadataFile.delete();
+            return null;
+        }
+
+        if (segment.quality == null) {
+            try {
+                recoverSegment(segment);
+            } catch (IOException e) {
+                Log.w(TAG, "Ignoring unreadable buffer file: " + file.getName(), e);
+                return null;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Checks a raw or lossless segment against its block CRCs and truncates it after the last valid byte.
+     * Segments without a sidecar are only cut to a whole number of samples. Preallocated segments
+     * end after their last block record and keep their file size.
+     */
+    private void recoverSegment(Segment segment) throws IOException {
+        final boolean preallocated = segment.file.getName().endsWith(PREALLOCATED_EXTENSION);
+        long validLength;
+        if (segment.metadata != null) {
+            SegmentMetadata.Verifier verifier = new SegmentMetadata.Verifier(segment.metadata, !preallocated);
+            readSegment(segment, 0, verifier);
+            validLength = verifier.getValidLength();
+        } else {
+            validLength = segment.length - segment.length % FRAME_SIZE;
+        }
+        if (validLength >= segment.length) {
+            return;
+        }
+        if (preallocated) {
+            segment.length = validLength;
+            return;
+        }
+
+        Log.w(TAG, "Dropping " + (segment.length - validLength) + " torn or corrupt bytes from " + segment.file.getName());
+        if (segment.losslessIndex != null) {
+            segment.losslessIndex = LosslessSegmentFile.truncate(segment.file, segment.losslessIndex, validLength);
+            segment.length = segment.losslessIndex.pcmLength;
+        } else {
+            try (RandomAccessFile file = new RandomAccessFile(segment.file, "rw")) {
+                file.setLength(validLength);
+            }
+            segment.length = validLength;
+        }
+        segment.diskSize = segment.file.length();
+    }
+
+    /**
+     * Anchors a segment loaded from disk in the timeline. Its monotonic start time may come from before
+     * a reboot, so it is derived from the wall clock instead.
+     */
+    private void markRecovered(Segment segment) {
+        final long wallMillis = segment.metadata != null ? segment.metadata.startWallMillis : segment.startTimeMillis;
+        final long elapsedNanos = SystemClock.elapsedRealtimeNanos() - (System.currentTimeMillis() - wallMillis) * 1000000L;
+        timeline.mark(segment.startOffset, elapsedNanos, wallMillis);
+    }
+
+    /**
+     * Gets the sidecar file of a segment; it keeps its name when the segment is re-encoded.
+     */
+    private File getMetadataFile(Segment segment) {
+        return new File(bufferDir, baseName(segment) + SegmentMetadata.EXTENSION);
+    }
+
+    /**
+     * Extracts the creation timestamp from a buffer file name (buffer_<millis>_<counter>.raw).
+     */
+    private static long parseStartTime(File file) {
+        String name = file.getName();
+        int end = name.indexOf('_', FILE_PREFIX.length());
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), end < 0 ? name.length() - FILE_EXTENSION.length() : end));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return file.lastModified();
+        }
+    }
     
+    /**
+     * Restores the PCM length and quality of an encoded segment from its name
+     * (buffer_<millis>_<counter>_<pcmLength>.<quality>.m4a).
+     */
+    private static boolean parseEncodedName(Segment segment) {
+        String name = segment.file.getName();
+        String base = name.substring(0, name.length() - ENCODED_EXTENSION.length());
+        int qualityStart = base.lastIndexOf('.');
+        int lengthStart = base.lastIndexOf('_', qualityStart);
+        if (qualityStart < 0 || lengthStart < 0) {
+            return false;
+        }
+        try {
+            segment.length = Long.parseLong(base.substring(lengthStart + 1, qualityStart));
+            segment.quality = AudioEncoder.Quality.valueOf(base.substring(qualityStart + 1).toUpperCase(java.util.Locale.US));
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the buffer_<millis>_<counter> part of a segment file name.
+     */
+    private static String baseName(Segment segment) {
+        String name = segment.file.getName();
+        String base = name.substring(0, name.indexOf('.'));
+        return segment.quality == null ? base : base.substring(0, base.lastIndexOf('_'));
+    }
+
     /**
      * Writes audio data to the disk buffer.
      * Automatically creates new files when chunk size is reached.
@@ -91,12 +391,48 @@ public class DiskAudioBuffer {
      * @throws IOException if writing fails
      */
     public synchronized void write(byte[] data, int offset, int length) throws IOException {
-        if (currentOutputStream == null || shouldRotateFile()) {
-            rotateFile();
+        write(data, offset, length, -1, 0);
+    }
+
+    /**
+     * Writes audio data captured at the given time, see {@link #write(byte[], int, int)}.
+     * A block that does not continue where the previous one ended in time is recorded as a gap in the timeline.
+     * @param startElapsedNanos SystemClock.elapsedRealtimeNanos() when the first byte was captured,
+     *                          or negative if the data directly continues the previous write
+     * @param startWallMillis Wall-clock time of the first byte
+     */
+    public synchronized void write(byte[] data, int offset, int length, long startElapsedNanos, long startWallMillis) throws IOException {
+        if (startElapsedNanos < 0) {
+            final long[] time = timeline.continuation(nextOffset, length);
+            startElapsedNanos = time[0];
+            startWallMillis = time[1];
         }
-        
-        currentOutputStream.write(data, offset, length);
-        currentDiskUsage += length;
+        final long position = nextOffset;
+        // Segment sizes are tracked in memory, so rotating costs no flush or stat call
+        boolean open = format == SegmentFormat.LOSSLESS ? losslessWriter != null : currentChannel != null;
+        if (!open || currentSegment.length >= chunkSize) {
+            rotateFile(startElapsedNanos, startWallMillis);
+        }
+        if (format == SegmentFormat.LOSSLESS) {
+            losslessWriter.write(data, offset, length);
+            currentSegment.length += length;
+            nextOffset += length;
+            final long fileLength = losslessWriter.getFileLength();
+            currentDiskUsage += fileLength - currentSegment.diskSize;
+            currentSegment.diskSize = fileLength;
+        } else {
+            bufferWrite(data, offset, length);
+            currentSegment.length += length;
+            nextOffset += length;
+            if (currentSegment.length > currentSegment.diskSize) {
+                // Raw files grow with every write; preallocated ones only when the last write runs past their size
+                currentDiskUsage += currentSegment.length - currentSegment.diskSize;
+                currentSegment.diskSize = currentSegment.length;
+            }
+        }
+        // A record can get ahead of buffered data; after a crash that block just counts as an unverified tail
+        metadataWriter.update(data, offset, length);
+        timeline.append(position, length, startElapsedNanos, startWallMillis);
         
         // Check if we need to clean up old files
         if (currentDiskUsage > maxDiskUsageBytes) {
@@ -105,52 +441,198 @@ public class DiskAudioBuffer {
     }
     
     /**
-     * Checks if the current file should be rotated (reached chunk size).
+     * Copies data into the write buffer and drains it when it is full or the durability policy says so.
      */
-    private boolean shouldRotateFile() throws IOException {
-        if (currentFile == null) {
-            return true;
+    private void bufferWrite(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            final int count = Math.min(length, writeBuffer.remaining());
+            writeBuffer.put(data, offset, count);
+            offset += count;
+            length -= count;
+            if (!writeBuffer.hasRemaining()) {
+                drainWriteBuffer();
+            }
         }
-        
-        currentOutputStream.flush();
-        return currentFile.length() >= chunkSize;
+        if (writeBuffer.position() >= flushBytes
+                || SystemClock.uptimeMillis() - lastDrainUptimeMillis >= flushIntervalMillis) {
+            drainWriteBuffer();
+        }
+    }
+
+    /**
+     * Hands the buffered bytes of the current segment to the OS with positional writes.
+     */
+    private void drainWriteBuffer() throws IOException {
+        lastDrainUptimeMillis = SystemClock.uptimeMillis();
+        if (currentChannel == null || writeBuffer.position() == 0) return;
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()) {
+                writePosition += currentChannel.write(writeBuffer, writePosition);
+            }
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    /**
+     * Sets when buffered raw and preallocated writes reach the OS and whether finished segments are synced.
+     * Data still buffered is lost if the process dies; data not synced can be lost if the device does.
+     * @param flushIntervalMillis Drain the buffer on a write at least this long after the last drain
+     * @param flushBytes Drain the buffer once it holds this many bytes (at most 64 KB)
+     * @param syncOnRotation fsync each segment when it is finished
+     */
+    public synchronized void setDurability(long flushIntervalMillis, int flushBytes, boolean syncOnRotation) {
+        this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+        this.flushBytes = Math.max(1, Math.min(WRITE_BUFFER_SIZE, flushBytes));
+        this.syncOnRotation = syncOnRotation;
     }
     
     /**
      * Rotates to a new file, closing the current one if it exists.
+     * @param startElapsedNanos Capture time of the first byte of the new segment
+     * @param startWallMillis Wall-clock time of the first byte of the new segment
      */
-    private void rotateFile() throws IOException {
-        if (currentOutputStream != null) {
-            currentOutputStream.flush();
-            currentOutputStream.close();
-        }
+    private void rotateFile(long startElapsedNanos, long startWallMillis) throws IOException {
+        finishLosslessSegment();
+        closeCurrentFile();
+        finishMetadata();
         
         // Create new file with timestamp and counter
-        String filename = FILE_PREFIX + System.currentTimeMillis() + "_" + fileCounter + FILE_EXTENSION;
+        long now = startWallMillis;
+        String filename = FILE_PREFIX + now + "_" + fileCounter + getExtension(format);
         currentFile = new File(bufferDir, filename);
-        currentOutputStream = new FileOutputStream(currentFile);
-        bufferFiles.add(currentFile);
+        long diskSize = 0;
+        if (format == SegmentFormat.LOSSLESS) {
+            losslessWriter = new LosslessSegmentFile.Writer(currentFile);
+        } else if (format == SegmentFormat.PREALLOCATED) {
+            diskSize = openPreallocatedFile(currentFile);
+        } else {
+            openCurrentFile(currentFile);
+        }
+        currentSegment = new Segment(currentFile, nextOffset, now, 0);
+        currentSegment.diskSize = diskSize;
+        currentDiskUsage += diskSize;
+        currentSegment.metadata = new SegmentMetadata(sampleRate, CHANNELS, BITS_PER_SAMPLE,
+                startElapsedNanos, startWallMillis);
+        timeline.mark(nextOffset, startElapsedNanos, startWallMillis);
+        metadataWriter = new SegmentMetadata.Writer(getMetadataFile(currentSegment), currentSegment.metadata);
+        segments.add(currentSegment);
         fileCounter++;
         
         Log.d(TAG, "Rotated to new file: " + filename);
     }
     
+    private static String getExtension(SegmentFormat format) {
+        switch (format) {
+            case LOSSLESS:
+                return LOSSLESS_EXTENSION;
+            case PREALLOCATED:
+                return PREALLOCATED_EXTENSION;
+            default:
+                return FILE_EXTENSION;
+        }
+    }
+
+    /**
+     * Opens a full-size file for the next segment, recycling the oldest segment's file when the
+     * buffer is full and creating a new one otherwise. A file a snapshot is reading is not recycled.
+     * @return Size of the file
+     */
+    private long openPreallocatedFile(File target) throws IOException {
+        Segment oldest = segments.isEmpty() ? null : segments.get(0);
+        if (oldest != null && currentDiskUsage + chunkSize > maxDiskUsageBytes
+                && oldest.file.getName().endsWith(PREALLOCATED_EXTENSION) && !pins.containsKey(oldest.file)
+                && oldest.file.renameTo(target)) {
+            // Its blocks stay allocated; only the name and the sidecar change
+            segments.remove(0);
+            getMetadataFile(oldest).delete();
+            currentDiskUsage -= oldest.diskSize;
+            timeline.trim(getOldestOffset());
+            Log.d(TAG, "Recycled " + oldest.file.getName());
+        }
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            if (file.length() < chunkSize) {
+                file.setLength(chunkSize);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        currentRandomAccessFile = file;
+        currentChannel = file.getChannel();
+        writePosition = 0;
+        return file.length();
+    }
+
+    private void openCurrentFile(File target) throws IOException {
+        currentRandomAccessFile = new RandomAccessFile(target, "rw");
+        currentRandomAccessFile.setLength(0);
+        currentChannel = currentRandomAccessFile.getChannel();
+        writePosition = 0;
+    }
+
+    /**
+     * Drains the write buffer into the current raw or preallocated file, syncs it if configured and closes it.
+     */
+    private void closeCurrentFile() throws IOException {
+        if (currentRandomAccessFile == null) return;
+        final RandomAccessFile file = currentRandomAccessFile;
+        try {
+            drainWriteBuffer();
+            if (syncOnRotation) {
+                currentChannel.force(false);
+            }
+        } finally {
+            currentRandomAccessFile = null;
+            currentChannel = null;
+            writeBuffer.clear();
+            file.close();
+        }
+    }
+
+    /**
+     * Encodes the last partial frame of the current lossless segment and appends its seek table.
+     */
+    private void finishLosslessSegment() throws IOException {
+        if (losslessWriter == null) return;
+        final LosslessSegmentFile.Writer writer = losslessWriter;
+        losslessWriter = null;
+        currentSegment.losslessIndex = writer.finish();
+        final long fileLength = currentSegment.file.length();
+        currentDiskUsage += fileLength - currentSegment.diskSize;
+        currentSegment.diskSize = fileLength;
+    }
+
+    /**
+     * Writes the CRC of the last partial block of the current segment and closes its sidecar.
+     */
+    private void finishMetadata() throws IOException {
+        if (metadataWriter == null) return;
+        final SegmentMetadata.Writer writer = metadataWriter;
+        metadataWriter = null;
+        writer.finish();
+    }
+
     /**
      * Removes oldest files until disk usage is below the maximum.
      */
     private void cleanupOldFiles() {
-        while (currentDiskUsage > maxDiskUsageBytes && !bufferFiles.isEmpty()) {
-            File oldestFile = bufferFiles.get(0);
-            long fileSize = oldestFile.length();
+        while (currentDiskUsage > maxDiskUsageBytes && !segments.isEmpty()) {
+            File oldestFile = segments.get(0).file;
+            long fileSize = segments.get(0).diskSize;
             
             // Don't delete the current file being written to
             if (oldestFile.equals(currentFile)) {
                 break;
             }
             
-            if (oldestFile.delete()) {
-                bufferFiles.remove(0);
+            if (deleteSegmentFile(oldestFile)) {
+                getMetadataFile(segments.get(0)).delete();
+                segments.remove(0);
                 currentDiskUsage -= fileSize;
+                timeline.trim(getOldestOffset());
                 Log.d(TAG, "Deleted old buffer file: " + oldestFile.getName() + 
                            " (freed " + fileSize + " bytes)");
             } else {
@@ -167,47 +649,416 @@ public class DiskAudioBuffer {
      * @throws IOException if reading fails
      */
     public synchronized void read(int skipBytes, AudioMemory.Consumer consumer) throws IOException {
-        int totalSkipped = 0;
-        
-        for (File file : bufferFiles) {
-            if (!file.exists()) {
+        drainWriteBuffer();
+
+        long start = getOldestOffset() + Math.max(0, skipBytes);
+
+        for (int i = findSegment(start); i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (!segment.file.exists()) {
                 continue;
             }
-            
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    if (totalSkipped < skipBytes) {
-                        int toSkip = Math.min(bytesRead, skipBytes - totalSkipped);
-                        totalSkipped += toSkip;
-                        
-                        if (toSkip < bytesRead) {
-                            // Partial skip, consume the rest
-                            consumer.consume(buffer, toSkip, bytesRead - toSkip);
+            readSegment(segment, Math.max(0, start - segment.startOffset), consumer);
+        }
+    }
+
+    /**
+     * Passes the PCM of a segment, from the given position within it, to the consumer.
+     * Works for every segment format; finished segments can be read without holding the buffer lock.
+     */
+    void readSegment(Segment segment, long position, AudioMemory.Consumer consumer) throws IOException {
+        if (segment.quality != null) {
+            readEncoded(segment, position, consumer);
+        } else if (segment.losslessIndex != null) {
+            LosslessSegmentFile.read(segment.file, segment.losslessIndex, position, consumer);
+        } else if (segment.file.getName().endsWith(LOSSLESS_EXTENSION)) {
+            // Segment still being written: encoded frames from the file, the rest from memory
+            synchronized (this) {
+                final LosslessSegmentFile.Writer writer = losslessWriter;
+                final LosslessSegmentFile.Index index = writer.getIndex();
+                LosslessSegmentFile.read(segment.file, index, position, consumer);
+                writer.readPending((int) Math.max(0, position - index.pcmLength), consumer);
+            }
+        } else {
+            readRaw(segment, position, consumer);
+        }
+    }
+
+    private static void readRaw(Segment segment, long position, AudioMemory.Consumer consumer) throws IOException {
+        try (FileInputStream fis = new FileInputStream(segment.file)) {
+            // Jump straight to the first needed byte instead of reading and discarding
+            fis.getChannel().position(position);
+            byte[] buffer = new byte[8192];
+            long remaining = segment.length - position;
+            int bytesRead;
+            while (remaining > 0 && (bytesRead = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                consumer.consume(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+    }
+
+    /**
+     * Decodes an encoded segment and passes on its PCM from the given position.
+     * The decoder output starts after the encoder delay and is trimmed or padded with silence to the
+     * original PCM length, so offsets stay exact and re-encoding does not add up delays.
+     */
+    private static void readEncoded(final Segment segment, final long position, final AudioMemory.Consumer consumer) throws IOException {
+        final long[] decoded = {0};
+        AudioEncoder.decode(segment.file, new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) throws IOException {
+                long from = Math.max(decoded[0], position);
+                long to = Math.min(decoded[0] + count, segment.length);
+                if (to > from) {
+                    consumer.consume(array, offset + (int) (from - decoded[0]), (int) (to - from));
+                }
+                decoded[0] += count;
+                return 0;
+            }
+        });
+
+        long missing = segment.length - Math.max(decoded[0], position);
+        if (missing > 0) {
+            byte[] silence = new byte[(int) Math.min(missing, 8192)];
+            while (missing > 0) {
+                int count = (int) Math.min(missing, silence.length);
+                consumer.consume(silence, 0, count);
+                missing -= count;
+            }
+        }
+    }
+
+    /**
+     * Finds the index of the segment containing the given absolute offset (binary search).
+     * Returns segments.size() when the offset is past the end of the buffer.
+     */
+    private int findSegment(long absoluteOffset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = segments.get(mid);
+            if (absoluteOffset < segment.startOffset) {
+                high = mid - 1;
+            } else if (absoluteOffset >= segment.endOffset()) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gets the absolute offset of the oldest byte still stored in the buffer.
+     */
+    synchronized long getOldestOffset() {
+        return segments.isEmpty() ? nextOffset : segments.get(0).startOffset;
+    }
+
+    /**
+     * Gets the timeline mapping absolute offsets (see getOldestOffset()) to capture times.
+     */
+    public AudioTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Gets the wall-clock time at which the oldest stored segment was started, or -1 if the buffer is empty.
+     */
+    public synchronized long getOldestTimestamp() {
+        return segments.isEmpty() ? -1 : segments.get(0).startTimeMillis;
+    }
+    
+    /**
+     * Copies buffered audio data into a WAV file without streaming it through the Java heap.
+     * Whole file ranges are moved with FileChannel.transferTo; skipped files are never opened.
+     * Use {@link #read(int, AudioMemory.Consumer)} instead when the data has to be inspected or transformed.
+     * @param skipBytes Number of bytes to skip from the beginning
+     * @param writer WAV writer whose header is already in place
+     * @return Number of bytes transferred
+     * @throws IOException if reading or writing fails
+     */
+    public long transferTo(long skipBytes, WavFileWriter writer) throws IOException {
+        return transferTo(skipBytes, Long.MAX_VALUE, writer);
+    }
+
+    /**
+     * Copies at most the given number of buffered bytes into a WAV file, see {@link #transferTo(long, WavFileWriter)}.
+     * The copy is made from a snapshot, so writing goes on while it runs.
+     * @param length Maximum number of bytes to copy
+     */
+    public long transferTo(long skipBytes, long length, WavFileWriter writer) throws IOException {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.transferTo(skipBytes, length, writer);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the stored audio. Has to be closed, or its files are never deleted.
+     */
+    public synchronized Snapshot snapshot() throws IOException {
+        drainWriteBuffer();
+        final Segment[] copies = new Segment[segments.size()];
+        for (int i = 0; i < copies.length; i++) {
+            final Segment segment = segments.get(i);
+            // The copy keeps the file, format and length the segment has now
+            final Segment copy = new Segment(segment.file, segment.startOffset, segment.startTimeMillis, segment.length);
+            copy.quality = segment.quality;
+            copy.losslessIndex = segment.losslessIndex;
+            copies[i] = copy;
+            final Integer count = pins.get(copy.file);
+            pins.put(copy.file, count == null ? 1 : count + 1);
+        }
+        return new Snapshot(this, copies, losslessWriter != null ? currentSegment : null,
+                getOldestOffset(), nextOffset);
+    }
+
+    private synchronized void unpin(Segment[] copies) {
+        for (Segment copy : copies) {
+            final Integer count = pins.get(copy.file);
+            if (count == null) continue;
+            if (count > 1) {
+                pins.put(copy.file, count - 1);
+            } else {
+                pins.remove(copy.file);
+                if (pendingDeletes.remove(copy.file) && !copy.file.delete()) {
+                    Log.w(TAG, "Failed to delete old buffer file: " + copy.file.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes a file dropped from the index, or leaves that to the last snapshot reading it.
+     * @return false if the file could not be deleted
+     */
+    private boolean deleteSegmentFile(File file) {
+        if (pins.containsKey(file)) {
+            pendingDeletes.add(file);
+            return true;
+        }
+        return file.delete();
+    }
+
+    /**
+     * Reads the lossless segment that was being written when a snapshot was taken.
+     * Only the part still in the writer is read under the buffer lock; once the segment is finished
+     * its file is read like any other.
+     * @param segment The segment itself, not a snapshot copy
+     * @param file Its file when the snapshot was taken
+     */
+    private void readUnfinished(Segment segment, File file, long position, AudioMemory.Consumer consumer) throws IOException {
+        final LosslessSegmentFile.Index finished;
+        synchronized (this) {
+            finished = segment.losslessIndex;
+            if (finished == null) {
+                final LosslessSegmentFile.Writer writer = losslessWriter;
+                final LosslessSegmentFile.Index index = writer.getIndex();
+                LosslessSegmentFile.read(file, index, position, consumer);
+                writer.readPending((int) Math.max(0, position - index.pcmLength), consumer);
+                return;
+            }
+        }
+        LosslessSegmentFile.read(file, finished, position, consumer);
+    }
+
+    /**
+     * The stored audio at one moment: the segments with the lengths they had then.
+     * It is read without holding the buffer lock, so slow storage delays only the reader.
+     * Its files are pinned: the buffer keeps rotating and compacting, but neither recycles nor deletes
+     * them until the snapshot is closed.
+     */
+    public static final class Snapshot implements Closeable {
+        private final DiskAudioBuffer buffer;
+        private final Segment[] segments; // copies, oldest first
+        private final Segment unfinished; // lossless segment being written when the snapshot was taken, or null
+        private final long oldestOffset;
+        private final long endOffset;
+        private boolean closed;
+
+        private Snapshot(DiskAudioBuffer buffer, Segment[] segments, Segment unfinished, long oldestOffset, long endOffset) {
+            this.buffer = buffer;
+            this.segments = segments;
+            this.unfinished = unfinished;
+            this.oldestOffset = oldestOffset;
+            this.endOffset = endOffset;
+        }
+
+        /**
+         * Gets the absolute offset of the oldest byte in the snapshot.
+         */
+        public long getOldestOffset() {
+            return oldestOffset;
+        }
+
+        /**
+         * Gets the timeline of the buffer, see {@link DiskAudioBuffer#getTimeline()}.
+         */
+        public AudioTimeline getTimeline() {
+            return buffer.getTimeline();
+        }
+
+        /**
+         * Gets the number of PCM bytes in the snapshot.
+         */
+        public long getTotalBytes() {
+            return endOffset - oldestOffset;
+        }
+
+        /**
+         * Copies at most the given number of bytes into a WAV file, see {@link DiskAudioBuffer#transferTo(long, WavFileWriter)}.
+         * @param skipBytes Number of bytes to skip from the beginning
+         * @param length Maximum number of bytes to copy
+         * @return Number of bytes transferred
+         */
+        public long transferTo(long skipBytes, long length, final WavFileWriter writer) throws IOException {
+            final long start = oldestOffset + Math.max(0, skipBytes);
+            long transferred = 0;
+            for (int i = 0; i < segments.length && transferred < length; i++) {
+                final Segment segment = segments[i];
+                if (segment.endOffset() <= start) {
+                    continue;
+                }
+                if (!segment.file.exists()) {
+                    continue;
+                }
+
+                final long position = Math.max(0, start - segment.startOffset);
+                final long count = Math.min(segment.length - position, length - transferred);
+                if (segment.quality != null || segment.file.getName().endsWith(LOSSLESS_EXTENSION)) {
+                    // Compressed segments have to go through the decoder
+                    final long[] remaining = {count};
+                    final AudioMemory.Consumer limited = new AudioMemory.Consumer() {
+                        @Override
+                        public int consume(byte[] array, int offset, int bytes) throws IOException {
+                            final int n = (int) Math.min(bytes, remaining[0]);
+                            if (n > 0) {
+                                writer.write(array, offset, n);
+                                remaining[0] -= n;
+                            }
+                            return 0;
                         }
+                    };
+                    if (segment.quality == null && segment.losslessIndex == null && unfinished != null) {
+                        buffer.readUnfinished(unfinished, segment.file, position, limited);
                     } else {
-                        // No more skipping, consume all data
-                        consumer.consume(buffer, 0, bytesRead);
+                        buffer.readSegment(segment, position, limited);
                     }
+                    transferred += count;
+                    continue;
                 }
+                try (FileInputStream fis = new FileInputStream(segment.file)) {
+                    FileChannel channel = fis.getChannel();
+                    writer.transferFrom(channel, position, count);
+                    transferred += count;
+                }
+            }
+            return transferred;
+        }
+
+        /**
+         * Unpins the files, so the buffer may delete or recycle them again.
+         */
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            buffer.unpin(segments);
+        }
+    }
+
+    /**
+     * Gets the quality a segment of the given age should be stored at, or null to keep it as PCM.
+     * @param ageMillis Time since the segment was started
+     * @param pcmAgeMillis Segments younger than this stay PCM
+     * @param lowAgeMillis Segments older than this go to LOW, the ones in between to MEDIUM
+     */
+    static AudioEncoder.Quality getTargetQuality(long ageMillis, long pcmAgeMillis, long lowAgeMillis) {
+        if (ageMillis >= lowAgeMillis) {
+            return AudioEncoder.Quality.LOW;
+        }
+        if (ageMillis >= pcmAgeMillis) {
+            return AudioEncoder.Quality.MEDIUM;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the oldest finished segment stored at a higher quality than its age calls for.
+     * @return The segment, or null when there is nothing to compact
+     */
+    synchronized Segment findCompactionCandidate(long now, long pcmAgeMillis, long lowAgeMillis) {
+        for (Segment segment : segments) {
+            if (segment == currentSegment) {
+                break;
+            }
+            AudioEncoder.Quality target = getTargetQuality(now - segment.startTimeMillis, pcmAgeMillis, lowAgeMillis);
+            if (target != null && (segment.quality == null || segment.quality.getBitrate() > target.getBitrate())) {
+                return segment;
             }
         }
+        return null;
     }
-    
+
     /**
-     * Gets the total number of bytes currently stored in the buffer.
+     * Gets a scratch file next to the segment for writing its compacted copy.
+     */
+    File getCompactionFile(Segment segment) {
+        return new File(bufferDir, baseName(segment) + COMPACTION_EXTENSION);
+    }
+
+    /**
+     * Atomically swaps a segment for its encoded copy. Readers see either the old or the new file, never a partial one.
+     * @param encoded Fully written encoded copy of the segment
+     * @return false if the segment was dropped meanwhile (the copy is deleted then)
+     */
+    synchronized boolean replaceSegment(Segment segment, File encoded, AudioEncoder.Quality quality) {
+        if (!segments.contains(segment)) {
+            encoded.delete();
+            return false;
+        }
+        File target = new File(bufferDir, baseName(segment) + "_" + segment.length + "."
+                + quality.name().toLowerCase(java.util.Locale.US) + ENCODED_EXTENSION);
+        if (!encoded.renameTo(target)) {
+            Log.w(TAG, "Failed to rename compacted segment " + encoded.getName());
+            encoded.delete();
+            return false;
+        }
+        File old = segment.file;
+        long oldSize = segment.diskSize;
+        if (segment.metadata != null) {
+            // Block CRCs no longer apply to lossy data; keep just the format and start time
+            try {
+                segment.metadata.writeHeader(getMetadataFile(segment));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to rewrite metadata of " + old.getName(), e);
+            }
+        }
+        segment.file = target;
+        segment.quality = quality;
+        segment.diskSize = target.length();
+        currentDiskUsage += segment.diskSize - oldSize;
+        if (!old.equals(target)) {
+            deleteSegmentFile(old);
+        }
+        Log.d(TAG, "Compacted " + old.getName() + " to " + quality + ": " + oldSize + " -> " + segment.diskSize + " bytes");
+        return true;
+    }
+
+    /**
+     * Gets the number of PCM bytes currently stored in the buffer.
      */
     public synchronized long getTotalBytes() {
-        return currentDiskUsage;
+        return segments.isEmpty() ? 0 : nextOffset - segments.get(0).startOffset;
     }
     
     /**
      * Gets the number of buffer files.
      */
     public synchronized int getFileCount() {
-        return bufferFiles.size();
+        return segments.size();
     }
     
     /**
@@ -229,20 +1080,16 @@ public class DiskAudioBuffer {
      * Flushes any pending writes to disk.
      */
     public synchronized void flush() throws IOException {
-        if (currentOutputStream != null) {
-            currentOutputStream.flush();
-        }
+        drainWriteBuffer();
     }
     
     /**
      * Closes the buffer and releases resources.
      */
     public synchronized void close() throws IOException {
-        if (currentOutputStream != null) {
-            currentOutputStream.flush();
-            currentOutputStream.close();
-            currentOutputStream = null;
-        }
+        finishLosslessSegment();
+        closeCurrentFile();
+        finishMetadata();
     }
     
     /**
@@ -250,21 +1097,29 @@ public class DiskAudioBuffer {
      */
     public synchronized void clearAll() {
         try {
+            if (losslessWriter != null) {
+                // No point in finishing a segment that is deleted right away
+                losslessWriter.abort();
+                losslessWriter = null;
+            }
             close();
         } catch (IOException e) {
             Log.e(TAG, "Error closing buffer during clearAll", e);
         }
         
-        for (File file : bufferFiles) {
-            if (file.exists()) {
-                file.delete();
+        for (Segment segment : segments) {
+            if (segment.file.exists()) {
+                deleteSegmentFile(segment.file);
             }
+            getMetadataFile(segment).delete();
         }
         
-        bufferFiles.clear();
+        segments.clear();
+        timeline.clear();
         currentDiskUsage = 0;
         fileCounter = 0;
         currentFile = null;
+        currentSegment = null;
     }
     
     /**
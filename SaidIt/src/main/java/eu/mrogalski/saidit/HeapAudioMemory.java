@@ -0,0 +1,205 @@
+package eu.mrogalski.saidit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Keeps the history as a list of CHUNK_SIZE byte arrays on the Java heap.
+ */
+public class HeapAudioMemory extends AudioMemory {
+    private static final String TAG = HeapAudioMemory.class.getSimpleName();
+
+    private final LinkedList<byte[]> filled = new LinkedList<byte[]>();
+    private final LinkedList<byte[]> free = new LinkedList<byte[]>();
+
+    private long fillingStartUptimeMillis;
+    private boolean filling = false;
+    private boolean currentWasFilled = false;
+    private boolean currentWasEvicted = false; // the old contents of current went to the eviction listener
+    private byte[] current = null;
+    private int offset = 0;
+
+    @Override
+    synchronized public boolean allocate(long sizeToEnsure) {
+        try {
+            long currentSize = getAllocatedMemorySize();
+            while(currentSize < sizeToEnsure) {
+                currentSize += CHUNK_SIZE;
+                free.addLast(new byte[CHUNK_SIZE]);
+            }
+            while(!free.isEmpty() && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
+                currentSize -= CHUNK_SIZE;
+                free.removeLast();
+            }
+            while(!filled.isEmpty() && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
+                currentSize -= CHUNK_SIZE;
+                filled.removeFirst();
+            }
+            if((current != null) && (currentSize - CHUNK_SIZE >= sizeToEnsure)) {
+                //currentSize -= CHUNK_SIZE;
+                current = null;
+                offset = 0;
+                currentWasFilled = false;
+            }
+            System.gc();
+            Log.d(TAG, "Memory allocation succeeded for " + (sizeToEnsure / (1024 * 1024)) + " MB");
+            return true;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemoryError during allocation of " + (sizeToEnsure / (1024 * 1024)) + " MB", e);
+            // Clear as much as we can
+            free.clear();
+            filled.clear();
+            current = null;
+            System.gc();
+            return false;
+        }
+    }
+
+    @Override
+    synchronized public long getAllocatedMemorySize() {
+        return (free.size() + filled.size() + (current == null ? 0 : 1)) * CHUNK_SIZE;
+    }
+
+    private int skipAndFeed(int bytesToSkip, byte[] arr, int offset, int length, Consumer consumer)  throws IOException {
+        if(bytesToSkip >= length) {
+            return length;
+        } else if(bytesToSkip > 0) {
+            consumer.consume(arr, offset + bytesToSkip, length - bytesToSkip);
+            return bytesToSkip;
+        }
+        consumer.consume(arr, offset, length);
+        return 0;
+    }
+
+    @Override
+    public void read(int skipBytes, Consumer reader)  throws IOException {
+        synchronized (this) {
+            if(!filling && current != null && currentWasFilled) {
+                skipBytes -= skipAndFeed(skipBytes, current, offset, current.length - offset, reader);
+            }
+            for(byte[] arr : filled) {
+                skipBytes -= skipAndFeed(skipBytes, arr, 0, arr.length, reader);
+            }
+            if(current != null && offset > 0) {
+                skipAndFeed(skipBytes, current, 0, offset, reader);
+            }
+        }
+    }
+
+    @Override
+    public int countFilled() {
+        int sum = 0;
+        synchronized (this) {
+            if(!filling && current != null && currentWasFilled) {
+                sum += current.length - offset;
+            }
+            for(byte[] arr : filled) {
+                sum += arr.length;
+            }
+            if(current != null && offset > 0) {
+                sum += offset;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void fill(Consumer filler) throws IOException {
+        synchronized (this) {
+            if(current == null) {
+                if(free.isEmpty()) {
+                    if(filled.isEmpty()) return;
+                    currentWasFilled = true;
+                    // Every chunk is full here, the oldest one goes first
+                    final long position = getEndPosition() - (long) filled.size() * CHUNK_SIZE;
+                    current = filled.removeFirst();
+                    currentWasEvicted = hasEvictionListener();
+                    evict(position, current, 0, current.length);
+                    current = unpinned(current);
+                } else {
+                    currentWasFilled = false;
+                    currentWasEvicted = false;
+                    current = free.removeFirst();
+                }
+                offset = 0;
+            }
+            filling = true;
+            fillingStartUptimeMillis = SystemClock.uptimeMillis();
+        }
+
+        final int read = filler.consume(current, offset, current.length - offset);
+
+        synchronized (this) {
+            if(offset + read >= current.length) {
+                filled.addLast(current);
+                current = null;
+                offset = 0;
+            } else {
+                offset += read;
+            }
+            filling = false;
+            if (read > 0) {
+                filled(read);
+            }
+        }
+    }
+
+    /**
+     * Gets a chunk that can be overwritten in place of the given one.
+     */
+    private byte[] unpinned(byte[] chunk) {
+        if (!isPinned(chunk)) return chunk;
+        try {
+            // The snapshot keeps the old array until it is closed
+            return new byte[CHUNK_SIZE];
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemoryError replacing a chunk pinned by a snapshot", e);
+            revoke(chunk);
+            return chunk;
+        }
+    }
+
+    @Override
+    public synchronized Snapshot snapshot() {
+        final Snapshot snapshot = new Snapshot(this, countEvictedStillHeld());
+        if(!filling && current != null && currentWasFilled) {
+            // The filler overwrites this part as it goes - copy it
+            try {
+                final byte[] copy = new byte[current.length - offset];
+                System.arraycopy(current, offset, copy, 0, copy.length);
+                snapshot.add(new ArrayPiece(null, copy, 0, copy.length));
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG, "OutOfMemoryError copying the oldest audio into a snapshot", e);
+                snapshot.setEvictedStillHeld(0);
+            }
+        }
+        for(byte[] arr : filled) {
+            snapshot.add(new ArrayPiece(arr, arr, 0, arr.length));
+        }
+        if(current != null && offset > 0) {
+            // Filled from offset on, so this part stays until the chunk is reused
+            snapshot.add(new ArrayPiece(current, current, 0, offset));
+        }
+        return snapshot;
+    }
+
+    @Override
+    public synchronized int countEvictedStillHeld() {
+        // Same part that read() returns first
+        return !filling && current != null && currentWasFilled && currentWasEvicted ? current.length - offset : 0;
+    }
+
+    @Override
+    public synchronized Stats getStats(int fillRate) {
+        final Stats stats = new Stats();
+        stats.filled = filled.size() * CHUNK_SIZE + (current == null ? 0 : currentWasFilled ? CHUNK_SIZE : offset);
+        stats.total = (filled.size() + free.size() + (current == null ? 0 : 1)) * CHUNK_SIZE;
+        stats.estimation = (int) (filling ? (SystemClock.uptimeMillis() - fillingStartUptimeMillis) * fillRate / 1000 : 0);
+        stats.overwriting = currentWasFilled;
+        return stats;
+    }
+
+}
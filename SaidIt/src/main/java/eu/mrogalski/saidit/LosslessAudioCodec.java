@@ -0,0 +1,260 @@
+package eu.mrogalski.saidit;
+
+/**
+ * Lossless coder for blocks of 16-bit little-endian mono PCM.
+ * Each block is predicted with the best of the fixed polynomial predictors of order 0 to 2 (as in FLAC)
+ * and the residuals are Rice coded, with a separate Rice parameter per partition of samples.
+ * Blocks that would not get smaller are stored verbatim, so a block never grows by more than its header.
+ * An instance keeps no state between blocks but is not thread safe.
+ */
+public class LosslessAudioCodec {
+
+    // Block layout: type (1 byte), PCM length in bytes (4 bytes), then the payload
+    static final int HEADER_SIZE = 5;
+    private static final int TYPE_VERBATIM = 0xFF;
+    private static final int MAX_ORDER = 2;
+    private static final int PARTITION_SAMPLES = 4096;
+    private static final int RICE_PARAMETER_BITS = 5;
+    // Quotients this large are written as an escape followed by the raw value
+    private static final int ESCAPE_QUOTIENT = 24;
+    private static final int RAW_RESIDUAL_BITS = 20; // order 2 residuals fit in 19 bits after zigzag
+
+    private byte[] out;
+    private int outPosition;
+    private int outLimit;
+    private long bitBuffer;
+    private int bitCount;
+
+    private byte[] in;
+    private int inPosition;
+
+    /**
+     * Largest possible encoded size of a block of the given PCM length.
+     */
+    public static int maxEncodedSize(int pcmLength) {
+        return HEADER_SIZE + pcmLength;
+    }
+
+    /**
+     * Gets the PCM length stored in an encoded block header.
+     */
+    public static int decodedLength(byte[] block, int offset) {
+        return readInt(block, offset + 1);
+    }
+
+    /**
+     * Encodes a block.
+     * @param pcm 16-bit little-endian samples
+     * @param encoded Output; needs {@link #maxEncodedSize(int)} bytes from encodedOffset
+     * @return Encoded size in bytes
+     */
+    public int encode(byte[] pcm, int offset, int length, byte[] encoded, int encodedOffset) {
+        final int samples = length / 2;
+        int order = -1;
+        if ((length & 1) == 0 && samples > MAX_ORDER) {
+            order = chooseOrder(pcm, offset, samples);
+        }
+        if (order >= 0) {
+            final int size = encodePredicted(pcm, offset, samples, order, encoded, encodedOffset, length);
+            if (size > 0) {
+                return size;
+            }
+        }
+        encoded[encodedOffset] = (byte) TYPE_VERBATIM;
+        writeInt(encoded, encodedOffset + 1, length);
+        System.arraycopy(pcm, offset, encoded, encodedOffset + HEADER_SIZE, length);
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * Decodes a block.
+     * @param pcm Output; needs {@link #decodedLength(byte[], int)} bytes from pcmOffset
+     * @return Number of PCM bytes produced
+     */
+    public int decode(byte[] encoded, int offset, byte[] pcm, int pcmOffset) {
+        final int type = encoded[offset] & 0xFF;
+        final int length = readInt(encoded, offset + 1);
+        if (type == TYPE_VERBATIM) {
+            System.arraycopy(encoded, offset + HEADER_SIZE, pcm, pcmOffset, length);
+            return length;
+        }
+
+        final int order = type;
+        final int samples = length / 2;
+        in = encoded;
+        inPosition = offset + HEADER_SIZE;
+        bitBuffer = 0;
+        bitCount = 0;
+
+        for (int i = 0; i < order; i++) {
+            putSample(pcm, pcmOffset, i, (short) readBits(16));
+        }
+        int s1 = order > 0 ? sample(pcm, pcmOffset, order - 1) : 0;
+        int s2 = order > 1 ? sample(pcm, pcmOffset, order - 2) : 0;
+        for (int start = order; start < samples; start += PARTITION_SAMPLES) {
+            final int end = Math.min(samples, start + PARTITION_SAMPLES);
+            final int k = readBits(RICE_PARAMETER_BITS);
+            for (int i = start; i < end; i++) {
+                int quotient = 0;
+                while (readBits(1) == 1) {
+                    quotient++;
+                    if (quotient == ESCAPE_QUOTIENT) break;
+                }
+                final int unsigned = quotient == ESCAPE_QUOTIENT
+                        ? readBits(RAW_RESIDUAL_BITS)
+                        : (quotient << k) | (k > 0 ? readBits(k) : 0);
+                final int residual = (unsigned >>> 1) ^ -(unsigned & 1);
+                final int s;
+                switch (order) {
+                    case 0:
+                        s = residual;
+                        break;
+                    case 1:
+                        s = residual + s1;
+                        break;
+                    default:
+                        s = residual + 2 * s1 - s2;
+                        break;
+                }
+                putSample(pcm, pcmOffset, i, s);
+                s2 = s1;
+                s1 = s;
+            }
+        }
+        in = null;
+        return length;
+    }
+
+    private static int chooseOrder(byte[] pcm, int offset, int samples) {
+        long cost0 = 0, cost1 = 0, cost2 = 0;
+        int s1 = sample(pcm, offset, 1);
+        int s2 = sample(pcm, offset, 0);
+        for (int i = MAX_ORDER; i < samples; i++) {
+            final int s = sample(pcm, offset, i);
+            cost0 += Math.abs(s);
+            cost1 += Math.abs(s - s1);
+            cost2 += Math.abs(s - 2 * s1 + s2);
+            s2 = s1;
+            s1 = s;
+        }
+        if (cost0 <= cost1 && cost0 <= cost2) return 0;
+        return cost1 <= cost2 ? 1 : 2;
+    }
+
+    private static int residual(byte[] pcm, int offset, int i, int order) {
+        final int s = sample(pcm, offset, i);
+        switch (order) {
+            case 0:
+                return s;
+            case 1:
+                return s - sample(pcm, offset, i - 1);
+            default:
+                return s - 2 * sample(pcm, offset, i - 1) + sample(pcm, offset, i - 2);
+        }
+    }
+
+    /**
+     * @return Encoded size, or 0 if it would not be smaller than the PCM
+     */
+    private int encodePredicted(byte[] pcm, int offset, int samples, int order,
+                                byte[] encoded, int encodedOffset, int length) {
+        out = encoded;
+        outPosition = encodedOffset + HEADER_SIZE;
+        outLimit = encodedOffset + HEADER_SIZE + length;
+        bitBuffer = 0;
+        bitCount = 0;
+        try {
+            for (int i = 0; i < order; i++) {
+                if (!writeBits(sample(pcm, offset, i) & 0xFFFF, 16)) return 0;
+            }
+            for (int start = order; start < samples; start += PARTITION_SAMPLES) {
+                final int end = Math.min(samples, start + PARTITION_SAMPLES);
+                long sum = 0;
+                for (int i = start; i < end; i++) {
+                    final int r = residual(pcm, offset, i, order);
+                    sum += (r << 1) ^ (r >> 31);
+                }
+                final long mean = sum / (end - start);
+                final int k = mean > 0 ? Math.min(RAW_RESIDUAL_BITS - 1, 63 - Long.numberOfLeadingZeros(mean)) : 0;
+                if (!writeBits(k, RICE_PARAMETER_BITS)) return 0;
+
+                for (int i = start; i < end; i++) {
+                    final int r = residual(pcm, offset, i, order);
+                    final int unsigned = (r << 1) ^ (r >> 31);
+                    final int quotient = unsigned >>> k;
+                    if (quotient >= ESCAPE_QUOTIENT) {
+                        if (!writeOnes(ESCAPE_QUOTIENT) || !writeBits(unsigned, RAW_RESIDUAL_BITS)) return 0;
+                    } else {
+                        if (!writeOnes(quotient) || !writeBits(0, 1)) return 0;
+                        if (k > 0 && !writeBits(unsigned & ((1 << k) - 1), k)) return 0;
+                    }
+                }
+            }
+            if (bitCount > 0) {
+                if (outPosition >= outLimit) return 0;
+                out[outPosition++] = (byte) (bitBuffer << (8 - bitCount));
+                bitCount = 0;
+            }
+        } finally {
+            out = null;
+        }
+
+        encoded[encodedOffset] = (byte) order;
+        writeInt(encoded, encodedOffset + 1, length);
+        return outPosition - encodedOffset;
+    }
+
+    private boolean writeOnes(int count) {
+        while (count > 0) {
+            final int n = Math.min(count, 16);
+            if (!writeBits((1 << n) - 1, n)) return false;
+            count -= n;
+        }
+        return true;
+    }
+
+    private boolean writeBits(int value, int bits) {
+        bitBuffer = (bitBuffer << bits) | (value & ((1L << bits) - 1));
+        bitCount += bits;
+        while (bitCount >= 8) {
+            if (outPosition >= outLimit) return false;
+            bitCount -= 8;
+            out[outPosition++] = (byte) (bitBuffer >>> bitCount);
+        }
+        return true;
+    }
+
+    private int readBits(int bits) {
+        while (bitCount < bits) {
+            bitBuffer = (bitBuffer << 8) | (in[inPosition++] & 0xFF);
+            bitCount += 8;
+        }
+        bitCount -= bits;
+        return (int) ((bitBuffer >>> bitCount) & ((1L << bits) - 1));
+    }
+
+    private static int sample(byte[] pcm, int offset, int index) {
+        final int i = offset + 2 * index;
+        return (short) ((pcm[i + 1] << 8) | (pcm[i] & 0xFF));
+    }
+
+    private static void putSample(byte[] pcm, int offset, int index, int sample) {
+        final int i = offset + 2 * index;
+        pcm[i] = (byte) sample;
+        pcm[i + 1] = (byte) (sample >> 8);
+    }
+
+    private static void writeInt(byte[] array, int offset, int value) {
+        array[offset] = (byte) value;
+        array[offset + 1] = (byte) (value >> 8);
+        array[offset + 2] = (byte) (value >> 16);
+        array[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int readInt(byte[] array, int offset) {
+        return (array[offset] & 0xFF)
+                | (array[offset + 1] & 0xFF) << 8
+                | (array[offset + 2] & 0xFF) << 16
+                | (array[offset + 3] & 0xFF) << 24;
+    }
+}
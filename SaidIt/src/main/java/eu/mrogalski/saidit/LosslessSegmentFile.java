@@ -0,0 +1,300 @@
+package eu.mrogalski.saidit;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Disk segment made of independently decodable {@link LosslessAudioCodec} frames.
+ * Layout: frames, each a 4-byte size followed by the encoded block, then a seek table with the file
+ * offset of every frame, the frame count and a magic number. Every frame except the last holds
+ * exactly FRAME_BYTES of PCM, so the frame for any PCM position is found by a division.
+ * A segment cut off before its seek table was written is indexed by walking the frame headers;
+ * a torn last frame is dropped.
+ */
+class LosslessSegmentFile {
+    private static final String TAG = LosslessSegmentFile.class.getSimpleName();
+    static final int FRAME_BYTES = 8192; // 4096 samples
+    private static final int SEEK_TABLE_MAGIC = 0x4B455345; // "ESEK"
+    private static final int FRAME_HEADER_SIZE = 4;
+
+    /**
+     * Frame index of a finished or recovered segment.
+     */
+    static class Index {
+        final int[] frameOffsets;
+        final int frameCount;
+        final long pcmLength;
+        final long dataLength; // bytes of frame data, without the seek table
+
+        Index(int[] frameOffsets, int frameCount, long pcmLength, long dataLength) {
+            this.frameOffsets = frameOffsets;
+            this.frameCount = frameCount;
+            this.pcmLength = pcmLength;
+            this.dataLength = dataLength;
+        }
+    }
+
+    /**
+     * Appends PCM to a new segment, encoding each frame as soon as it is complete.
+     * Not thread safe; the owning DiskAudioBuffer serializes access.
+     */
+    static class Writer {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final LosslessAudioCodec codec = new LosslessAudioCodec();
+        private final byte[] pending = new byte[FRAME_BYTES];
+        private final byte[] encoded = new byte[FRAME_HEADER_SIZE + LosslessAudioCodec.maxEncodedSize(FRAME_BYTES)];
+        private int pendingBytes = 0;
+        private int[] frameOffsets = new int[64];
+        private int frameCount = 0;
+        private long fileLength = 0;
+        private long pcmLength = 0;
+
+        Writer(File output) throws IOException {
+            file = new RandomAccessFile(output, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int count = Math.min(length, FRAME_BYTES - pendingBytes);
+                System.arraycopy(data, offset, pending, pendingBytes, count);
+                pendingBytes += count;
+                offset += count;
+                length -= count;
+                if (pendingBytes == FRAME_BYTES) {
+                    writeFrame();
+                }
+            }
+        }
+
+        private void writeFrame() throws IOException {
+            final int size = codec.encode(pending, 0, pendingBytes, encoded, FRAME_HEADER_SIZE);
+            writeInt(encoded, 0, size);
+            channel.write(ByteBuffer.wrap(encoded, 0, FRAME_HEADER_SIZE + size), fileLength);
+
+            if (frameCount == frameOffsets.length) {
+                final int[] grown = new int[frameOffsets.length * 2];
+                System.arraycopy(frameOffsets, 0, grown, 0, frameCount);
+                frameOffsets = grown;
+            }
+            frameOffsets[frameCount++] = (int) fileLength;
+            fileLength += FRAME_HEADER_SIZE + size;
+            pcmLength += pendingBytes;
+            pendingBytes = 0;
+        }
+
+        /**
+         * Encodes the remaining partial frame, appends the seek table and closes the file.
+         * @return Index of the finished segment
+         */
+        Index finish() throws IOException {
+            try {
+                if (pendingBytes > 0) {
+                    writeFrame();
+                }
+                final ByteBuffer table = ByteBuffer.allocate(4 * frameCount + 8).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < frameCount; i++) {
+                    table.putInt(frameOffsets[i]);
+                }
+                table.putInt(frameCount);
+                table.putInt(SEEK_TABLE_MAGIC);
+                table.flip();
+                channel.write(table, fileLength);
+            } finally {
+                file.close();
+            }
+            return new Index(frameOffsets, frameCount, pcmLength, fileLength);
+        }
+
+        /**
+         * Closes the file without finishing it; the pending partial frame is lost.
+         */
+        void abort() throws IOException {
+            file.close();
+        }
+
+        /**
+         * Gets a snapshot of the frames written so far.
+         */
+        Index getIndex() {
+            return new Index(frameOffsets, frameCount, pcmLength, fileLength);
+        }
+
+        /**
+         * Number of PCM bytes written, including the ones waiting for a full frame.
+         */
+        long getLength() {
+            return pcmLength + pendingBytes;
+        }
+
+        /**
+         * Number of bytes in the file so far.
+         */
+        long getFileLength() {
+            return fileLength;
+        }
+
+        /**
+         * Passes the PCM that has not been encoded yet, from the given position within it.
+         */
+        void readPending(int position, AudioMemory.Consumer consumer) throws IOException {
+            if (position < pendingBytes) {
+                consumer.consume(pending, position, pendingBytes - position);
+            }
+        }
+    }
+
+    /**
+     * Indexes an existing segment, from its seek table when present, otherwise by walking the frames.
+     * A torn last frame is cut off the file.
+     */
+    static Index load(File input) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(input, "rw")) {
+            final long length = file.length();
+            final Index table = readSeekTable(file, length);
+            if (table != null) {
+                return table;
+            }
+
+            // No seek table - the segment was not finished
+            final byte[] header = new byte[FRAME_HEADER_SIZE + LosslessAudioCodec.HEADER_SIZE];
+            int[] offsets = new int[64];
+            int count = 0;
+            long position = 0;
+            long pcmLength = 0;
+            while (position + header.length <= length) {
+                file.seek(position);
+                file.readFully(header);
+                final int size = readInt(header, 0);
+                final int frameLength = LosslessAudioCodec.decodedLength(header, FRAME_HEADER_SIZE);
+                if (size < LosslessAudioCodec.HEADER_SIZE || position + FRAME_HEADER_SIZE + size > length
+                        || frameLength <= 0 || frameLength > FRAME_BYTES) {
+                    break;
+                }
+                if (count == offsets.length) {
+                    final int[] grown = new int[offsets.length * 2];
+                    System.arraycopy(offsets, 0, grown, 0, count);
+                    offsets = grown;
+                }
+                offsets[count++] = (int) position;
+                position += FRAME_HEADER_SIZE + size;
+                pcmLength += frameLength;
+                if (frameLength < FRAME_BYTES) {
+                    break; // only the last frame can be short
+                }
+            }
+            if (position < length) {
+                Log.w(TAG, "Dropping " + (length - position) + " torn bytes from " + input.getName());
+                file.setLength(position);
+            }
+            return new Index(offsets, count, pcmLength, position);
+        }
+    }
+
+    /**
+     * Cuts a segment down to the whole frames within the given PCM length. The seek table goes with
+     * them, so the file is indexed by walking its frames from then on.
+     * @return Index of the remaining frames
+     */
+    static Index truncate(File input, Index index, long pcmLength) throws IOException {
+        if (pcmLength >= index.pcmLength) {
+            return index;
+        }
+        final int count = (int) (pcmLength / FRAME_BYTES);
+        final long dataLength = count < index.frameCount ? index.frameOffsets[count] : index.dataLength;
+        try (RandomAccessFile file = new RandomAccessFile(input, "rw")) {
+            file.setLength(dataLength);
+        }
+        return new Index(index.frameOffsets, count, (long) count * FRAME_BYTES, dataLength);
+    }
+
+    private static Index readSeekTable(RandomAccessFile file, long length) throws IOException {
+        if (length < 8) return null;
+        final byte[] tail = new byte[8];
+        file.seek(length - 8);
+        file.readFully(tail);
+        final int count = readInt(tail, 0);
+        if (readInt(tail, 4) != SEEK_TABLE_MAGIC || count < 0 || 4L * count + 8 > length) {
+            return null;
+        }
+        final long dataLength = length - 8 - 4L * count;
+        final byte[] table = new byte[4 * count];
+        file.seek(dataLength);
+        file.readFully(table);
+        final int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = readInt(table, 4 * i);
+        }
+
+        long pcmLength = 0;
+        if (count > 0) {
+            final byte[] header = new byte[FRAME_HEADER_SIZE + LosslessAudioCodec.HEADER_SIZE];
+            file.seek(offsets[count - 1]);
+            file.readFully(header);
+            pcmLength = (long) (count - 1) * FRAME_BYTES + LosslessAudioCodec.decodedLength(header, FRAME_HEADER_SIZE);
+        }
+        return new Index(offsets, count, pcmLength, dataLength);
+    }
+
+    /**
+     * Decodes PCM from the given position to the end of the indexed frames.
+     * Only the frames covering the range are read.
+     */
+    static void read(File input, Index index, long position, AudioMemory.Consumer consumer) throws IOException {
+        if (position >= index.pcmLength) return;
+        final LosslessAudioCodec codec = new LosslessAudioCodec();
+        final byte[] pcm = new byte[FRAME_BYTES];
+        byte[] block = new byte[FRAME_HEADER_SIZE + LosslessAudioCodec.maxEncodedSize(FRAME_BYTES)];
+        try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+            final FileChannel channel = file.getChannel();
+            int frame = (int) (position / FRAME_BYTES);
+            int skip = (int) (position % FRAME_BYTES);
+            // Frames are contiguous, so the whole range is read sequentially
+            channel.position(index.frameOffsets[frame]);
+            for (; frame < index.frameCount; frame++) {
+                readFully(channel, block, 0, FRAME_HEADER_SIZE);
+                final int size = readInt(block, 0);
+                if (size > block.length - FRAME_HEADER_SIZE) {
+                    throw new IOException("Corrupt frame " + frame + " in " + input.getName());
+                }
+                readFully(channel, block, FRAME_HEADER_SIZE, size);
+                final int length = codec.decode(block, FRAME_HEADER_SIZE, pcm, 0);
+                if (skip < length) {
+                    consumer.consume(pcm, skip, length - skip);
+                }
+                skip = 0;
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, byte[] array, int offset, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(array, offset, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    private static void writeInt(byte[] array, int offset, int value) {
+        array[offset] = (byte) value;
+        array[offset + 1] = (byte) (value >> 8);
+        array[offset + 2] = (byte) (value >> 16);
+        array[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int readInt(byte[] array, int offset) {
+        return (array[offset] & 0xFF)
+                | (array[offset + 1] & 0xFF) << 8
+                | (array[offset + 2] & 0xFF) << 16
+                | (array[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,286 @@
+package eu.mrogalski.saidit;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Circular PCM buffer stored in a single fixed-size file mapped into memory.
+ * The page cache does the actual I/O, so the history costs no heap and survives a service restart.
+ * The write position and the wrap flag are kept in a small header at the start of the file.
+ * Dumps read from a {@link Snapshot} without the lock, so writing goes on meanwhile; the few bytes the writer
+ * overtakes before they are read come out as silence.
+ */
+public class MappedAudioBuffer {
+    private static final String TAG = MappedAudioBuffer.class.getSimpleName();
+    private static final String BUFFER_DIR_NAME = "EchoBuffer";
+    private static final String FILE_NAME = "mapped_buffer.pcm";
+
+    private static final int MAGIC = 0x4543484F; // "ECHO"
+    private static final int VERSION = 1;
+    // Header occupies a whole page so that audio data stays page aligned
+    static final int HEADER_SIZE = 4096;
+    private static final int MAGIC_INDEX = 0;
+    private static final int VERSION_INDEX = 4;
+    private static final int SAMPLE_RATE_INDEX = 8;
+    private static final int CAPACITY_INDEX = 12;
+    private static final int WRITE_POSITION_INDEX = 20;
+    private static final int WRAPPED_INDEX = 28;
+
+    // A single mapping is limited to Integer.MAX_VALUE bytes, so big buffers are split into regions
+    private static final int REGION_SIZE = 256 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] regions;
+    private final long capacity;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+    private long writePosition;
+    private boolean wrapped;
+    private volatile long writeEnd; // bytes written since opening plus the history found then, raised before they are put
+
+    /**
+     * Opens (or creates) the mapped buffer file.
+     * An existing file is reused, with its history, when it was written with the same capacity and sample rate.
+     * @param storageDir Base storage directory (can be internal or external storage)
+     * @param capacityBytes Size of the audio area in bytes
+     * @param sampleRate Sample rate of the stored audio
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public MappedAudioBuffer(File storageDir, long capacityBytes, int sampleRate) throws IOException {
+        this.capacity = capacityBytes - capacityBytes % 2; // whole 16-bit samples only
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacityBytes);
+        }
+
+        File bufferDir = new File(storageDir, BUFFER_DIR_NAME);
+        if (!bufferDir.exists()) {
+            bufferDir.mkdirs();
+        }
+        this.file = new File(bufferDir, FILE_NAME);
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+
+        final boolean existing = randomAccessFile.length() == HEADER_SIZE + capacity;
+        randomAccessFile.setLength(HEADER_SIZE + capacity);
+
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        int regionCount = (int) ((capacity + REGION_SIZE - 1) / REGION_SIZE);
+        regions = new MappedByteBuffer[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            long start = (long) i * REGION_SIZE;
+            regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start,
+                    Math.min(REGION_SIZE, capacity - start));
+        }
+
+        if (existing
+                && header.getInt(MAGIC_INDEX) == MAGIC
+                && header.getInt(VERSION_INDEX) == VERSION
+                && header.getInt(SAMPLE_RATE_INDEX) == sampleRate
+                && header.getLong(CAPACITY_INDEX) == capacity) {
+            writePosition = header.getLong(WRITE_POSITION_INDEX);
+            wrapped = header.get(WRAPPED_INDEX) != 0;
+            if (writePosition < 0 || writePosition >= capacity) {
+                writePosition = 0;
+                wrapped = false;
+            }
+            Log.d(TAG, "Restored mapped buffer: " + getTotalBytes() + " bytes of history");
+        } else {
+            header.putInt(MAGIC_INDEX, MAGIC);
+            header.putInt(VERSION_INDEX, VERSION);
+            header.putInt(SAMPLE_RATE_INDEX, sampleRate);
+            header.putLong(CAPACITY_INDEX, capacity);
+            writePosition = 0;
+            wrapped = false;
+            saveHeader();
+            Log.d(TAG, "Created mapped buffer of " + capacity + " bytes");
+        }
+        writeEnd = wrapped ? capacity + writePosition : writePosition; // a multiple of capacity ahead of it
+    }
+
+    private void saveHeader() {
+        header.putLong(WRITE_POSITION_INDEX, writePosition);
+        header.put(WRAPPED_INDEX, (byte) (wrapped ? 1 : 0));
+    }
+
+    /**
+     * Writes audio data at the write position, overwriting the oldest data once the buffer is full.
+     * @param data Audio data bytes
+     * @param offset Offset in the data array
+     * @param length Number of bytes to write
+     */
+    public synchronized void write(byte[] data, int offset, int length) {
+        if (length > capacity) {
+            // Only the newest part can survive anyway
+            offset += (int) (length - capacity);
+            length = (int) capacity;
+        }
+        while (length > 0) {
+            final MappedByteBuffer region = regions[(int) (writePosition / REGION_SIZE)];
+            final int regionOffset = (int) (writePosition % REGION_SIZE);
+            final int count = Math.min(length, region.capacity() - regionOffset);
+            writeEnd = writeEnd + count;
+            region.position(regionOffset);
+            region.put(data, offset, count);
+            offset += count;
+            length -= count;
+            writePosition += count;
+            if (writePosition >= capacity) {
+                writePosition = 0;
+                wrapped = true;
+            }
+        }
+        saveHeader();
+    }
+
+    /**
+     * Reads all buffered audio data, oldest first, and passes it to a consumer.
+     * @param skipBytes Number of bytes to skip from the beginning
+     * @param consumer Consumer to process the audio data
+     * @throws IOException if the consumer fails
+     */
+    public synchronized void read(long skipBytes, AudioMemory.Consumer consumer) throws IOException {
+        long remaining = getTotalBytes() - Math.max(0, skipBytes);
+        long position = (wrapped ? writePosition : 0) + Math.max(0, skipBytes);
+        while (remaining > 0) {
+            position %= capacity;
+            final MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+            final int regionOffset = (int) (position % REGION_SIZE);
+            final int count = (int) Math.min(remaining, Math.min(readBuffer.length, region.capacity() - regionOffset));
+            region.position(regionOffset);
+            region.get(readBuffer, 0, count);
+            consumer.consume(readBuffer, 0, count);
+            position += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the buffered audio, to be read while writing goes on.
+     */
+    public synchronized Snapshot snapshot() {
+        final MappedByteBuffer[] views = new MappedByteBuffer[regions.length];
+        for (int i = 0; i < regions.length; i++) {
+            // Own positions, so reading does not disturb the writer
+            views[i] = (MappedByteBuffer) regions[i].duplicate();
+        }
+        return new Snapshot(this, views, writeEnd, getTotalBytes());
+    }
+
+    /**
+     * The buffered audio at one moment. It is read without the buffer lock; the oldest bytes may be
+     * overwritten before they are read, and those are passed on as silence so the length stays exact.
+     */
+    public static final class Snapshot {
+        private final MappedAudioBuffer buffer;
+        private final MappedByteBuffer[] regions;
+        private final long end; // writeEnd when the snapshot was taken
+        private final long length;
+
+        private Snapshot(MappedAudioBuffer buffer, MappedByteBuffer[] regions, long end, long length) {
+            this.buffer = buffer;
+            this.regions = regions;
+            this.end = end;
+            this.length = length;
+        }
+
+        /**
+         * Gets the number of bytes in the snapshot.
+         */
+        public long getTotalBytes() {
+            return length;
+        }
+
+        /**
+         * Reads the audio, oldest first, and passes it to a consumer.
+         * @param skipBytes Number of bytes to skip from the beginning
+         * @param count Maximum number of bytes to read
+         * @param consumer Consumer to process the audio data
+         * @throws IOException if the consumer fails
+         */
+        public void read(long skipBytes, long count, AudioMemory.Consumer consumer) throws IOException {
+            final long capacity = buffer.capacity;
+            final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+            long absolute = end - length + Math.max(0, skipBytes);
+            long remaining = Math.min(count, end - absolute);
+            while (remaining > 0) {
+                final long position = absolute % capacity;
+                final MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+                final int regionOffset = (int) (position % REGION_SIZE);
+                final int n = (int) Math.min(remaining, Math.min(readBuffer.length, region.capacity() - regionOffset));
+                region.position(regionOffset);
+                region.get(readBuffer, 0, n);
+                // Whatever the writer has got to by now may have been overwritten while it was copied
+                final long overwritten = buffer.writeEnd - capacity - absolute;
+                if (overwritten > 0) {
+                    Arrays.fill(readBuffer, 0, (int) Math.min(n, overwritten), (byte) 0);
+                }
+                consumer.consume(readBuffer, 0, n);
+                absolute += n;
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Gets the total number of bytes currently stored in the buffer.
+     */
+    public synchronized long getTotalBytes() {
+        return wrapped ? capacity : writePosition;
+    }
+
+    /**
+     * Gets the size of the audio area in bytes.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Asks the kernel to write dirty pages back to the file.
+     */
+    public synchronized void flush() {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+        header.force();
+    }
+
+    /**
+     * Flushes the mapping and closes the file. The mapping itself is released by the garbage collector.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+        randomAccessFile.close();
+    }
+
+    /**
+     * Forgets the buffered history (the file keeps its size).
+     */
+    public synchronized void clearAll() {
+        writePosition = 0;
+        wrapped = false;
+        writeEnd = 0;
+        saveHeader();
+    }
+
+    /**
+     * Gets the file backing this buffer.
+     */
+    public File getFile() {
+        return file;
+    }
+}
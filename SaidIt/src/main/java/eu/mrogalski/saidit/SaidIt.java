@@ -6,15 +6,37 @@ public class SaidIt {
     static final String AUDIO_MEMORY_ENABLED_KEY = "audio_memory_enabled";
     static final String AUDIO_MEMORY_SIZE_KEY = "audio_memory_size";
     static final String MEMORY_SIZE_MB_KEY = "memory_size_mb";
+    static final String AUDIO_MEMORY_OFF_HEAP_KEY = "audio_memory_off_heap";
+    static final String AUDIO_MEMORY_COMPRESSED_KEY = "audio_memory_compressed";
     static final String STORAGE_MODE_KEY = "storage_mode";
     static final String MAX_DISK_USAGE_MB_KEY = "max_disk_usage_mb";
+    static final String DISK_LOSSLESS_KEY = "disk_lossless"; // compress new disk segments losslessly
+    static final String DISK_PREALLOCATED_KEY = "disk_preallocated"; // recycle fixed-size disk segment files
+    static final String DISK_FLUSH_INTERVAL_MS_KEY = "disk_flush_interval_ms";
+    static final String DISK_FLUSH_BYTES_KEY = "disk_flush_bytes";
+    static final String DISK_SYNC_ON_ROTATION_KEY = "disk_sync_on_rotation";
+    static final int DEFAULT_DISK_FLUSH_INTERVAL_MS = 1000;
+    static final int DEFAULT_DISK_FLUSH_BYTES = 64 * 1024;
+    static final int DURABLE_DISK_FLUSH_INTERVAL_MS = 250; // loses less audio on a crash, at more writes
+    static final int DURABLE_DISK_FLUSH_BYTES = 16 * 1024;
+    static final String DISK_COMPACTION_ENABLED_KEY = "disk_compaction_enabled";
+    static final String DISK_PCM_MINUTES_KEY = "disk_pcm_minutes"; // younger segments stay PCM
+    static final String DISK_LOW_QUALITY_MINUTES_KEY = "disk_low_quality_minutes"; // older segments go to LOW
+    static final int DEFAULT_DISK_PCM_MINUTES = 10;
+    static final int DEFAULT_DISK_LOW_QUALITY_MINUTES = 60;
     static final String ACTIVITY_DETECTION_ENABLED_KEY = "activity_detection_enabled";
     static final String ACTIVITY_DETECTION_THRESHOLD_KEY = "activity_detection_threshold";
     static final String ACTIVITY_PRE_BUFFER_SECONDS_KEY = "activity_pre_buffer_seconds";
     static final String ACTIVITY_POST_BUFFER_SECONDS_KEY = "activity_post_buffer_seconds";
     static final String ACTIVITY_AUTO_DELETE_DAYS_KEY = "activity_auto_delete_days";
     static final String ACTIVITY_HIGH_BITRATE_KEY = "activity_high_bitrate";
+    static final String ACTIVITY_SPECTRAL_DETECTION_KEY = "activity_spectral_detection";
+    static final String ACTIVITY_CODEC_KEY = "activity_codec"; // AudioEncoder.Codec name, unset for WAV
+    static final int DEFAULT_ACTIVITY_PRE_BUFFER_SECONDS = 300;
+    static final int DEFAULT_ACTIVITY_POST_BUFFER_SECONDS = 300;
+    static final int DEFAULT_ACTIVITY_AUTO_DELETE_DAYS = 7;
     static final String SAMPLE_RATE_KEY = "sample_rate";
+    static final String BLOCKING_CAPTURE_KEY = "blocking_capture";
     
     // OOM handling configuration
     static final String MEMORY_SIZE_VERIFIED_KEY = "memory_size_verified";
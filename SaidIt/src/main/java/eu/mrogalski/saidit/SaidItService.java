@@ -13,6 +13,7 @@ import android.content.pm.ServiceInfo;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.os.Binder;
@@ -30,6 +31,13 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import simplesound.pcm.WavAudioFormat;
 import simplesound.pcm.WavFileWriter;
@@ -46,24 +54,45 @@ public class SaidItService extends Service {
 
     File wavFile;
     AudioRecord audioRecord; // used only in the audio thread
-    WavFileWriter wavFileWriter; // used only in the audio thread
-    final AudioMemory audioMemory = new AudioMemory(); // used only in the audio thread
-    DiskAudioBuffer diskAudioBuffer; // used only in the audio thread
+    volatile WavFileWriter wavFileWriter; // published by the audio thread, written by the audio worker
+    volatile long recordingStartPosition; // first ring position that belongs to wavFileWriter
+    volatile Future<?> prerollCopy; // copies the prepended history into the head of wavFileWriter
+    volatile AudioMemory audioMemory; // used only in the audio thread
+    volatile DiskAudioBuffer diskAudioBuffer; // created on the audio thread, written by diskWriter
+    volatile AsyncDiskWriter diskWriter; // created with diskAudioBuffer, fed by the audio worker or the memory spilling history
+    volatile MappedAudioBuffer mappedAudioBuffer; // created on the audio thread, written by the audio worker
+    ScheduledExecutorService compactionExecutor; // only touched on the audio thread
+    ExecutorService dumpExecutor; // writes memory dumps from snapshots while capture goes on
+    CountDownLatch diskBufferClosed; // counted down once the previous disk buffer is closed by the audio worker
+    ExecutorService diskBufferLoader; // recovers disk buffers from storage, one at a time
+    Object diskBufferLoading; // stands for the disk buffer being recovered, only touched on the audio thread
     volatile StorageMode storageMode = StorageMode.MEMORY_ONLY;
     
     // Activity detection
     volatile boolean activityDetectionEnabled = false;
     VoiceActivityDetector voiceActivityDetector;
     ActivityRecordingDatabase activityRecordingDatabase;
-    boolean isRecordingActivity = false;
-    long activityStartTime = 0;
-    long lastActivityTime = 0;
-    WavFileWriter activityWavFileWriter;
-    File activityWavFile;
+    volatile ActivityRecorder activityRecorder; // created on the audio thread, used by the audio worker
 
     HandlerThread audioThread;
     Handler audioHandler; // used to post messages to audio thread
 
+    // Blocking capture mode: a dedicated thread reads small fixed periods from AudioRecord
+    static final int CAPTURE_PERIOD_MS = 20;
+    static final int COMPACTION_INTERVAL_SECONDS = 60;
+    static final int DISK_BUFFER_CLOSE_TIMEOUT_SECONDS = 5;
+    static final int DISK_WRITER_BUFFER_SIZE = 64 * 1024;
+    static final int DISK_WRITER_QUEUE_SECONDS = 10; // audio that may wait for slow storage before it is dropped
+    static final int DISK_WRITER_QUEUE_CHUNKS = 2; // in HYBRID mode whole memory chunks are queued at once
+    volatile boolean blockingCapture = false;
+    Thread captureThread; // started and joined on the audio thread
+    volatile boolean captureRunning = false;
+    final Object captureLock = new Object(); // keeps AudioMemory and the audio worker in step
+    AudioWorker audioWorker; // writes captured audio to files and disk buffers off the audio thread
+    volatile AudioTimeline captureTimeline; // capture times by audio worker position, stamped when blocks are offered
+    long capturedFrames; // frames read since audioRecord was started, only touched by the capturing thread
+    final AudioTimestamp captureTimestamp = new AudioTimestamp(); // only touched by the capturing thread
+
     @Override
     public void onCreate() {
 
@@ -73,6 +102,10 @@ public class SaidItService extends Service {
         SAMPLE_RATE = preferences.getInt(SAMPLE_RATE_KEY, AudioTrack.getNativeOutputSampleRate (AudioManager.STREAM_MUSIC));
         Log.d(TAG, "Sample rate: " + SAMPLE_RATE);
         FILL_RATE = 2 * SAMPLE_RATE;
+
+        audioMemory = AudioMemory.create(preferences.getBoolean(AUDIO_MEMORY_OFF_HEAP_KEY, false),
+                preferences.getBoolean(AUDIO_MEMORY_COMPRESSED_KEY, false));
+        blockingCapture = preferences.getBoolean(BLOCKING_CAPTURE_KEY, false);
         
         // Load storage mode
         String modeStr = preferences.getString(STORAGE_MODE_KEY, StorageMode.MEMORY_ONLY.name());
@@ -96,6 +129,23 @@ public class SaidItService extends Service {
         audioThread.start();
         audioHandler = new Handler(audioThread.getLooper());
 
+        // Large enough for the biggest block a single non-blocking read can return
+        audioWorker = new AudioWorker("audioWorker", 2 * AudioMemory.CHUNK_SIZE, audioConsumer);
+        audioWorker.start();
+
+        dumpExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "dumpWriter");
+            }
+        });
+        diskBufferLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "diskBufferLoader");
+            }
+        });
+
         if(preferences.getBoolean(AUDIO_MEMORY_ENABLED_KEY, true)) {
             innerStartListening();
         }
@@ -106,6 +156,21 @@ public class SaidItService extends Service {
     public void onDestroy() {
         stopRecording(null, "");
         innerStopListening();
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // After the recording is closed - it may still hand its closing to dumpExecutor
+                audioWorker.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Lets the dumps in progress finish
+                        dumpExecutor.shutdown();
+                    }
+                });
+                audioWorker.quit();
+                diskBufferLoader.shutdown();
+            }
+        });
         stopForeground(STOP_FOREGROUND_REMOVE);
     }
 
@@ -212,14 +277,32 @@ public class SaidItService extends Service {
                     return;
                 }
                 
-                // Initialize disk buffer if in BATCH_TO_DISK mode
-                if (storageMode == StorageMode.BATCH_TO_DISK) {
+                // Initialize disk buffer if in BATCH_TO_DISK or HYBRID mode
+                if (storageMode == StorageMode.BATCH_TO_DISK || storageMode == StorageMode.HYBRID) {
                     initializeDiskBuffer();
+                } else if (storageMode == StorageMode.MAPPED_FILE) {
+                    initializeMappedBuffer();
+                }
+                updateSpillListener();
+
+                if (activityDetectionEnabled) {
+                    startActivityRecorder();
                 }
 
+                // Capture times are tracked from here on, at this session's rate
+                capturedFrames = 0;
+                captureTimeline = new AudioTimeline(FILL_RATE, 2, AudioMemory.CHUNK_SIZE);
+                audioMemory.setTimeline(new AudioTimeline(FILL_RATE, 2, AudioMemory.CHUNK_SIZE));
+
                 Log.d(TAG, "Audio: STARTING AudioRecord");
                 audioRecord.startRecording();
-                audioHandler.post(audioReader);
+                if (blockingCapture) {
+                    captureRunning = true;
+                    captureThread = new Thread(captureLoop, "captureThread");
+                    captureThread.start();
+                } else {
+                    audioHandler.post(audioReader);
+                }
             }
         });
 
@@ -244,6 +327,7 @@ public class SaidItService extends Service {
             @Override
             public void run() {
                 Log.d(TAG, "Executing: STOP LISTENING");
+                stopCaptureThread();
                 if(audioRecord != null)
                     audioRecord.release();
                 audioHandler.removeCallbacks(audioReader);
@@ -251,113 +335,348 @@ public class SaidItService extends Service {
                 
                 // Cleanup disk buffer
                 cleanupDiskBuffer();
+                cleanupMappedBuffer();
+                stopActivityRecorder();
             }
         });
 
     }
 
-    public void dumpRecording(final float memorySeconds, final WavFileReceiver wavFileReceiver, String newFileName) {
+    public void dumpRecording(final float memorySeconds, final WavFileReceiver wavFileReceiver, final String newFileName) {
+        if(state != STATE_LISTENING) throw new IllegalStateException("Not listening!");
+
+        dump(memorySeconds, -1, -1, wavFileReceiver, newFileName);
+    }
+
+    /**
+     * Saves the audio captured between two wall-clock times. Only the AudioMemory chunks or disk segments
+     * holding the range are read. Parts of the range that are not buffered (any more) are left out.
+     * @param startWallMillis Wall-clock time of the first byte to save
+     * @param endWallMillis Wall-clock time right after the last byte to save
+     */
+    public void extractRange(final long startWallMillis, final long endWallMillis, final WavFileReceiver wavFileReceiver, final String newFileName) {
         if(state != STATE_LISTENING) throw new IllegalStateException("Not listening!");
+        if(startWallMillis < 0 || endWallMillis <= startWallMillis) {
+            throw new IllegalArgumentException("Invalid range: " + startWallMillis + " - " + endWallMillis);
+        }
 
+        dump(0, startWallMillis, endWallMillis, wavFileReceiver, newFileName);
+    }
+
+    /**
+     * Saves the newest memorySeconds of history, or the given wall-clock range when startWallMillis is not negative.
+     */
+    private void dump(final float memorySeconds, final long startWallMillis, final long endWallMillis,
+                      final WavFileReceiver wavFileReceiver, final String newFileName) {
         audioHandler.post(new Runnable() {
             @Override
             public void run() {
                 flushAudioRecord();
-                int prependBytes = (int)(memorySeconds * FILL_RATE);
-                int bytesAvailable;
-                
-                // Get bytes available from appropriate storage
-                if (storageMode == StorageMode.BATCH_TO_DISK && diskAudioBuffer != null) {
-                    bytesAvailable = (int) diskAudioBuffer.getTotalBytes();
-                    Log.d(TAG, "Dumping from disk buffer: " + bytesAvailable + " bytes");
+                if (storageMode == StorageMode.MEMORY_ONLY) {
+                    // Capture goes on while the snapshot is written out
+                    final AudioMemory.Snapshot snapshot = audioMemory.snapshot();
+                    dumpExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeDump(snapshot, memorySeconds, startWallMillis, endWallMillis, wavFileReceiver, newFileName);
+                        }
+                    });
                 } else {
-                    bytesAvailable = audioMemory.countFilled();
-                    Log.d(TAG, "Dumping from memory buffer: " + bytesAvailable + " bytes");
+                    // Disk-backed history is written by the audio worker - dump once it has caught up
+                    audioWorker.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            final AsyncDiskWriter writer = diskWriter;
+                            final DiskAudioBuffer disk = diskAudioBuffer;
+                            if ((storageMode == StorageMode.BATCH_TO_DISK || storageMode == StorageMode.HYBRID)
+                                    && writer != null && disk != null) {
+                                // ...and the disk writer has stored everything the worker handed it
+                                dumpStored(writer, disk, memorySeconds, startWallMillis, endWallMillis, wavFileReceiver, newFileName);
+                                return;
+                            }
+                            // The mapped buffer is read unlocked as well, so the worker never waits for the dump
+                            final MappedAudioBuffer mapped = mappedAudioBuffer;
+                            final MappedAudioBuffer.Snapshot mappedSnapshot =
+                                    storageMode == StorageMode.MAPPED_FILE && mapped != null ? mapped.snapshot() : null;
+                            final AudioMemory.Snapshot snapshot = audioMemory.snapshot();
+                            dumpExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    writeDump(snapshot, null, mappedSnapshot, memorySeconds, startWallMillis, endWallMillis,
+                                            wavFileReceiver, newFileName);
+                                }
+                            });
+                        }
+                    });
                 }
+            }
+        });
 
-                int skipBytes = Math.max(0, bytesAvailable - prependBytes);
+    }
 
-                int useBytes = bytesAvailable - skipBytes;
-                long millis  = System.currentTimeMillis() - 1000 * useBytes / FILL_RATE;
-                final int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_WEEKDAY | DateUtils.FORMAT_SHOW_DATE;
-                final String dateTime = DateUtils.formatDateTime(SaidItService.this, millis, flags);
-                String filename = "Echo - " + dateTime + ".wav";
-                if(!newFileName.equals("")){
-                    filename = newFileName + ".wav";
+    /**
+     * Dumps disk-backed history. The disk writer is only used as a barrier: when it gets to the posted task,
+     * everything handed to it before is stored, and the task just takes a snapshot of the disk buffer.
+     * The files are read on dumpExecutor, so the writer goes on storing audio however long the dump takes.
+     * Runs on the audio worker.
+     */
+    private void dumpStored(final AsyncDiskWriter writer, final DiskAudioBuffer disk, final float memorySeconds,
+                            final long startWallMillis, final long endWallMillis,
+                            final WavFileReceiver wavFileReceiver, final String newFileName) {
+        final CountDownLatch stored = new CountDownLatch(1);
+        final DiskAudioBuffer.Snapshot[] diskSnapshot = {null};
+        final Runnable barrier = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    diskSnapshot[0] = disk.snapshot();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error taking a snapshot of the disk buffer", e);
+                } finally {
+                    stored.countDown();
                 }
-
-                File storageDir;
-                if(isExternalStorageWritable()){
-                    // Use public storage directory for Android 11+ (min SDK 30)
-                    storageDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "Echo");
-                }else{
-                    storageDir = new File(getFilesDir(), "Echo");
+            }
+        };
+        final AudioMemory memory = audioMemory;
+        final AudioMemory.Snapshot snapshot;
+        if (storageMode == StorageMode.HYBRID) {
+            // While the memory is locked nothing more is spilled, so the barrier goes into the writer's queue
+            // right after the evicted part of the snapshot and the disk snapshot ends where it ends.
+            // Audio spilled later is queued behind the barrier. Nothing is written under the lock.
+            synchronized (memory) {
+                snapshot = memory.snapshot();
+                writer.post(barrier);
+            }
+        } else {
+            snapshot = memory.snapshot();
+            writer.post(barrier);
+        }
+        dumpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stored.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                writeDump(snapshot, diskSnapshot[0], null, memorySeconds, startWallMillis, endWallMillis, wavFileReceiver, newFileName);
+            }
+        });
+    }
 
-                if(!storageDir.exists()){
-                    storageDir.mkdir();
-                }
-                File file = new File(storageDir, filename);
+    private void writeDump(AudioMemory.Snapshot snapshot, float memorySeconds, long startWallMillis, long endWallMillis,
+                           WavFileReceiver wavFileReceiver, String newFileName) {
+        writeDump(snapshot, null, null, memorySeconds, startWallMillis, endWallMillis, wavFileReceiver, newFileName);
+    }
 
-                // Create the file if it doesn't exist
-                if (!file.exists()) {
-                    try {
-                        if (!file.createNewFile()) {
-                            // Handle file creation failure
-                            throw new IOException("Failed to create file");
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        // Handle IOException
-                        showToast(getString(R.string.cant_create_file) + file.getAbsolutePath());
-                    }
+    private void writeDump(AudioMemory.Snapshot snapshot, DiskAudioBuffer.Snapshot diskSnapshot,
+                           MappedAudioBuffer.Snapshot mappedSnapshot, float memorySeconds,
+                           long startWallMillis, long endWallMillis, WavFileReceiver wavFileReceiver, String newFileName) {
+        try {
+            writeDumpFile(snapshot, diskSnapshot, mappedSnapshot, memorySeconds, startWallMillis, endWallMillis,
+                    wavFileReceiver, newFileName);
+        } finally {
+            snapshot.close();
+            if (diskSnapshot != null) {
+                diskSnapshot.close();
+            }
+        }
+    }
+
+    /**
+     * @param disk Disk history to dump from in BATCH_TO_DISK and HYBRID mode, null otherwise
+     * @param mapped Mapped history to dump from in MAPPED_FILE mode, null otherwise
+     */
+    private void writeDumpFile(AudioMemory.Snapshot snapshot, DiskAudioBuffer.Snapshot disk, MappedAudioBuffer.Snapshot mapped,
+                               float memorySeconds, long startWallMillis, long endWallMillis,
+                               WavFileReceiver wavFileReceiver, String newFileName) {
+        // Runs off the audio thread - take one consistent look at the storage mode
+        final StorageMode mode = storageMode;
+        // Long throughout - disk history may hold hours of audio
+        long prependBytes = (long)(memorySeconds * FILL_RATE);
+        long bytesAvailable;
+        // HYBRID: the disk part, without the spilled audio the memory still holds
+        long diskBytes = 0;
+        
+        // Get bytes available from appropriate storage
+        if (mode == StorageMode.HYBRID && disk != null) {
+            diskBytes = Math.max(0, disk.getTotalBytes() - snapshot.getEvictedStillHeld());
+            bytesAvailable = diskBytes + snapshot.getLength();
+            Log.d(TAG, "Dumping from disk and memory: " + diskBytes + " + " + (bytesAvailable - diskBytes) + " bytes");
+        } else if (mode == StorageMode.BATCH_TO_DISK && disk != null) {
+            bytesAvailable = disk.getTotalBytes();
+            Log.d(TAG, "Dumping from disk buffer: " + bytesAvailable + " bytes");
+        } else if (mode == StorageMode.MAPPED_FILE && mapped != null) {
+            bytesAvailable = mapped.getTotalBytes();
+            Log.d(TAG, "Dumping from mapped buffer: " + bytesAvailable + " bytes");
+        } else {
+            bytesAvailable = snapshot.getLength();
+            Log.d(TAG, "Dumping from memory buffer: " + bytesAvailable + " bytes");
+        }
+
+        long skipBytes;
+        long useBytes;
+        if (startWallMillis < 0) {
+            skipBytes = Math.max(0, bytesAvailable - prependBytes);
+            useBytes = bytesAvailable - skipBytes;
+        } else {
+            // Seek straight to the range - the timelines tell where it is without reading any audio
+            skipBytes = findHistoryPosition(startWallMillis, mode, disk, diskBytes, snapshot, bytesAvailable);
+            useBytes = findHistoryPosition(endWallMillis, mode, disk, diskBytes, snapshot, bytesAvailable) - skipBytes;
+            useBytes = Math.max(0, useBytes);
+            Log.d(TAG, "Range " + startWallMillis + " - " + endWallMillis + " is " + useBytes + " bytes after " + skipBytes);
+        }
+        // When the first dumped byte was captured
+        long millis = -1;
+        if (disk != null && (mode == StorageMode.BATCH_TO_DISK || (mode == StorageMode.HYBRID && skipBytes < diskBytes))) {
+            millis = disk.getTimeline().getWallMillis(disk.getOldestOffset() + skipBytes);
+        } else if (mode != StorageMode.MAPPED_FILE && snapshot.getTimeline() != null) {
+            final long position = snapshot.getEndPosition() - snapshot.getLength() + Math.max(0, skipBytes - diskBytes);
+            millis = snapshot.getTimeline().getWallMillis(position);
+        }
+        if (millis < 0) {
+            millis = startWallMillis >= 0 ? startWallMillis : System.currentTimeMillis() - 1000L * useBytes / FILL_RATE;
+        }
+        final int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_WEEKDAY | DateUtils.FORMAT_SHOW_DATE;
+        final String dateTime = DateUtils.formatDateTime(SaidItService.this, millis, flags);
+        String filename = "Echo - " + dateTime + ".wav";
+        if(!newFileName.equals("")){
+            filename = newFileName + ".wav";
+        }
+
+        File storageDir;
+        if(isExternalStorageWritable()){
+            // Use public storage directory for Android 11+ (min SDK 30)
+            storageDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "Echo");
+        }else{
+            storageDir = new File(getFilesDir(), "Echo");
+        }
+
+        if(!storageDir.exists()){
+            storageDir.mkdir();
+        }
+        File file = new File(storageDir, filename);
+
+        // Create the file if it doesn't exist
+        if (!file.exists()) {
+            try {
+                if (!file.createNewFile()) {
+                    // Handle file creation failure
+                    throw new IOException("Failed to create file");
                 }
-                final WavAudioFormat format = new WavAudioFormat.Builder().sampleRate(SAMPLE_RATE).build();
-                try (WavFileWriter writer = new WavFileWriter(format, file)) {
-                    try {
-                        // Read from appropriate storage based on mode
-                        if (storageMode == StorageMode.BATCH_TO_DISK && diskAudioBuffer != null) {
-                            // Read from disk buffer
-                            diskAudioBuffer.read(skipBytes, new AudioMemory.Consumer() {
-                                @Override
-                                public int consume(byte[] array, int offset, int count) throws IOException {
-                                    writer.write(array, offset, count);
-                                    return 0;
-                                }
-                            });
-                        } else {
-                            // Read from memory buffer
-                            audioMemory.read(skipBytes, new AudioMemory.Consumer() {
-                                @Override
-                                public int consume(byte[] array, int offset, int count) throws IOException {
-                                    writer.write(array, offset, count);
-                                    return 0;
-                                }
-                            });
-                        }
-                    } catch (IOException e) {
-                        // Handle error during file writing
-                        showToast(getString(R.string.error_during_writing_history_into) + file.getAbsolutePath());
-                        Log.e(TAG, "Error during writing history into " + file.getAbsolutePath(), e);
-                    }
-                    if (wavFileReceiver != null) {
-                        wavFileReceiver.fileReady(file, writer.getTotalSampleBytesWritten() * getBytesToSeconds());
+            } catch (IOException e) {
+                e.printStackTrace();
+                // Handle IOException
+                showToast(getString(R.string.cant_create_file) + file.getAbsolutePath());
+            }
+        }
+        final WavAudioFormat format = new WavAudioFormat.Builder().sampleRate(SAMPLE_RATE).build();
+        try (WavFileWriter writer = new WavFileWriter(format, file)) {
+            try {
+                // Read from appropriate storage based on mode
+                if (mode == StorageMode.HYBRID && disk != null) {
+                    // Older audio from disk, the rest from memory
+                    final long fromDisk = Math.max(0, Math.min(useBytes, diskBytes - skipBytes));
+                    if (fromDisk > 0) {
+                        disk.transferTo(skipBytes, fromDisk, writer);
                     }
-                } catch (IOException e) {
-                    // Handle error during file creation or closing writer
-                    showToast(getString(R.string.cant_create_file) + file.getAbsolutePath());
-                    Log.e(TAG, "Can't create file " + file.getAbsolutePath(), e);
+                    snapshot.read((int) Math.max(0, skipBytes - diskBytes), (int) Math.min(Integer.MAX_VALUE, useBytes - fromDisk), new AudioMemory.Consumer() {
+                        @Override
+                        public int consume(byte[] array, int offset, int count) throws IOException {
+                            writer.write(array, offset, count);
+                            return 0;
+                        }
+                    });
+                } else if (mode == StorageMode.BATCH_TO_DISK && disk != null) {
+                    // Disk segments already hold raw PCM in the output format - copy them zero-copy
+                    disk.transferTo(skipBytes, useBytes, writer);
+                } else if (mode == StorageMode.MAPPED_FILE && mapped != null) {
+                    // Copy straight out of the mapping
+                    mapped.read(skipBytes, useBytes, new AudioMemory.Consumer() {
+                        @Override
+                        public int consume(byte[] array, int offset, int count) throws IOException {
+                            writer.write(array, offset, count);
+                            return 0;
+                        }
+                    });
+                } else {
+                    // Read from memory buffer
+                    // Memory history always fits an int
+                    snapshot.read((int) skipBytes, (int) useBytes, new AudioMemory.Consumer() {
+                        @Override
+                        public int consume(byte[] array, int offset, int count) throws IOException {
+                            writer.write(array, offset, count);
+                            return 0;
+                        }
+                    });
                 }
+            } catch (IOException e) {
+                // Handle error during file writing
+                showToast(getString(R.string.error_during_writing_history_into) + file.getAbsolutePath());
+                Log.e(TAG, "Error during writing history into " + file.getAbsolutePath(), e);
             }
-        });
+            if (wavFileReceiver != null) {
+                final float runtime = writer.getTotalSampleBytesWritten() * getBytesToSeconds();
+                audioHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        wavFileReceiver.fileReady(file, runtime);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // Handle error during file creation or closing writer
+            showToast(getString(R.string.cant_create_file) + file.getAbsolutePath());
+            Log.e(TAG, "Can't create file " + file.getAbsolutePath(), e);
+        }
+    }
 
+    /**
+     * Finds the audio captured at the given wall-clock time in the history a dump reads from:
+     * diskBytes from the disk buffer (all of it in BATCH_TO_DISK mode) followed by the snapshot.
+     * @return Number of history bytes before it, between 0 and bytesAvailable
+     */
+    private long findHistoryPosition(long wallMillis, StorageMode mode, DiskAudioBuffer.Snapshot disk, long diskBytes,
+                                     AudioMemory.Snapshot snapshot, long bytesAvailable) {
+        long position = 0;
+        if (mode == StorageMode.MAPPED_FILE) {
+            // No timeline - assume the mapped history runs continuously up to now
+            position = bytesAvailable - (System.currentTimeMillis() - wallMillis) * FILL_RATE / 1000;
+            position -= position % 2;
+        } else if (mode == StorageMode.BATCH_TO_DISK && disk != null) {
+            final long offset = disk.getTimeline().findPositionAtWallClock(wallMillis);
+            if (offset >= 0) {
+                position = offset - disk.getOldestOffset();
+            }
+        } else {
+            final AudioTimeline timeline = snapshot.getTimeline();
+            final long memoryStart = snapshot.getEndPosition() - snapshot.getLength();
+            if (timeline != null && (disk == null || diskBytes == 0 || timeline.getWallMillis(memoryStart) <= wallMillis)) {
+                final long found = timeline.findPositionAtWallClock(wallMillis);
+                if (found >= 0) {
+                    position = diskBytes + found - memoryStart;
+                }
+            } else if (disk != null) {
+                final long offset = disk.getTimeline().findPositionAtWallClock(wallMillis);
+                if (offset >= 0) {
+                    position = Math.min(diskBytes, offset - disk.getOldestOffset());
+                }
+            }
+        }
+        return Math.max(0, Math.min(bytesAvailable, position));
     }
+
     private static boolean isExternalStorageWritable() {
         String state = Environment.getExternalStorageState();
         return Environment.MEDIA_MOUNTED.equals(state);
     }
-    private void showToast(String message) {
-        Toast.makeText(SaidItService.this, message, Toast.LENGTH_LONG).show();
+    private void showToast(final String message) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(SaidItService.this, message, Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     public void startRecording(final float prependedMemorySeconds) {
@@ -382,7 +701,11 @@ public class SaidItService extends Service {
                 int skipBytes = Math.max(0, bytesAvailable - prependBytes);
 
                 int useBytes = bytesAvailable - skipBytes;
-                long millis  = System.currentTimeMillis() - 1000 * useBytes / FILL_RATE;
+                final AudioTimeline timeline = audioMemory.getTimeline();
+                long millis = timeline == null ? -1 : timeline.getWallMillis(audioMemory.getEndPosition() - useBytes);
+                if (millis < 0) {
+                    millis = System.currentTimeMillis() - 1000L * useBytes / FILL_RATE;
+                }
                 final int flags = DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_WEEKDAY | DateUtils.FORMAT_SHOW_DATE;
                 final String dateTime = DateUtils.formatDateTime(SaidItService.this, millis, flags);
                 String filename = "Echo - " + dateTime + ".wav";
@@ -407,8 +730,9 @@ public class SaidItService extends Service {
                     wavFile = new File(path);
                 }
                 WavAudioFormat format = new WavAudioFormat.Builder().sampleRate(SAMPLE_RATE).build();
+                final WavFileWriter writer;
                 try {
-                    wavFileWriter = new WavFileWriter(format, wavFile);
+                    writer = new WavFileWriter(format, wavFile);
                 } catch (IOException e) {
                     final String errorMessage = getString(R.string.cant_create_file) + path;
                     Toast.makeText(SaidItService.this, errorMessage, Toast.LENGTH_LONG).show();
@@ -416,27 +740,203 @@ public class SaidItService extends Service {
                     return;
                 }
 
-                final String finalPath = path;
+                final String errorMessage = getString(R.string.error_during_writing_history_into) + path;
 
-                if(skipBytes < bytesAvailable) {
+                // In blocking capture mode the capture thread keeps filling - hold it off for a moment so that
+                // the prepended history and the live part meet exactly. Only pinning the history and
+                // reserving room for it happen here; it is copied while live audio is already appended.
+                synchronized (captureLock) {
+                    final AudioMemory.Snapshot history = audioMemory.snapshot();
+                    final int historyBytes = Math.min(prependBytes, history.getLength());
                     try {
-                        audioMemory.read(skipBytes, new AudioMemory.Consumer() {
+                        writer.reserve(historyBytes);
+                        prerollCopy = dumpExecutor.submit(new Runnable() {
                             @Override
-                            public int consume(byte[] array, int offset, int count) throws IOException {
-                                wavFileWriter.write(array, offset, count);
-                                return 0;
+                            public void run() {
+                                copyPreroll(history, historyBytes, writer, errorMessage);
                             }
                         });
                     } catch (IOException e) {
-                        final String errorMessage = getString(R.string.error_during_writing_history_into) + finalPath;
+                        history.close();
                         Toast.makeText(SaidItService.this, errorMessage, Toast.LENGTH_LONG).show();
                         Log.e(TAG, errorMessage, e);
                         stopRecording(new SaidItFragment.NotifyFileReceiver(SaidItService.this), "");
                     }
+                    // The audio worker appends the live audio from here on, right after the reserved room
+                    recordingStartPosition = audioWorker.getWritePosition();
+                    wavFileWriter = writer;
+                }
+            }
+        });
+
+    }
+
+    /**
+     * Copies the newest bytes of the snapshot into the room reserved at the head of the recording.
+     * Runs on dumpExecutor, so AudioRecord is drained however long the pre-roll is.
+     */
+    private void copyPreroll(AudioMemory.Snapshot history, int bytes, final WavFileWriter writer, String errorMessage) {
+        final long[] written = {0};
+        try {
+            history.read(history.getLength() - bytes, new AudioMemory.Consumer() {
+                @Override
+                public int consume(byte[] array, int offset, int count) throws IOException {
+                    writer.writeAt(written[0], array, offset, count);
+                    written[0] += count;
+                    return 0;
+                }
+            });
+        } catch (IOException e) {
+            // The rest of the reserved room stays silent
+            showToast(errorMessage);
+            Log.e(TAG, errorMessage, e);
+        } finally {
+            history.close();
+        }
+        Log.d(TAG, "Copied " + written[0] + " bytes of pre-roll");
+    }
+
+    /**
+     * Pins everything in AudioMemory. Capture is held off only while the snapshot is taken,
+     * so the position marks exactly where the live audio continues.
+     * @param livePosition Receives the audio worker ring position of the first byte not covered by the snapshot
+     */
+    AudioMemory.Snapshot takeHistory(long[] livePosition) {
+        synchronized (captureLock) {
+            livePosition[0] = audioWorker.getWritePosition();
+            return audioMemory.snapshot();
+        }
+    }
+
+    private void startActivityRecorder() {
+        // Only called on audio thread
+        assert audioHandler.getLooper() == Looper.myLooper();
+
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        if (voiceActivityDetector == null) {
+            voiceActivityDetector = new VoiceActivityDetector(preferences.getFloat(ACTIVITY_DETECTION_THRESHOLD_KEY, 500.0f));
+        }
+        if (activityRecordingDatabase == null) {
+            activityRecordingDatabase = new ActivityRecordingDatabase(this);
+        }
+        voiceActivityDetector.setSpectralMode(
+                preferences.getBoolean(ACTIVITY_SPECTRAL_DETECTION_KEY, false), SAMPLE_RATE);
+
+        File storageDir;
+        if (isExternalStorageWritable()) {
+            storageDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "Echo");
+        } else {
+            storageDir = new File(getFilesDir(), "Echo");
+        }
+
+        AudioEncoder.Codec codec = getActivityCodec();
+        if (codec != null && !AudioEncoder.isCodecSupported(codec)) {
+            Log.w(TAG, codec + " encoder not available, activity clips stay WAV");
+            codec = null;
+        }
+        final AudioEncoder.Quality quality = preferences.getBoolean(ACTIVITY_HIGH_BITRATE_KEY, false)
+                ? AudioEncoder.Quality.HIGH : AudioEncoder.Quality.LOW;
+
+        activityRecorder = new ActivityRecorder(this, voiceActivityDetector, activityRecordingDatabase,
+                new ActivityRecorder.HistorySource() {
+                    @Override
+                    public AudioMemory.Snapshot takeHistory(long[] livePosition) {
+                        return SaidItService.this.takeHistory(livePosition);
+                    }
+                },
+                new File(storageDir, "Activity"), SAMPLE_RATE,
+                preferences.getInt(ACTIVITY_PRE_BUFFER_SECONDS_KEY, DEFAULT_ACTIVITY_PRE_BUFFER_SECONDS),
+                preferences.getInt(ACTIVITY_POST_BUFFER_SECONDS_KEY, DEFAULT_ACTIVITY_POST_BUFFER_SECONDS),
+                preferences.getInt(ACTIVITY_AUTO_DELETE_DAYS_KEY, DEFAULT_ACTIVITY_AUTO_DELETE_DAYS),
+                codec, quality);
+        Log.d(TAG, "Activity recorder started");
+    }
+
+    private void stopActivityRecorder() {
+        // Only called on audio thread
+        assert audioHandler.getLooper() == Looper.myLooper();
+
+        final ActivityRecorder recorder = activityRecorder;
+        if (recorder != null) {
+            activityRecorder = null;
+            // Save whatever was recorded once the audio worker has written out the queued audio
+            audioWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    recorder.release();
+                }
+            });
+        }
+    }
+
+    public boolean isActivityDetectionEnabled() {
+        return activityDetectionEnabled;
+    }
+
+    public void setActivityDetectionEnabled(final boolean enabled) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE)
+                .edit().putBoolean(ACTIVITY_DETECTION_ENABLED_KEY, enabled).commit();
+        activityDetectionEnabled = enabled;
+
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (enabled && activityRecorder == null && audioRecord != null) {
+                    startActivityRecorder();
+                } else if (!enabled) {
+                    stopActivityRecorder();
                 }
             }
         });
+    }
+
+    /**
+     * Gets the codec chosen for activity clips, or null when they are kept as WAV.
+     */
+    public AudioEncoder.Codec getActivityCodec() {
+        final String codecName = getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getString(ACTIVITY_CODEC_KEY, null);
+        if (codecName != null) {
+            try {
+                return AudioEncoder.Codec.valueOf(codecName);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown activity codec: " + codecName);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the codec for new activity clips; null keeps them as WAV.
+     * Takes effect the next time activity recording is started.
+     */
+    public void setActivityCodec(AudioEncoder.Codec codec) {
+        final SharedPreferences.Editor editor = getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).edit();
+        if (codec == null) {
+            editor.remove(ACTIVITY_CODEC_KEY);
+        } else {
+            editor.putString(ACTIVITY_CODEC_KEY, codec.name());
+        }
+        editor.commit();
+    }
+
+    public boolean isSpectralActivityDetection() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(ACTIVITY_SPECTRAL_DETECTION_KEY, false);
+    }
 
+    public void setSpectralActivityDetection(final boolean enabled) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE)
+                .edit().putBoolean(ACTIVITY_SPECTRAL_DETECTION_KEY, enabled).commit();
+
+        final VoiceActivityDetector detector = voiceActivityDetector;
+        if (detector != null) {
+            // The detector is only touched by the audio worker
+            audioWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    detector.setSpectralMode(enabled, SAMPLE_RATE);
+                }
+            });
+        }
     }
 
     public long getMemorySize() {
@@ -500,6 +1000,58 @@ public class SaidItService extends Service {
         setMemorySize(memorySize);
     }
 
+    public boolean isOffHeapMemory() {
+        return audioMemory instanceof DirectAudioMemory;
+    }
+
+    /**
+     * Switches between the heap and the off-heap (direct ByteBuffer) memory backend.
+     * The buffered history is discarded when the backend changes.
+     */
+    public void setOffHeapMemory(final boolean offHeap) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        preferences.edit().putBoolean(AUDIO_MEMORY_OFF_HEAP_KEY, offHeap).commit();
+        switchMemoryBackend();
+    }
+
+    public boolean isCompressedMemory() {
+        return audioMemory instanceof CompressedAudioMemory;
+    }
+
+    /**
+     * Switches the lossless in-memory compression on or off.
+     * The buffered history is discarded when the backend changes.
+     */
+    public void setCompressedMemory(final boolean compressed) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        preferences.edit().putBoolean(AUDIO_MEMORY_COMPRESSED_KEY, compressed).commit();
+        switchMemoryBackend();
+    }
+
+    private void switchMemoryBackend() {
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final SharedPreferences preferences = getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+                final AudioMemory memory = AudioMemory.create(preferences.getBoolean(AUDIO_MEMORY_OFF_HEAP_KEY, false),
+                        preferences.getBoolean(AUDIO_MEMORY_COMPRESSED_KEY, false));
+                if (memory.getClass() == audioMemory.getClass()) return;
+                final long memorySize = audioMemory.getAllocatedMemorySize();
+                memory.setTimeline(new AudioTimeline(FILL_RATE, 2, AudioMemory.CHUNK_SIZE));
+                synchronized (captureLock) {
+                    audioMemory.setEvictionListener(null);
+                    audioMemory.allocate(0);
+                    audioMemory = memory;
+                }
+                updateSpillListener();
+                if (!audioMemory.allocate(memorySize)) {
+                    Log.e(TAG, "Memory allocation failed after switching backend for " + (memorySize / (1024 * 1024)) + " MB");
+                }
+                Log.d(TAG, "Audio memory backend: " + memory.getClass().getSimpleName());
+            }
+        });
+    }
+
     public StorageMode getStorageMode() {
         return storageMode;
     }
@@ -512,53 +1064,333 @@ public class SaidItService extends Service {
         storageMode = mode;
         
         // Initialize or cleanup based on mode
-        if (mode == StorageMode.BATCH_TO_DISK && diskAudioBuffer == null) {
-            audioHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    initializeDiskBuffer();
-                }
-            });
-        } else if (mode == StorageMode.MEMORY_ONLY && diskAudioBuffer != null) {
-            audioHandler.post(new Runnable() {
-                @Override
-                public void run() {
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mode == StorageMode.BATCH_TO_DISK || mode == StorageMode.HYBRID) {
+                    if (diskAudioBuffer == null && diskBufferLoading == null) initializeDiskBuffer();
+                } else {
                     cleanupDiskBuffer();
                 }
-            });
-        }
+                updateSpillListener();
+                if (mode == StorageMode.MAPPED_FILE) {
+                    if (mappedAudioBuffer == null) initializeMappedBuffer();
+                } else {
+                    cleanupMappedBuffer();
+                }
+            }
+        });
     }
 
+    /**
+     * Opens the disk buffer. Recovering the stored segments reads and checks all of them, so it runs on
+     * diskBufferLoader; capture goes on meanwhile and the buffer is published on the audio thread once ready.
+     */
     private void initializeDiskBuffer() {
         // Only called on audio thread
         assert audioHandler.getLooper() == Looper.myLooper();
         
         final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
-        long maxDiskUsageMB = preferences.getLong(MAX_DISK_USAGE_MB_KEY, 500); // Default 500 MB
-        long maxDiskUsageBytes = maxDiskUsageMB * 1024L * 1024L;
+        final long maxDiskUsageMB = preferences.getLong(MAX_DISK_USAGE_MB_KEY, 500); // Default 500 MB
+        final long maxDiskUsageBytes = maxDiskUsageMB * 1024L * 1024L;
         
+        final File storageDir;
+        if (isExternalStorageWritable()) {
+            storageDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "Echo");
+        } else {
+            storageDir = getFilesDir();
+        }
+
+        DiskAudioBuffer.SegmentFormat format = DiskAudioBuffer.SegmentFormat.RAW;
+        if (preferences.getBoolean(DISK_LOSSLESS_KEY, false)) {
+            format = DiskAudioBuffer.SegmentFormat.LOSSLESS;
+        } else if (preferences.getBoolean(DISK_PREALLOCATED_KEY, false)) {
+            format = DiskAudioBuffer.SegmentFormat.PREALLOCATED;
+        }
+        final DiskAudioBuffer.SegmentFormat segmentFormat = format;
+        final CountDownLatch closed = diskBufferClosed;
+        diskBufferClosed = null;
+        final Object loading = new Object();
+        diskBufferLoading = loading;
+        diskBufferLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Recovery truncates unfinished segments, so the previous buffer must be done writing them
+                if (closed != null) {
+                    try {
+                        if (!closed.await(DISK_BUFFER_CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                            Log.w(TAG, "Previous disk buffer still not closed");
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                final DiskAudioBuffer buffer = new DiskAudioBuffer(storageDir, maxDiskUsageBytes, AudioMemory.CHUNK_SIZE, SAMPLE_RATE, segmentFormat);
+                buffer.setDurability(preferences.getInt(DISK_FLUSH_INTERVAL_MS_KEY, DEFAULT_DISK_FLUSH_INTERVAL_MS),
+                        preferences.getInt(DISK_FLUSH_BYTES_KEY, DEFAULT_DISK_FLUSH_BYTES),
+                        preferences.getBoolean(DISK_SYNC_ON_ROTATION_KEY, false));
+                audioHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (diskBufferLoading != loading) {
+                            // The disk buffer was stopped while it was recovered; nothing was written to it
+                            try {
+                                buffer.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Error closing disk buffer", e);
+                            }
+                            return;
+                        }
+                        diskBufferLoading = null;
+                        publishDiskBuffer(buffer);
+                        Log.d(TAG, "Initialized disk buffer with max size: " + maxDiskUsageMB + " MB");
+                    }
+                });
+            }
+        });
+    }
+
+    private void publishDiskBuffer(DiskAudioBuffer buffer) {
+        // Only called on audio thread
+        assert audioHandler.getLooper() == Looper.myLooper();
+
+        // Buffers are allocated on demand, so BATCH_TO_DISK never grows the pool to the HYBRID size
+        final int queueBytes = Math.max(FILL_RATE * DISK_WRITER_QUEUE_SECONDS, DISK_WRITER_QUEUE_CHUNKS * AudioMemory.CHUNK_SIZE);
+        final AsyncDiskWriter writer = new AsyncDiskWriter(buffer, DISK_WRITER_BUFFER_SIZE,
+                queueBytes / DISK_WRITER_BUFFER_SIZE + 1);
+        writer.start();
+        diskAudioBuffer = buffer;
+        diskWriter = writer;
+        updateSpillListener();
+
+        if (getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(DISK_COMPACTION_ENABLED_KEY, false)) {
+            startCompaction(buffer);
+        }
+    }
+
+    private void startCompaction(DiskAudioBuffer buffer) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        final long pcmAgeMillis = preferences.getInt(DISK_PCM_MINUTES_KEY, DEFAULT_DISK_PCM_MINUTES) * 60000L;
+        final long lowAgeMillis = preferences.getInt(DISK_LOW_QUALITY_MINUTES_KEY, DEFAULT_DISK_LOW_QUALITY_MINUTES) * 60000L;
+
+        compactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "segmentCompactor");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        compactionExecutor.scheduleWithFixedDelay(
+                new SegmentCompactor(this, buffer, SAMPLE_RATE, pcmAgeMillis, lowAgeMillis),
+                COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Log.d(TAG, "Segment compaction scheduled: PCM for " + pcmAgeMillis / 60000 + " min, LOW after " + lowAgeMillis / 60000 + " min");
+    }
+
+    private void stopCompaction() {
+        if (compactionExecutor != null) {
+            compactionExecutor.shutdownNow();
+            compactionExecutor = null;
+        }
+    }
+
+    public boolean isDiskLosslessEnabled() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(DISK_LOSSLESS_KEY, false);
+    }
+
+    /**
+     * Chooses between raw PCM and lossless segments for the disk buffer.
+     * Takes effect the next time the disk buffer is started; existing segments are read either way.
+     */
+    public void setDiskLosslessEnabled(boolean enabled) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE)
+                .edit().putBoolean(DISK_LOSSLESS_KEY, enabled).commit();
+    }
+
+    public boolean isDiskPreallocationEnabled() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(DISK_PREALLOCATED_KEY, false);
+    }
+
+    /**
+     * Chooses recycled, preallocated segment files for the disk buffer; lossless segments take precedence.
+     * Takes effect the next time the disk buffer is started.
+     */
+    public void setDiskPreallocationEnabled(boolean enabled) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE)
+                .edit().putBoolean(DISK_PREALLOCATED_KEY, enabled).commit();
+    }
+
+    public boolean isDiskSyncOnRotation() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(DISK_SYNC_ON_ROTATION_KEY, false);
+    }
+
+    /**
+     * Sets how often the disk buffer hands buffered audio to the OS and whether finished segments are synced.
+     * @param flushIntervalMillis Longest time audio stays buffered in the app
+     * @param flushBytes Most audio buffered in the app, at most 64 KB
+     * @param syncOnRotation fsync each finished segment
+     */
+    public void setDiskDurability(final int flushIntervalMillis, final int flushBytes, final boolean syncOnRotation) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).edit()
+                .putInt(DISK_FLUSH_INTERVAL_MS_KEY, flushIntervalMillis)
+                .putInt(DISK_FLUSH_BYTES_KEY, flushBytes)
+                .putBoolean(DISK_SYNC_ON_ROTATION_KEY, syncOnRotation)
+                .commit();
+        // On the audio worker, which is the thread writing to the buffer anyway
+        audioWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                final DiskAudioBuffer buffer = diskAudioBuffer;
+                if (buffer != null) {
+                    buffer.setDurability(flushIntervalMillis, flushBytes, syncOnRotation);
+                }
+            }
+        });
+    }
+
+    public boolean isDiskCompactionEnabled() {
+        return getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE).getBoolean(DISK_COMPACTION_ENABLED_KEY, false);
+    }
+
+    /**
+     * Turns background re-encoding of older disk buffer segments on or off.
+     */
+    public void setDiskCompactionEnabled(final boolean enabled) {
+        getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE)
+                .edit().putBoolean(DISK_COMPACTION_ENABLED_KEY, enabled).commit();
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopCompaction();
+                if (enabled && diskAudioBuffer != null) {
+                    startCompaction(diskAudioBuffer);
+                }
+            }
+        });
+    }
+
+    /**
+     * In HYBRID mode the memory hands every chunk it is about to overwrite to the disk writer.
+     */
+    private void updateSpillListener() {
+        // Only called on audio thread
+        assert audioHandler.getLooper() == Looper.myLooper();
+
+        audioMemory.setEvictionListener(storageMode == StorageMode.HYBRID && diskWriter != null ? spiller : null);
+    }
+
+    final AudioMemory.EvictionListener spiller = new AudioMemory.EvictionListener() {
+        @Override
+        public void evicted(byte[] array, int offset, int count, long position) {
+            final AsyncDiskWriter writer = diskWriter;
+            if (writer != null) {
+                final AudioTimeline timeline = audioMemory.getTimeline();
+                if (timeline != null) {
+                    writer.write(array, offset, count, timeline.getElapsedNanos(position), timeline.getWallMillis(position));
+                } else {
+                    writer.write(array, offset, count);
+                }
+            }
+        }
+    };
+
+    private void initializeMappedBuffer() {
+        // Only called on audio thread
+        assert audioHandler.getLooper() == Looper.myLooper();
+
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        long maxDiskUsageMB = preferences.getLong(MAX_DISK_USAGE_MB_KEY, 500); // Default 500 MB
+        long capacityBytes = maxDiskUsageMB * 1024L * 1024L;
+
         File storageDir;
         if (isExternalStorageWritable()) {
             storageDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "Echo");
         } else {
             storageDir = getFilesDir();
         }
-        
-        diskAudioBuffer = new DiskAudioBuffer(storageDir, maxDiskUsageBytes, AudioMemory.CHUNK_SIZE);
-        Log.d(TAG, "Initialized disk buffer with max size: " + maxDiskUsageMB + " MB");
+
+        try {
+            mappedAudioBuffer = new MappedAudioBuffer(storageDir, capacityBytes, SAMPLE_RATE);
+            Log.d(TAG, "Initialized mapped buffer with size: " + maxDiskUsageMB + " MB");
+        } catch (IOException e) {
+            Log.e(TAG, "Error mapping buffer file", e);
+            mappedAudioBuffer = null;
+        }
+    }
+
+    private void cleanupMappedBuffer() {
+        // Only called on audio thread
+        assert audioHandler.getLooper() == Looper.myLooper();
+
+        final MappedAudioBuffer buffer = mappedAudioBuffer;
+        if (buffer != null) {
+            mappedAudioBuffer = null;
+            // The audio worker may still be writing queued audio into it
+            audioWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        buffer.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing mapped buffer", e);
+                    }
+                }
+            });
+        }
     }
 
     private void cleanupDiskBuffer() {
         // Only called on audio thread
         assert audioHandler.getLooper() == Looper.myLooper();
         
-        if (diskAudioBuffer != null) {
-            try {
-                diskAudioBuffer.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing disk buffer", e);
-            }
+        stopCompaction();
+        audioMemory.setEvictionListener(null);
+        diskBufferLoading = null; // a buffer still being recovered is closed once it is ready
+        final DiskAudioBuffer buffer = diskAudioBuffer;
+        final AsyncDiskWriter writer = diskWriter;
+        if (buffer != null) {
             diskAudioBuffer = null;
+            diskWriter = null;
+            final CountDownLatch closed = new CountDownLatch(1);
+            diskBufferClosed = closed;
+            // The audio worker may still be handing queued audio to the disk writer
+            audioWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (writer != null && !writer.close(TimeUnit.SECONDS.toMillis(DISK_BUFFER_CLOSE_TIMEOUT_SECONDS))) {
+                            Log.w(TAG, "Disk writer still busy, closing the disk buffer anyway");
+                        }
+                        buffer.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing disk buffer", e);
+                    } finally {
+                        closed.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    public boolean isBlockingCapture() {
+        return blockingCapture;
+    }
+
+    /**
+     * Switches between the dedicated blocking capture thread and the default polling reader.
+     * Listening is restarted so the new mode takes effect immediately.
+     */
+    public void setBlockingCapture(boolean enabled) {
+        final SharedPreferences preferences = this.getSharedPreferences(PACKAGE_NAME, MODE_PRIVATE);
+        preferences.edit().putBoolean(BLOCKING_CAPTURE_KEY, enabled).commit();
+        if (blockingCapture == enabled) return;
+
+        if (state == STATE_LISTENING) {
+            innerStopListening();
+            blockingCapture = enabled;
+            innerStartListening();
+        } else {
+            blockingCapture = enabled;
         }
     }
 
@@ -602,15 +1434,42 @@ public class SaidItService extends Service {
             @Override
             public void run() {
                 flushAudioRecord();
-                try {
-                    wavFileWriter.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "CLOSING ERROR", e);
-                }
-                if(wavFileReceiver != null) {
-                    wavFileReceiver.fileReady(wavFile, wavFileWriter.getTotalSampleBytesWritten() * getBytesToSeconds());
-                }
-                wavFileWriter = null;
+                final File file = wavFile;
+                // Close on the audio worker, once it has written out everything captured so far
+                audioWorker.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final WavFileWriter writer = wavFileWriter;
+                        if (writer == null) return;
+                        wavFileWriter = null;
+                        final Runnable close = new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    writer.close();
+                                } catch (IOException e) {
+                                    Log.e(TAG, "CLOSING ERROR", e);
+                                }
+                                if(wavFileReceiver != null) {
+                                    audioHandler.post(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            wavFileReceiver.fileReady(file, writer.getTotalSampleBytesWritten() * getBytesToSeconds());
+                                        }
+                                    });
+                                }
+                            }
+                        };
+                        final Future<?> preroll = prerollCopy;
+                        prerollCopy = null;
+                        if (preroll != null && !preroll.isDone()) {
+                            // The pre-roll is still being copied - dumpExecutor runs the closing right after it
+                            dumpExecutor.execute(close);
+                        } else {
+                            close.run();
+                        }
+                    }
+                });
             }
         });
 
@@ -625,10 +1484,82 @@ public class SaidItService extends Service {
     private void flushAudioRecord() {
         // Only allowed on the audio thread
         assert audioHandler.getLooper() == Looper.myLooper();
+        if (captureThread != null) {
+            return; // the capture thread delivers every period as soon as it is recorded
+        }
         audioHandler.removeCallbacks(audioReader); // remove any delayed callbacks
         audioReader.run();
     }
 
+    private void stopCaptureThread() {
+        // Only called on audio thread
+        assert audioHandler.getLooper() == Looper.myLooper();
+
+        if (captureThread == null) return;
+        captureRunning = false;
+        try {
+            // A blocking read returns within one period
+            captureThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        captureThread = null;
+    }
+
+    /**
+     * Blocking capture: reads CAPTURE_PERIOD_MS of audio at a time and delivers it right away,
+     * instead of polling AudioRecord with delayed non-blocking reads.
+     */
+    final Runnable captureLoop = new Runnable() {
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            final int periodBytes = (FILL_RATE * CAPTURE_PERIOD_MS / 1000) & ~1;
+            final byte[] period = new byte[periodBytes];
+            final int[] delivered = new int[1];
+            final int[] length = new int[1];
+
+            // Copies the period into AudioMemory; may need several fills when the period spans two chunks
+            final AudioMemory.Consumer periodFiller = new AudioMemory.Consumer() {
+                @Override
+                public int consume(byte[] array, int offset, int count) {
+                    final int n = Math.min(count, length[0] - delivered[0]);
+                    System.arraycopy(period, delivered[0], array, offset, n);
+                    delivered[0] += n;
+                    return n;
+                }
+            };
+
+            Log.d(TAG, "Capture thread started with " + CAPTURE_PERIOD_MS + " ms periods");
+            while (captureRunning) {
+                final int read = audioRecord.read(period, 0, periodBytes, AudioRecord.READ_BLOCKING);
+                if (read < 0) {
+                    Log.e(TAG, "AUDIO RECORD ERROR - " + read);
+                    break;
+                }
+                if (read == 0) continue;
+                final long startNanos = getCaptureStartNanos(read);
+
+                synchronized (captureLock) {
+                    delivered[0] = 0;
+                    length[0] = read;
+                    final long memoryPosition = audioMemory.getEndPosition();
+                    try {
+                        int attempts = 0;
+                        while (delivered[0] < read && attempts++ < 3) {
+                            audioMemory.fill(periodFiller);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error while storing captured audio", e);
+                    }
+                    stampMemory(memoryPosition, (int) (audioMemory.getEndPosition() - memoryPosition), startNanos);
+                    offerCaptured(period, 0, read, startNanos);
+                }
+            }
+            Log.d(TAG, "Capture thread stopped");
+        }
+    };
+
     final AudioMemory.Consumer filler = new AudioMemory.Consumer() {
         @Override
         public int consume(final byte[] array, final int offset, final int count) throws IOException {
@@ -647,40 +1578,14 @@ public class SaidItService extends Service {
                 return 0;
             }
             
-            // Write to active recording file if recording
-            if (wavFileWriter != null && read > 0) {
-                wavFileWriter.write(array, offset, read);
-            }
-            
-            // Write to disk buffer if in BATCH_TO_DISK mode
-            if (storageMode == StorageMode.BATCH_TO_DISK && diskAudioBuffer != null && read > 0) {
-                try {
-                    diskAudioBuffer.write(array, offset, read);
-                } catch (IOException e) {
-                    Log.e(TAG, "Error writing to disk buffer", e);
-                    // Continue recording, just skip this write
-                }
+            // Hand the block to the audio worker - file and disk writes must never stall capture
+            if (read > 0) {
+                final long startNanos = getCaptureStartNanos(read);
+                // Not committed yet, so the block starts at the current end of the memory
+                stampMemory(audioMemory.getEndPosition(), read, startNanos);
+                offerCaptured(array, offset, read, startNanos);
             }
             
-            // TODO: Integrate Voice Activity Detection
-            // Activity detection is initialized but not yet integrated into the audio processing loop.
-            // Future implementation should:
-            // 1. Process audio through VoiceActivityDetector when activityDetectionEnabled is true
-            // 2. Maintain a 5-minute pre-activity buffer
-            // 3. Start recording when activity detected
-            // 4. Continue for 5 minutes after activity ends
-            // 5. Save to disk and add to ActivityRecordingDatabase
-            // Example:
-            // if (activityDetectionEnabled && voiceActivityDetector != null && read > 0) {
-            //     boolean hasActivity = voiceActivityDetector.process(array, offset, read);
-            //     if (hasActivity && !isRecordingActivity) {
-            //         // Start activity recording with pre-buffer
-            //     } else if (!hasActivity && isRecordingActivity && 
-            //                (System.currentTimeMillis() - lastActivityTime > POST_ACTIVITY_BUFFER_MS)) {
-            //         // Stop activity recording and save
-            //     }
-            // }
-            
             if (read == count) {
                 // We've filled the buffer, so let's read again.
                 audioHandler.post(audioReader);
@@ -698,11 +1603,141 @@ public class SaidItService extends Service {
             return read;
         }
     };
+    /**
+     * Gets the SystemClock.elapsedRealtimeNanos() at which the first byte of a block just read from
+     * audioRecord was captured. Uses the timestamps AudioRecord reports in the boot time base, and the
+     * time of the read when there are none yet.
+     */
+    private long getCaptureStartNanos(int bytes) {
+        capturedFrames += bytes / 2;
+        long endNanos = SystemClock.elapsedRealtimeNanos();
+        if (audioRecord.getTimestamp(captureTimestamp, AudioTimestamp.TIMEBASE_BOOTTIME) == AudioRecord.SUCCESS) {
+            endNanos = captureTimestamp.nanoTime + (capturedFrames - captureTimestamp.framePosition) * 1000000000L / SAMPLE_RATE;
+        }
+        return endNanos - bytes * 1000000000L / FILL_RATE;
+    }
+
+    private static long toWallMillis(long elapsedNanos) {
+        return System.currentTimeMillis() - (SystemClock.elapsedRealtimeNanos() - elapsedNanos) / 1000000;
+    }
+
+    /**
+     * Records the capture time of a block stored in AudioMemory at the given position.
+     */
+    private void stampMemory(long position, int count, long startNanos) {
+        final AudioTimeline timeline = audioMemory.getTimeline();
+        if (timeline != null && count > 0) {
+            timeline.append(position, count, startNanos, toWallMillis(startNanos));
+        }
+    }
+
+    /**
+     * Hands a captured block to the audio worker and records its capture time under its worker position.
+     */
+    private void offerCaptured(byte[] array, int offset, int count, long startNanos) {
+        final long position = audioWorker.getWritePosition();
+        if (audioWorker.offer(array, offset, count)) {
+            final AudioTimeline timeline = captureTimeline;
+            if (timeline != null) {
+                timeline.append(position, count, startNanos, toWallMillis(startNanos));
+            }
+        }
+    }
+
+    /**
+     * Runs on the audio worker thread for every captured block.
+     */
+    final AudioRingBuffer.Consumer audioConsumer = new AudioRingBuffer.Consumer() {
+        @Override
+        public void consume(byte[] array, int offset, int count, long position) {
+            // Write to active recording file if recording
+            final WavFileWriter writer = wavFileWriter;
+            if (writer != null) {
+                // Skip the part the prepended history covers
+                final int skip = (int) Math.max(0, Math.min(count, recordingStartPosition - position));
+                try {
+                    writer.write(array, offset + skip, count - skip);
+                } catch (IOException e) {
+                    final String errorMessage = getString(R.string.error_during_recording_into) + wavFile.getName();
+                    Log.e(TAG, errorMessage, e);
+                    new Handler(Looper.getMainLooper()).post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(SaidItService.this, errorMessage, Toast.LENGTH_LONG).show();
+                            stopRecording(new SaidItFragment.NotifyFileReceiver(SaidItService.this), "");
+                        }
+                    });
+                }
+            }
+
+            // Hand to the disk writer if in BATCH_TO_DISK mode; never waits for storage
+            final AsyncDiskWriter disk = diskWriter;
+            final AudioTimeline timeline = captureTimeline;
+            if (storageMode == StorageMode.BATCH_TO_DISK && disk != null) {
+                if (timeline != null) {
+                    disk.write(array, offset, count, timeline.getElapsedNanos(position), timeline.getWallMillis(position));
+                } else {
+                    disk.write(array, offset, count);
+                }
+            }
+            if (timeline != null) {
+                timeline.trim(position + count);
+            }
+
+            // Write to mapped ring buffer if in MAPPED_FILE mode
+            final MappedAudioBuffer mapped = mappedAudioBuffer;
+            if (storageMode == StorageMode.MAPPED_FILE && mapped != null) {
+                mapped.write(array, offset, count);
+            }
+
+            // Activity-triggered recording
+            final ActivityRecorder recorder = activityRecorder;
+            if (recorder != null) {
+                recorder.process(array, offset, count, position);
+            }
+        }
+    };
+
+    /**
+     * Number of captured blocks dropped because the audio worker could not keep up.
+     */
+    public long getCaptureOverruns() {
+        return audioWorker.getRing().getOverruns();
+    }
+
+    public long getCaptureDroppedBytes() {
+        return audioWorker.getRing().getDroppedBytes();
+    }
+
+    /**
+     * Number of buffers waiting for storage in BATCH_TO_DISK mode, 0 when there is no disk writer.
+     */
+    public int getDiskQueueDepth() {
+        final AsyncDiskWriter writer = diskWriter;
+        return writer == null ? 0 : writer.getQueueDepth();
+    }
+
+    public int getDiskQueueHighWaterMark() {
+        final AsyncDiskWriter writer = diskWriter;
+        return writer == null ? 0 : writer.getHighWaterMark();
+    }
+
+    /**
+     * Bytes of disk history dropped because storage could not keep up.
+     */
+    public long getDiskDroppedBytes() {
+        final AsyncDiskWriter writer = diskWriter;
+        return writer == null ? 0 : writer.getDroppedBytes();
+    }
+
     final Runnable audioReader = new Runnable() {
         @Override
         public void run() {
             try {
-                audioMemory.fill(filler);
+                // Fill and hand-off to the audio worker happen together, as in captureLoop - see takeHistory()
+                synchronized (captureLock) {
+                    audioMemory.fill(filler);
+                }
             } catch (IOException e) {
                 final String errorMessage = getString(R.string.error_during_recording_into) + wavFile.getName();
                 Toast.makeText(SaidItService.this, errorMessage, Toast.LENGTH_LONG).show();
@@ -728,13 +1763,13 @@ public class SaidItService extends Service {
                 flushAudioRecord();
                 final AudioMemory.Stats stats = audioMemory.getStats(FILL_RATE);
                 
-                int recorded = 0;
+                long recorded = 0;
                 if(wavFileWriter != null) {
                     recorded += wavFileWriter.getTotalSampleBytesWritten();
                     recorded += stats.estimation;
                 }
                 final float bytesToSeconds = getBytesToSeconds();
-                final int finalRecorded = recorded;
+                final long finalRecorded = recorded;
                 sourceHandler.post(new Runnable() {
                     @Override
                     public void run() {
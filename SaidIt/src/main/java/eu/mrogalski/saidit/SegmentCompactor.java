@@ -0,0 +1,124 @@
+package eu.mrogalski.saidit;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Background job that ages DiskAudioBuffer segments: recent ones stay PCM (raw or lossless), older ones are
+ * re-encoded to MEDIUM and the oldest to LOW quality AAC, so the disk limit covers a longer history.
+ * Each pass compacts segments one by one and stops as soon as the device is hot, in power
+ * save mode or low on battery. Meant to run periodically on a low priority executor.
+ */
+class SegmentCompactor implements Runnable {
+    private static final String TAG = SegmentCompactor.class.getSimpleName();
+    private static final int MIN_BATTERY_PERCENT = 20;
+
+    private final Context context;
+    private final DiskAudioBuffer buffer;
+    private final int sampleRate;
+    private final long pcmAgeMillis;
+    private final long lowAgeMillis;
+
+    /**
+     * @param pcmAgeMillis Segments younger than this stay PCM
+     * @param lowAgeMillis Segments older than this are stored at LOW quality, the ones in between at MEDIUM
+     */
+    SegmentCompactor(Context context, DiskAudioBuffer buffer, int sampleRate, long pcmAgeMillis, long lowAgeMillis) {
+        this.context = context;
+        this.buffer = buffer;
+        this.sampleRate = sampleRate;
+        this.pcmAgeMillis = pcmAgeMillis;
+        this.lowAgeMillis = lowAgeMillis;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        if (!AudioEncoder.isCodecSupported(AudioEncoder.Codec.AAC)) {
+            return;
+        }
+        int compacted = 0;
+        while (!Thread.currentThread().isInterrupted() && !isUnderPressure()) {
+            final DiskAudioBuffer.Segment segment = buffer.findCompactionCandidate(
+                    System.currentTimeMillis(), pcmAgeMillis, lowAgeMillis);
+            if (segment == null) {
+                break;
+            }
+            if (!compact(segment)) {
+                break;
+            }
+            compacted++;
+        }
+        if (compacted > 0) {
+            Log.d(TAG, "Compacted " + compacted + " segments, disk usage now " + buffer.getCurrentDiskUsage() + " bytes");
+        }
+    }
+
+    private boolean compact(DiskAudioBuffer.Segment segment) {
+        final AudioEncoder.Quality quality = DiskAudioBuffer.getTargetQuality(
+                System.currentTimeMillis() - segment.startTimeMillis, pcmAgeMillis, lowAgeMillis);
+        final File source = segment.file;
+        final File output = buffer.getCompactionFile(segment);
+        try {
+            if (segment.quality == null) {
+                encodePcm(segment, output, quality);
+            } else {
+                AudioEncoder.reEncode(source, output, AudioEncoder.Codec.AAC, quality);
+            }
+        } catch (IOException | RuntimeException e) {
+            // The segment may have been deleted by the disk limit while it was being encoded
+            Log.w(TAG, "Compaction of " + source.getName() + " failed", e);
+            output.delete();
+            return false;
+        }
+        buffer.replaceSegment(segment, output, quality);
+        return true;
+    }
+
+    /**
+     * Encodes a raw or lossless segment, reading its PCM through the buffer so both formats are handled.
+     */
+    private void encodePcm(DiskAudioBuffer.Segment segment, File output, AudioEncoder.Quality quality) throws IOException {
+        final AudioEncoder encoder = new AudioEncoder(output, sampleRate, AudioEncoder.Codec.AAC, quality);
+        boolean done = false;
+        try {
+            buffer.readSegment(segment, 0, new AudioMemory.Consumer() {
+                @Override
+                public int consume(byte[] array, int offset, int count) throws IOException {
+                    encoder.write(array, offset, count);
+                    return 0;
+                }
+            });
+            done = true;
+        } finally {
+            try {
+                encoder.close();
+            } catch (IOException e) {
+                if (done) throw e;
+            }
+        }
+    }
+
+    private boolean isUnderPressure() {
+        final PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null
+                && (powerManager.isPowerSaveMode()
+                    || powerManager.getCurrentThermalStatus() >= PowerManager.THERMAL_STATUS_MODERATE)) {
+            Log.d(TAG, "Skipping compaction: thermal or power saving pressure");
+            return true;
+        }
+        final BatteryManager batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+        if (batteryManager != null && !batteryManager.isCharging()
+                && batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY) < MIN_BATTERY_PERCENT) {
+            Log.d(TAG, "Skipping compaction: battery low");
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,235 @@
+package eu.mrogalski.saidit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar file describing a DiskAudioBuffer segment, so the buffer can be rebuilt safely after a restart.
+ * Layout: a fixed header (magic, version, PCM format, monotonic and wall-clock start time, header CRC)
+ * followed by one record per BLOCK_BYTES of PCM with the block length and its CRC32.
+ * Records are appended as the segment is written; a record cut off by a crash is ignored.
+ * CRCs are computed over the PCM, so they verify raw and lossless segments alike.
+ */
+class SegmentMetadata {
+    static final String EXTENSION = ".meta";
+    static final int BLOCK_BYTES = 64 * 1024; // a multiple of LosslessSegmentFile.FRAME_BYTES
+    private static final int MAGIC = 0x54454D45; // "EMET"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int RECORD_SIZE = 8;
+
+    final int sampleRate;
+    final int channels;
+    final int bitsPerSample;
+    final long startElapsedNanos; // SystemClock.elapsedRealtimeNanos() when the segment was started
+    final long startWallMillis;
+    int[] blockLengths = new int[0];
+    int[] blockCrcs = new int[0];
+    int blockCount = 0;
+
+    SegmentMetadata(int sampleRate, int channels, int bitsPerSample, long startElapsedNanos, long startWallMillis) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.startElapsedNanos = startElapsedNanos;
+        this.startWallMillis = startWallMillis;
+    }
+
+    /**
+     * Whether PCM in this format can be stored in a buffer of the given format.
+     */
+    boolean matches(int sampleRate, int channels, int bitsPerSample) {
+        return this.sampleRate == sampleRate && this.channels == channels && this.bitsPerSample == bitsPerSample;
+    }
+
+    /**
+     * Size of one sample for all channels; segments are only valid up to a multiple of it.
+     */
+    int getFrameSize() {
+        return channels * bitsPerSample / 8;
+    }
+
+    /**
+     * Reads a sidecar file.
+     * @return The metadata, or null if the file does not start with a valid header
+     */
+    static SegmentMetadata read(File file) throws IOException {
+        final byte[] data;
+        try (InputStream in = new FileInputStream(file)) {
+            data = new byte[(int) file.length()];
+            int read = 0;
+            int count;
+            while (read < data.length && (count = in.read(data, read, data.length - read)) > 0) {
+                read += count;
+            }
+        }
+        if (data.length < HEADER_SIZE) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, HEADER_SIZE - 4);
+        if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION || buffer.getInt(HEADER_SIZE - 4) != (int) crc.getValue()) {
+            return null;
+        }
+        final SegmentMetadata metadata = new SegmentMetadata(buffer.getInt(12), buffer.getShort(6), buffer.getShort(8),
+                buffer.getLong(20), buffer.getLong(28));
+        if (buffer.getInt(16) != BLOCK_BYTES) {
+            return metadata; // written with another block size - keep the format, skip verification
+        }
+        final int count = (data.length - HEADER_SIZE) / RECORD_SIZE;
+        metadata.blockLengths = new int[count];
+        metadata.blockCrcs = new int[count];
+        buffer.position(HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            metadata.blockLengths[i] = buffer.getInt();
+            metadata.blockCrcs[i] = buffer.getInt();
+        }
+        metadata.blockCount = count;
+        return metadata;
+    }
+
+    /**
+     * Rewrites the sidecar file with just the header, e.g. after the segment was re-encoded lossily.
+     */
+    void writeHeader(File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(encodeHeader());
+        }
+    }
+
+    private byte[] encodeHeader() {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) channels);
+        buffer.putShort((short) bitsPerSample);
+        buffer.putShort((short) 0); // reserved
+        buffer.putInt(sampleRate);
+        buffer.putInt(BLOCK_BYTES);
+        buffer.putLong(startElapsedNanos);
+        buffer.putLong(startWallMillis);
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, HEADER_SIZE - 4);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * Appends a CRC record for every BLOCK_BYTES of PCM written to the segment.
+     * Not thread safe; the owning DiskAudioBuffer serializes access.
+     */
+    static class Writer {
+        private final FileOutputStream out;
+        private final CRC32 crc = new CRC32();
+        private final byte[] record = new byte[RECORD_SIZE];
+        private int blockLength = 0;
+
+        Writer(File file, SegmentMetadata metadata) throws IOException {
+            out = new FileOutputStream(file);
+            out.write(metadata.encodeHeader());
+        }
+
+        void update(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int count = Math.min(length, BLOCK_BYTES - blockLength);
+                crc.update(data, offset, count);
+                blockLength += count;
+                offset += count;
+                length -= count;
+                if (blockLength == BLOCK_BYTES) {
+                    writeRecord();
+                }
+            }
+        }
+
+        private void writeRecord() throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(blockLength);
+            buffer.putInt((int) crc.getValue());
+            out.write(record);
+            crc.reset();
+            blockLength = 0;
+        }
+
+        /**
+         * Writes the record of the last partial block and closes the file.
+         */
+        void finish() throws IOException {
+            try {
+                if (blockLength > 0) {
+                    writeRecord();
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Checks PCM fed in order from the start of the segment against the block CRCs.
+     * Data past the last record cannot be checked; it is accepted up to a whole sample frame when the
+     * tail is trusted, and dropped otherwise (e.g. when the file may hold stale data after the segment).
+     */
+    static class Verifier implements AudioMemory.Consumer {
+        private final SegmentMetadata metadata;
+        private final boolean trustTail;
+        private final CRC32 crc = new CRC32();
+        private int block = 0;
+        private int blockLength = 0;
+        private long verified = 0;
+        private long unverified = 0;
+        private boolean failed = false;
+
+        Verifier(SegmentMetadata metadata, boolean trustTail) {
+            this.metadata = metadata;
+            this.trustTail = trustTail;
+        }
+
+        @Override
+        public int consume(byte[] array, int offset, int count) {
+            while (count > 0 && !failed) {
+                if (block >= metadata.blockCount) {
+                    unverified += count;
+                    return 0;
+                }
+                final int n = Math.min(count, metadata.blockLengths[block] - blockLength);
+                crc.update(array, offset, n);
+                blockLength += n;
+                offset += n;
+                count -= n;
+                if (blockLength == metadata.blockLengths[block]) {
+                    if ((int) crc.getValue() != metadata.blockCrcs[block]) {
+                        failed = true;
+                        break;
+                    }
+                    verified += blockLength;
+                    unverified = 0;
+                    crc.reset();
+                    blockLength = 0;
+                    block++;
+                } else {
+                    unverified = blockLength;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Number of leading PCM bytes that can be trusted.
+         */
+        long getValidLength() {
+            if (failed || !trustTail) {
+                return verified;
+            }
+            final int frameSize = Math.max(1, metadata.getFrameSize());
+            return verified + unverified - unverified % frameSize;
+        }
+    }
+}
@@ -38,6 +38,65 @@ public class SettingsActivity extends AppCompatActivity {
     private final QualityOnClickListener qualityClickListener = new QualityOnClickListener();
     private final CustomMemoryApplyListener customMemoryApplyListener = new CustomMemoryApplyListener();
     private final StorageModeClickListener storageModeClickListener = new StorageModeClickListener();
+    private final ActivityCodecClickListener activityCodecClickListener = new ActivityCodecClickListener();
+    private final ToggleClickListener blockingCaptureClickListener = new ToggleClickListener(R.id.capture_blocking) {
+        @Override
+        void apply(boolean enabled) {
+            service.setBlockingCapture(enabled);
+        }
+    };
+    private final ToggleClickListener offHeapClickListener = new ToggleClickListener(R.id.memory_off_heap) {
+        @Override
+        void apply(boolean enabled) {
+            service.setOffHeapMemory(enabled);
+        }
+    };
+    private final ToggleClickListener compressedMemoryClickListener = new ToggleClickListener(R.id.memory_compression_on) {
+        @Override
+        void apply(boolean enabled) {
+            service.setCompressedMemory(enabled);
+        }
+    };
+    private final ToggleClickListener diskCompactionClickListener = new ToggleClickListener(R.id.disk_compaction_on) {
+        @Override
+        void apply(boolean enabled) {
+            service.setDiskCompactionEnabled(enabled);
+        }
+    };
+    private final ToggleClickListener diskLosslessClickListener = new ToggleClickListener(R.id.disk_lossless_on) {
+        @Override
+        void apply(boolean enabled) {
+            service.setDiskLosslessEnabled(enabled);
+        }
+    };
+    private final ToggleClickListener diskPreallocationClickListener = new ToggleClickListener(R.id.disk_preallocation_on) {
+        @Override
+        void apply(boolean enabled) {
+            service.setDiskPreallocationEnabled(enabled);
+        }
+    };
+    private final ToggleClickListener diskDurabilityClickListener = new ToggleClickListener(R.id.disk_durability_safe) {
+        @Override
+        void apply(boolean enabled) {
+            if (enabled) {
+                service.setDiskDurability(SaidIt.DURABLE_DISK_FLUSH_INTERVAL_MS, SaidIt.DURABLE_DISK_FLUSH_BYTES, true);
+            } else {
+                service.setDiskDurability(SaidIt.DEFAULT_DISK_FLUSH_INTERVAL_MS, SaidIt.DEFAULT_DISK_FLUSH_BYTES, false);
+            }
+        }
+    };
+    private final ToggleClickListener activityDetectionClickListener = new ToggleClickListener(R.id.activity_detection_on) {
+        @Override
+        void apply(boolean enabled) {
+            service.setActivityDetectionEnabled(enabled);
+        }
+    };
+    private final ToggleClickListener spectralDetectionClickListener = new ToggleClickListener(R.id.activity_detector_spectral) {
+        @Override
+        void apply(boolean enabled) {
+            service.setSpectralActivityDetection(enabled);
+        }
+    };
 
 
     final WorkingDialog dialog = new WorkingDialog();
@@ -105,8 +164,21 @@ public class SettingsActivity extends AppCompatActivity {
         
         // Highlight storage mode
         StorageMode mode = service.getStorageMode();
-        highlightButton(R.id.storage_mode_memory, R.id.storage_mode_disk, 
-            mode == StorageMode.MEMORY_ONLY ? 1 : 2);
+        highlightButton(R.id.storage_mode_memory, R.id.storage_mode_disk, R.id.storage_mode_mapped, R.id.storage_mode_hybrid,
+            mode == StorageMode.MEMORY_ONLY ? 1 : mode == StorageMode.BATCH_TO_DISK ? 2 : mode == StorageMode.MAPPED_FILE ? 3 : 4);
+        highlightButton(R.id.disk_compaction_off, R.id.disk_compaction_on, service.isDiskCompactionEnabled() ? 2 : 1);
+        highlightButton(R.id.disk_lossless_off, R.id.disk_lossless_on, service.isDiskLosslessEnabled() ? 2 : 1);
+        highlightButton(R.id.disk_preallocation_off, R.id.disk_preallocation_on, service.isDiskPreallocationEnabled() ? 2 : 1);
+        highlightButton(R.id.disk_durability_default, R.id.disk_durability_safe, service.isDiskSyncOnRotation() ? 2 : 1);
+
+        highlightButton(R.id.memory_heap, R.id.memory_off_heap, service.isOffHeapMemory() ? 2 : 1);
+        highlightButton(R.id.memory_compression_off, R.id.memory_compression_on, service.isCompressedMemory() ? 2 : 1);
+        highlightButton(R.id.capture_polling, R.id.capture_blocking, service.isBlockingCapture() ? 2 : 1);
+        highlightButton(R.id.activity_detection_off, R.id.activity_detection_on, service.isActivityDetectionEnabled() ? 2 : 1);
+        highlightButton(R.id.activity_detector_level, R.id.activity_detector_spectral, service.isSpectralActivityDetection() ? 2 : 1);
+        AudioEncoder.Codec codec = service.getActivityCodec();
+        highlightButton(R.id.activity_codec_wav, R.id.activity_codec_aac, R.id.activity_codec_opus,
+            codec == AudioEncoder.Codec.AAC ? 2 : codec == AudioEncoder.Codec.OPUS ? 3 : 1);
     }
 
     private void highlightButton(int button1, int button2, int i) {
@@ -120,6 +192,11 @@ public class SettingsActivity extends AppCompatActivity {
         findViewById(button3).setBackgroundResource(3 == i ? R.drawable.green_button : R.drawable.gray_button);
     }
 
+    private void highlightButton(int button1, int button2, int button3, int button4, int i) {
+        highlightButton(button1, button2, button3, i);
+        findViewById(button4).setBackgroundResource(4 == i ? R.drawable.green_button : R.drawable.gray_button);
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -180,13 +257,41 @@ public class SettingsActivity extends AppCompatActivity {
 
         root.findViewById(R.id.custom_memory_apply).setOnClickListener(customMemoryApplyListener);
 
+        root.findViewById(R.id.memory_heap).setOnClickListener(offHeapClickListener);
+        root.findViewById(R.id.memory_off_heap).setOnClickListener(offHeapClickListener);
+        root.findViewById(R.id.memory_compression_off).setOnClickListener(compressedMemoryClickListener);
+        root.findViewById(R.id.memory_compression_on).setOnClickListener(compressedMemoryClickListener);
+
         root.findViewById(R.id.storage_mode_memory).setOnClickListener(storageModeClickListener);
         root.findViewById(R.id.storage_mode_disk).setOnClickListener(storageModeClickListener);
+        root.findViewById(R.id.storage_mode_mapped).setOnClickListener(storageModeClickListener);
+        root.findViewById(R.id.storage_mode_hybrid).setOnClickListener(storageModeClickListener);
+
+        root.findViewById(R.id.disk_compaction_off).setOnClickListener(diskCompactionClickListener);
+        root.findViewById(R.id.disk_compaction_on).setOnClickListener(diskCompactionClickListener);
+        root.findViewById(R.id.disk_lossless_off).setOnClickListener(diskLosslessClickListener);
+        root.findViewById(R.id.disk_lossless_on).setOnClickListener(diskLosslessClickListener);
+        root.findViewById(R.id.disk_preallocation_off).setOnClickListener(diskPreallocationClickListener);
+        root.findViewById(R.id.disk_preallocation_on).setOnClickListener(diskPreallocationClickListener);
+        root.findViewById(R.id.disk_durability_default).setOnClickListener(diskDurabilityClickListener);
+        root.findViewById(R.id.disk_durability_safe).setOnClickListener(diskDurabilityClickListener);
 
         initSampleRateButton(root, R.id.quality_8kHz, 8000, 11025);
         initSampleRateButton(root, R.id.quality_16kHz, 16000, 22050);
         initSampleRateButton(root, R.id.quality_48kHz, 48000, 44100);
 
+        root.findViewById(R.id.capture_polling).setOnClickListener(blockingCaptureClickListener);
+        root.findViewById(R.id.capture_blocking).setOnClickListener(blockingCaptureClickListener);
+
+        root.findViewById(R.id.activity_detection_off).setOnClickListener(activityDetectionClickListener);
+        root.findViewById(R.id.activity_detection_on).setOnClickListener(activityDetectionClickListener);
+        root.findViewById(R.id.activity_detector_level).setOnClickListener(spectralDetectionClickListener);
+        root.findViewById(R.id.activity_detector_spectral).setOnClickListener(spectralDetectionClickListener);
+
+        root.findViewById(R.id.activity_codec_wav).setOnClickListener(activityCodecClickListener);
+        initActivityCodecButton(root, R.id.activity_codec_aac, AudioEncoder.Codec.AAC);
+        initActivityCodecButton(root, R.id.activity_codec_opus, AudioEncoder.Codec.OPUS);
+
         //debugPrintCodecs();
 
         dialog.setDescriptionStringId(R.string.work_preparing_memory);
@@ -227,6 +332,15 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
+    private void initActivityCodecButton(ViewGroup layout, int buttonId, AudioEncoder.Codec codec) {
+        View button = layout.findViewById(buttonId);
+        if (AudioEncoder.isCodecSupported(codec)) {
+            button.setOnClickListener(activityCodecClickListener);
+        } else {
+            button.setVisibility(View.GONE);
+        }
+    }
+
     private boolean testSampleRateValid(int sampleRate) {
         final int bufferSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
         return bufferSize > 0;
@@ -352,7 +466,11 @@ public class SettingsActivity extends AppCompatActivity {
                     highlightButtons();
                     String modeName = mode == StorageMode.MEMORY_ONLY ? 
                         getString(R.string.storage_mode_memory) : 
-                        getString(R.string.storage_mode_disk);
+                        mode == StorageMode.BATCH_TO_DISK ?
+                        getString(R.string.storage_mode_disk) :
+                        mode == StorageMode.MAPPED_FILE ?
+                        getString(R.string.storage_mode_mapped) :
+                        getString(R.string.storage_mode_hybrid);
                     Toast.makeText(SettingsActivity.this, 
                         "Storage mode: " + modeName, 
                         Toast.LENGTH_SHORT).show();
@@ -364,10 +482,73 @@ public class SettingsActivity extends AppCompatActivity {
             switch (button.getId()) {
                 case R.id.storage_mode_disk:
                     return StorageMode.BATCH_TO_DISK;
+                case R.id.storage_mode_mapped:
+                    return StorageMode.MAPPED_FILE;
+                case R.id.storage_mode_hybrid:
+                    return StorageMode.HYBRID;
                 case R.id.storage_mode_memory:
                 default:
                     return StorageMode.MEMORY_ONLY;
             }
         }
     }
+
+    private class ActivityCodecClickListener implements View.OnClickListener {
+        @Override
+        public void onClick(View v) {
+            final AudioEncoder.Codec codec = getCodec(v);
+
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    service.setActivityCodec(codec);
+                    highlightButtons();
+                }
+            });
+        }
+
+        private AudioEncoder.Codec getCodec(View button) {
+            switch (button.getId()) {
+                case R.id.activity_codec_aac:
+                    return AudioEncoder.Codec.AAC;
+                case R.id.activity_codec_opus:
+                    return AudioEncoder.Codec.OPUS;
+                case R.id.activity_codec_wav:
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Handles a pair of buttons that turn a setting off (first) and on (second).
+     * Some settings are applied on the audio thread, so the buttons are highlighted once it has got to them.
+     */
+    private abstract class ToggleClickListener implements View.OnClickListener {
+        private final int onButton;
+
+        ToggleClickListener(int onButton) {
+            this.onButton = onButton;
+        }
+
+        abstract void apply(boolean enabled);
+
+        @Override
+        public void onClick(View v) {
+            final boolean enabled = v.getId() == onButton;
+
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    apply(enabled);
+                    service.getState(new SaidItService.StateCallback() {
+                        @Override
+                        public void state(boolean listeningEnabled, boolean recording, float memorized, float totalMemory, float recorded) {
+                            highlightButtons();
+                        }
+                    });
+                }
+            });
+        }
+    }
 }
@@ -14,5 +14,17 @@ public enum StorageMode {
      * Audio is automatically written to disk in batches.
      * Maintains a circular file buffer on disk, automatically cleaning up old files.
      */
-    BATCH_TO_DISK
+    BATCH_TO_DISK,
+
+    /**
+     * Audio is written into a fixed-size, memory-mapped file used as a circular buffer.
+     * Costs no heap, lets the page cache do the I/O and keeps the history across service restarts.
+     */
+    MAPPED_FILE,
+
+    /**
+     * Recent audio stays in memory; chunks are spilled to the disk buffer only right before they would be overwritten.
+     * Dumps of recent audio cost no disk I/O, older history is stitched on from disk.
+     */
+    HYBRID
 }
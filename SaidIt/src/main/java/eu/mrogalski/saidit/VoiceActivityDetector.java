@@ -2,9 +2,17 @@ package eu.mrogalski.saidit;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import simplesound.dsp.SpectralFeatureExtractor;
+
 /**
  * Voice Activity Detection (VAD) using amplitude-based detection.
  * Detects speech/audio activity in PCM audio samples.
+ * In spectral mode a loud frame only counts when its spectrum also looks like speech,
+ * which filters out fans, traffic rumble and hiss.
  */
 public class VoiceActivityDetector {
     private static final String TAG = VoiceActivityDetector.class.getSimpleName();
@@ -14,6 +22,15 @@ public class VoiceActivityDetector {
     private int smoothingWindow = 10; // Number of frames for smoothing
     private int minActivityFrames = 3; // Minimum consecutive frames to trigger activity
     private int minSilenceFrames = 20; // Minimum consecutive frames to end activity
+
+    // Spectral mode limits
+    private static final double MIN_SPEECH_BAND_RATIO = 0.3; // Share of energy between 300 and 3400 Hz
+    private static final double MAX_SPECTRAL_FLATNESS = 0.45; // Steady noise is flat, voiced speech is harmonic
+    private static final double MAX_ZERO_CROSSINGS_PER_SECOND = 5000; // Hiss crosses zero far more often
+    private static final int SPECTRAL_FRAME_MS = 20;
+
+    private SpectralFeatureExtractor spectralFeatures; // null unless spectral mode is on
+    private int sampleRate;
     
     // State tracking
     private boolean isActive = false;
@@ -22,6 +39,12 @@ public class VoiceActivityDetector {
     private float noiseFloor = 100.0f; // Estimated background noise level
     private float[] energyHistory;
     private int historyIndex = 0;
+    private double energySum = 0; // running sum of energyHistory
+
+    // Reusable views of the last byte array seen, so that decoding allocates nothing per frame
+    private byte[] viewedArray;
+    private ShortBuffer shortView;
+    private short[] samples = new short[0];
     
     /**
      * Creates a new VoiceActivityDetector with default settings.
@@ -48,16 +71,48 @@ public class VoiceActivityDetector {
      */
     public boolean process(byte[] buffer, int offset, int length) {
         // Calculate RMS energy of the audio frame
-        float energy = calculateRMSEnergy(buffer, offset, length);
-        
+        if ((offset & 1) == 0) {
+            final int count = length / 2;
+            decode(buffer, offset, count);
+            return process(samples, 0, count);
+        }
+        // Misaligned data is only checked for amplitude
+        return processEnergy(calculateRMSEnergy(buffer, offset, length), true);
+    }
+
+    /**
+     * Processes already decoded 16-bit PCM samples and detects activity.
+     * @param samples Sample buffer
+     * @param offset Offset in samples
+     * @param count Number of samples to process
+     * @return true if activity is detected, false otherwise
+     */
+    public boolean process(short[] samples, int offset, int count) {
+        final float energy = calculateRMSEnergy(samples, offset, count);
+        boolean speechLike = true;
+        if (spectralFeatures != null && count > 0) {
+            spectralFeatures.analyze(samples, offset, count);
+            speechLike = spectralFeatures.getSpeechBandRatio() >= MIN_SPEECH_BAND_RATIO
+                    && spectralFeatures.getSpectralFlatness() <= MAX_SPECTRAL_FLATNESS
+                    && spectralFeatures.getZeroCrossingRate() * sampleRate <= MAX_ZERO_CROSSINGS_PER_SECOND;
+        }
+        return processEnergy(energy, speechLike);
+    }
+
+    private boolean processEnergy(float energy, boolean speechLike) {
         // Update noise floor estimation (slowly adapting average)
         if (energy < noiseFloor) {
             noiseFloor = noiseFloor * 0.99f + energy * 0.01f;
         }
         
         // Store energy in history for smoothing
+        energySum += energy - energyHistory[historyIndex];
         energyHistory[historyIndex] = energy;
         historyIndex = (historyIndex + 1) % smoothingWindow;
+        if (historyIndex == 0) {
+            // Rescan once per window so that rounding errors cannot accumulate
+            energySum = sumHistory();
+        }
         
         // Calculate smoothed energy
         float smoothedEnergy = calculateAverageEnergy();
@@ -66,7 +121,7 @@ public class VoiceActivityDetector {
         float adaptiveThreshold = Math.max(threshold, noiseFloor * 3.0f);
         
         // Check if current frame has activity
-        boolean frameHasActivity = smoothedEnergy > adaptiveThreshold;
+        boolean frameHasActivity = smoothedEnergy > adaptiveThreshold && speechLike;
         
         // Update state counters
         if (frameHasActivity) {
@@ -93,9 +148,56 @@ public class VoiceActivityDetector {
         return isActive;
     }
     
+    /**
+     * Decodes little-endian 16-bit samples into the samples array with a bulk ShortBuffer copy.
+     * @param offset Even byte offset in buffer
+     * @param count Number of samples to decode
+     */
+    private void decode(byte[] buffer, int offset, int count) {
+        if (buffer != viewedArray) {
+            viewedArray = buffer;
+            shortView = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        }
+        if (samples.length < count) {
+            samples = new short[count];
+        }
+        shortView.limit(offset / 2 + count).position(offset / 2);
+        shortView.get(samples, 0, count);
+    }
+
+    /**
+     * Calculates RMS (Root Mean Square) energy of samples.
+     * The loop is unrolled into independent accumulators so that it can be vectorised.
+     */
+    private static float calculateRMSEnergy(short[] samples, int offset, int count) {
+        if (count <= 0) return 0;
+
+        long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        final int end = offset + count;
+        final int unrolledEnd = offset + (count & ~3);
+        int i = offset;
+        for (; i < unrolledEnd; i += 4) {
+            final int s0 = samples[i];
+            final int s1 = samples[i + 1];
+            final int s2 = samples[i + 2];
+            final int s3 = samples[i + 3];
+            sum0 += s0 * s0;
+            sum1 += s1 * s1;
+            sum2 += s2 * s2;
+            sum3 += s3 * s3;
+        }
+        for (; i < end; i++) {
+            final int s = samples[i];
+            sum0 += s * s;
+        }
+
+        return (float) Math.sqrt((double) (sum0 + sum1 + sum2 + sum3) / count);
+    }
+
     /**
      * Calculates RMS (Root Mean Square) energy of audio samples.
      * Assumes 16-bit PCM little-endian format (standard for Android AudioRecord).
+     * Used for buffers that do not start on a sample boundary.
      */
     private float calculateRMSEnergy(byte[] buffer, int offset, int length) {
         long sum = 0;
@@ -116,11 +218,15 @@ public class VoiceActivityDetector {
      * Calculates average energy from history window.
      */
     private float calculateAverageEnergy() {
-        float sum = 0;
+        return (float) (energySum / smoothingWindow);
+    }
+
+    private double sumHistory() {
+        double sum = 0;
         for (float energy : energyHistory) {
             sum += energy;
         }
-        return sum / smoothingWindow;
+        return sum;
     }
     
     /**
@@ -146,6 +252,24 @@ public class VoiceActivityDetector {
         return threshold;
     }
     
+    /**
+     * Turns spectral detection on or off.
+     * @param sampleRate Sample rate of the processed audio
+     */
+    public void setSpectralMode(boolean enabled, int sampleRate) {
+        this.sampleRate = sampleRate;
+        if (enabled) {
+            spectralFeatures = new SpectralFeatureExtractor(sampleRate, sampleRate * SPECTRAL_FRAME_MS / 1000);
+        } else {
+            spectralFeatures = null;
+        }
+        Log.d(TAG, "Spectral mode " + (enabled ? "enabled" : "disabled"));
+    }
+
+    public boolean isSpectralMode() {
+        return spectralFeatures != null;
+    }
+
     /**
      * Sets the number of consecutive active frames needed to trigger activity.
      */
@@ -172,6 +296,7 @@ public class VoiceActivityDetector {
             energyHistory[i] = 0;
         }
         historyIndex = 0;
+        energySum = 0;
         Log.d(TAG, "Detector reset");
     }
     
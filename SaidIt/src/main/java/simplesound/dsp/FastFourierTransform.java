@@ -0,0 +1,96 @@
+package simplesound.dsp;
+
+/**
+ * In-place radix-2 complex FFT.
+ * Twiddle factors and the bit reversal permutation are computed once per instance,
+ * so a transform allocates nothing.
+ */
+public class FastFourierTransform {
+
+    private final int size;
+    private final double[] cosTable;
+    private final double[] sinTable;
+    private final int[] bitReversed;
+
+    /**
+     * @param size Transform length, must be a power of two
+     */
+    public FastFourierTransform(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("FFT size must be a power of two larger than one: " + size);
+        this.size = size;
+
+        cosTable = new double[size / 2];
+        sinTable = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cosTable[i] = Math.cos(2 * Math.PI * i / size);
+            sinTable[i] = -Math.sin(2 * Math.PI * i / size);
+        }
+
+        final int bits = Integer.numberOfTrailingZeros(size);
+        bitReversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            bitReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Transforms the data in place.
+     * @param real Real parts, length must be the transform size
+     * @param imaginary Imaginary parts, length must be the transform size
+     */
+    public void transform(double[] real, double[] imaginary) {
+        if (real.length != size || imaginary.length != size)
+            throw new IllegalArgumentException("Data length must be " + size);
+
+        for (int i = 0; i < size; i++) {
+            final int j = bitReversed[i];
+            if (j > i) {
+                double t = real[i];
+                real[i] = real[j];
+                real[j] = t;
+                t = imaginary[i];
+                imaginary[i] = imaginary[j];
+                imaginary[j] = t;
+            }
+        }
+
+        for (int half = 1; half < size; half <<= 1) {
+            final int tableStep = size / (half << 1);
+            for (int start = 0; start < size; start += half << 1) {
+                for (int k = 0, t = 0; k < half; k++, t += tableStep) {
+                    final int even = start + k;
+                    final int odd = even + half;
+                    final double wr = cosTable[t];
+                    final double wi = sinTable[t];
+                    final double xr = real[odd] * wr - imaginary[odd] * wi;
+                    final double xi = real[odd] * wi + imaginary[odd] * wr;
+                    real[odd] = real[even] - xr;
+                    imaginary[odd] = imaginary[even] - xi;
+                    real[even] += xr;
+                    imaginary[even] += xi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Transforms a real signal and stores the power of the first size / 2 + 1 bins.
+     * @param real Signal; overwritten with the real parts of the transform
+     * @param imaginary Scratch buffer; overwritten
+     * @param power Output, at least size / 2 + 1 long
+     */
+    public void powerSpectrum(double[] real, double[] imaginary, double[] power) {
+        for (int i = 0; i < size; i++) {
+            imaginary[i] = 0;
+        }
+        transform(real, imaginary);
+        for (int i = 0; i <= size / 2; i++) {
+            power[i] = real[i] * real[i] + imaginary[i] * imaginary[i];
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package simplesound.dsp;
+
+/**
+ * Computes per-frame features that tell speech apart from steady noise:
+ * the share of energy in the speech band, the spectral flatness of that band and the zero crossing rate.
+ * Frames are windowed and transformed in preallocated buffers.
+ */
+public class SpectralFeatureExtractor {
+
+    public static final double SPEECH_BAND_LOW_HZ = 300;
+    public static final double SPEECH_BAND_HIGH_HZ = 3400;
+
+    private final FastFourierTransform fft;
+    private final DoubleVectorProcessor windower;
+    private final DoubleVector windowed;
+    private final double[] frame;
+    private final double[] imaginary;
+    private final double[] power;
+    private final int speechLowBin;
+    private final int speechHighBin;
+
+    private double speechBandRatio;
+    private double spectralFlatness;
+    private double zeroCrossingRate;
+
+    /**
+     * @param sampleRate Sample rate of the analysed audio
+     * @param frameSize Maximum number of samples per frame; the FFT length is the next power of two
+     */
+    public SpectralFeatureExtractor(int sampleRate, int frameSize) {
+        final int fftSize = Integer.highestOneBit(Math.max(2, frameSize - 1)) << 1;
+        fft = new FastFourierTransform(fftSize);
+        // The window spans the samples only, the zero padding after them stays zero
+        windower = WindowerFactory.newHammingWindower(frameSize);
+        windowed = new DoubleVector(new double[frameSize]);
+        frame = new double[fftSize];
+        imaginary = new double[fftSize];
+        power = new double[fftSize / 2 + 1];
+
+        final double binWidth = (double) sampleRate / fftSize;
+        speechLowBin = Math.max(1, (int) Math.round(SPEECH_BAND_LOW_HZ / binWidth));
+        speechHighBin = Math.max(speechLowBin, Math.min(fftSize / 2, (int) Math.round(SPEECH_BAND_HIGH_HZ / binWidth)));
+    }
+
+    /**
+     * Analyses a frame of 16-bit samples. Samples past the frame size are ignored, short frames are zero padded
+     * before windowing.
+     */
+    public void analyze(short[] samples, int offset, int count) {
+        final double[] data = windowed.getData();
+        final int n = Math.min(count, data.length);
+
+        int crossings = 0;
+        for (int i = 0; i < n; i++) {
+            data[i] = samples[offset + i] / 32768d;
+            if (i > 0 && (samples[offset + i] < 0) != (samples[offset + i - 1] < 0)) {
+                crossings++;
+            }
+        }
+        for (int i = n; i < data.length; i++) {
+            data[i] = 0;
+        }
+        zeroCrossingRate = n > 1 ? (double) crossings / (n - 1) : 0;
+
+        windower.processInPlace(windowed);
+        System.arraycopy(data, 0, frame, 0, data.length);
+        for (int i = data.length; i < frame.length; i++) {
+            frame[i] = 0;
+        }
+        fft.powerSpectrum(frame, imaginary, power);
+
+        double total = 0;
+        for (int i = 1; i < power.length; i++) {
+            total += power[i];
+        }
+        double band = 0;
+        double logSum = 0;
+        for (int i = speechLowBin; i <= speechHighBin; i++) {
+            final double p = power[i] + 1e-12;
+            band += p;
+            logSum += Math.log(p);
+        }
+        final int bins = speechHighBin - speechLowBin + 1;
+        speechBandRatio = total > 0 ? Math.min(1, band / total) : 0;
+        // Geometric over arithmetic mean: close to 1 for noise, small for harmonic sounds
+        spectralFlatness = Math.exp(logSum / bins) / (band / bins);
+    }
+
+    /**
+     * Share of the frame energy between 300 and 3400 Hz, from 0 to 1.
+     */
+    public double getSpeechBandRatio() {
+        return speechBandRatio;
+    }
+
+    /**
+     * Spectral flatness of the speech band, from 0 (tonal) to 1 (white noise).
+     */
+    public double getSpectralFlatness() {
+        return spectralFlatness;
+    }
+
+    /**
+     * Sign changes per sample.
+     */
+    public double getZeroCrossingRate() {
+        return zeroCrossingRate;
+    }
+
+    public int getFftSize() {
+        return fft.getSize();
+    }
+}
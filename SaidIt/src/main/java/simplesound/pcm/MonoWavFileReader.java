@@ -24,8 +24,8 @@ public class MonoWavFileReader {
         PcmMonoInputStream asis = new PcmMonoInputStream(
                 riffHeaderData.getFormat(),
                 new FileInputStream(file));
-        long amount = asis.skip(RiffHeaderData.PCM_RIFF_HEADER_SIZE);
-        if (amount < RiffHeaderData.PCM_RIFF_HEADER_SIZE)
+        long amount = asis.skip(riffHeaderData.getHeaderSize());
+        if (amount < riffHeaderData.getHeaderSize())
             throw new IllegalArgumentException("cannot skip necessary amount of bytes from underlying stream.");
         return asis;
     }
@@ -66,7 +66,7 @@ public class MonoWavFileReader {
         return riffHeaderData.getFormat();
     }
 
-    public int getSampleCount() {
+    public long getSampleCount() {
         return riffHeaderData.getSampleCount();
     }
 
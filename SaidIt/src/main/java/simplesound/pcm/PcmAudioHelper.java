@@ -1,6 +1,5 @@
 package simplesound.pcm;
 
-import static org.jcaki.Bytes.toByteArray;
 import org.jcaki.IOs;
 
 import java.io.*;
@@ -21,7 +20,7 @@ public class PcmAudioHelper {
         DataInputStream dis = new DataInputStream(new FileInputStream(rawSource));
         byte[] buffer = new byte[4096];
         int i;
-        int total = 0;
+        long total = 0;
         while ((i = dis.read(buffer)) != -1) {
             total += i;
             dos.write(buffer, 0, i);
@@ -39,19 +38,23 @@ public class PcmAudioHelper {
     }
 
     /**
-     * Modifies the size information in a wav file header.
+     * Modifies the size information in a wav file header written by {@link RiffHeaderData#asByteArray()}.
+     * Past {@link RiffHeaderData#MAX_RIFF_DATA_SIZE} bytes the header is turned into an RF64 one.
      *
      * @param wavFile a wav file
      * @param size    size to replace the header.
      * @throws IOException if an error occurs whule accesing the data.
      */
-    static void modifyRiffSizeData(File wavFile, int size) throws IOException {
+    static void modifyRiffSizeData(File wavFile, long size) throws IOException {
+        final RiffHeaderData header = new RiffHeaderData(wavFile);
+        if (header.getHeaderSize() != RiffHeaderData.HEADER_SIZE)
+            throw new IOException("Header has no room for the sizes: " + wavFile);
         RandomAccessFile raf = new RandomAccessFile(wavFile, "rw");
-        raf.seek(RiffHeaderData.RIFF_CHUNK_SIZE_INDEX);
-        raf.write(toByteArray(size + 36, false));
-        raf.seek(RiffHeaderData.RIFF_SUBCHUNK2_SIZE_INDEX);
-        raf.write(toByteArray(size, false));
-        raf.close();
+        try {
+            raf.write(new RiffHeaderData(header.getFormat(), size).asByteArray());
+        } finally {
+            raf.close();
+        }
     }
 
     public static void generateSilenceWavFile(WavAudioFormat wavAudioFormat, File file, double sec) throws IOException {
@@ -11,42 +11,91 @@ class RiffHeaderData {
     public static final int PCM_RIFF_HEADER_SIZE = 44;
     public static final int RIFF_CHUNK_SIZE_INDEX = 4;
     public static final int RIFF_SUBCHUNK2_SIZE_INDEX = 40;
+    // Header written by asByteArray(): the plain one plus room for a ds64 chunk (JUNK until it is needed)
+    public static final int HEADER_SIZE = PCM_RIFF_HEADER_SIZE + 8 + 28;
+    // Largest sample data whose RIFF chunk size still fits the unsigned 32 bit field, above it RF64 is written
+    public static final long MAX_RIFF_DATA_SIZE = 0xFFFFFFFFL - (HEADER_SIZE - 8);
+
+    private static final int RIFF = 0x52494646;
+    private static final int RF64 = 0x52463634;
+    private static final int WAVE = 0x57415645;
+    private static final int JUNK = 0x4a554e4b;
+    private static final int DS64 = 0x64733634;
+    private static final int FMT = 0x666d7420;
+    private static final int DATA = 0x64617461;
+    private static final int DS64_SIZE = 28;
 
     private final PcmAudioFormat format;
-    private final int totalSamplesInByte;
+    private final long totalSamplesInByte;
+    private final int headerSize;
 
-    public RiffHeaderData(PcmAudioFormat format, int totalSamplesInByte) {
+    public RiffHeaderData(PcmAudioFormat format, long totalSamplesInByte) {
         this.format = format;
         this.totalSamplesInByte = totalSamplesInByte;
+        this.headerSize = HEADER_SIZE;
     }
 
     public double timeSeconds() {
         return (double) totalSamplesInByte / format.getBytePerSample() / format.getSampleRate();
     }
 
+    /**
+     * Reads the header of a RIFF or RF64 wave file, skipping the chunks before the data that it does not need.
+     */
     public RiffHeaderData(DataInputStream dis) throws IOException {
 
         try {
             byte[] buf4 = new byte[4];
             byte[] buf2 = new byte[2];
 
-            dis.skipBytes(4 + 4 + 4 + 4 + 4 + 2);
-
-            dis.readFully(buf2);
-            final int channels = toInt(buf2, false);
-
-            dis.readFully(buf4);
-            final int sampleRate = toInt(buf4, false);
-
-            dis.skipBytes(4 + 2);
-
-            dis.readFully(buf2);
-            final int sampleSizeInBits = toInt(buf2, false);
-
+            final int id = dis.readInt();
+            if (id != RIFF && id != RF64)
+                throw new IOException("Not a RIFF or RF64 file.");
             dis.skipBytes(4);
-
-            dis.readFully(buf4);
-            totalSamplesInByte = toInt(buf4, false);
+            if (dis.readInt() != WAVE)
+                throw new IOException("Not a wave file.");
+            int offset = 12;
+
+            long ds64DataSize = -1;
+            long dataSize;
+            int channels = 0;
+            int sampleRate = 0;
+            int sampleSizeInBits = 0;
+            while (true) {
+                final int chunkId = dis.readInt();
+                dis.readFully(buf4);
+                final long chunkSize = toInt(buf4, false) & 0xFFFFFFFFL;
+                offset += 8;
+                if (chunkId == DATA) {
+                    dataSize = chunkSize == 0xFFFFFFFFL && ds64DataSize >= 0 ? ds64DataSize : chunkSize;
+                    break;
+                }
+                long skip = chunkSize + (chunkSize & 1);
+                if (chunkId == DS64) {
+                    // RIFF size, then data size
+                    dis.skipBytes(8);
+                    ds64DataSize = readLong(dis, buf4);
+                    skip -= 16;
+                } else if (chunkId == FMT) {
+                    dis.skipBytes(2);
+
+                    dis.readFully(buf2);
+                    channels = toInt(buf2, false);
+
+                    dis.readFully(buf4);
+                    sampleRate = toInt(buf4, false);
+
+                    dis.skipBytes(4 + 2);
+
+                    dis.readFully(buf2);
+                    sampleSizeInBits = toInt(buf2, false);
+                    skip -= 16;
+                }
+                dis.skipBytes((int) skip);
+                offset += chunkSize + (chunkSize & 1);
+            }
+            headerSize = offset;
+            totalSamplesInByte = dataSize;
 
             format = new WavAudioFormat.Builder().
                     channels(channels).
@@ -62,21 +111,50 @@ class RiffHeaderData {
         this(new DataInputStream(new FileInputStream(file)));
     }
 
+    /**
+     * Whether the sample data is too big for a RIFF header, so that an RF64 one is written.
+     */
+    public boolean isRf64() {
+        return totalSamplesInByte > MAX_RIFF_DATA_SIZE;
+    }
+
+    /**
+     * Gets a header of {@link #HEADER_SIZE} bytes. Up to {@link #MAX_RIFF_DATA_SIZE} bytes of sample data it is
+     * a RIFF header with a JUNK chunk in front of the format, above that an RF64 header whose ds64 chunk takes
+     * the place of the JUNK chunk - so the size can grow past 4 GB without moving the samples.
+     */
     public byte[] asByteArray() {
         ByteArrayOutputStream baos = null;
         try {
             baos = new ByteArrayOutputStream();
-            // ChunkID (the String "RIFF") 4 Bytes
-            baos.write(toByteArray(0x52494646, true));
-            // ChunkSize (Whole file size in byte minus 8 bytes ) , or (4 + (8 + SubChunk1Size) + (8 + SubChunk2Size))
-            // little endian 4 Bytes.
-            baos.write(toByteArray(36 + totalSamplesInByte, false));
+            final boolean rf64 = isRf64();
+            // ChunkID (the String "RIFF", or "RF64" when the sizes are in the ds64 chunk) 4 Bytes
+            baos.write(toByteArray(rf64 ? RF64 : RIFF, true));
+            // ChunkSize (Whole file size in byte minus 8 bytes ) , or (4 + (8 + 28) + (8 + SubChunk1Size) + (8 + SubChunk2Size))
+            // little endian 4 Bytes. -1 for RF64.
+            final long riffSize = HEADER_SIZE - 8 + totalSamplesInByte;
+            baos.write(toByteArray(rf64 ? -1 : (int) riffSize, false));
             // Format (the String "WAVE") 4 Bytes big endian
-            baos.write(toByteArray(0x57415645, true));
+            baos.write(toByteArray(WAVE, true));
+
+            // ds64 (the String "ds64") for RF64, otherwise a JUNK chunk of the same size holding its place. 4 bytes big endian.
+            baos.write(toByteArray(rf64 ? DS64 : JUNK, true));
+            // Its size, 28. little endian 4 bytes.
+            baos.write(toByteArray(DS64_SIZE, false));
+            if (rf64) {
+                // RIFF size, data size and sample count, little endian 8 bytes each.
+                writeLong(baos, riffSize);
+                writeLong(baos, totalSamplesInByte);
+                writeLong(baos, totalSamplesInByte / (format.getChannels() * format.getBytePerSample()));
+                // No table of other chunk sizes, little endian 4 bytes.
+                baos.write(toByteArray(0, false));
+            } else {
+                baos.write(new byte[DS64_SIZE]);
+            }
 
             // Subchunk1
             // Subchunk1ID (the String "fmt ") 4 bytes big endian.
-            baos.write(toByteArray(0x666d7420, true));
+            baos.write(toByteArray(FMT, true));
             // Subchunk1Size. 16 for the PCM. little endian 4 bytes.
             baos.write(toByteArray(16, false));
             // AudioFormat , for PCM = 1, Little endian 2 Bytes.
@@ -96,10 +174,11 @@ class RiffHeaderData {
 
             // Subchunk2
             // SubChunk2ID (String "data") 4 bytes.
-            baos.write(toByteArray(0x64617461, true));
+            baos.write(toByteArray(DATA, true));
             // Subchunk2Size    == NumSamples * NumChannels * BitsPerSample/8. This is the number of bytes in the data.
             // You can also think of this as the size of the read of the subchunk following this number. LE, 4 bytes.
-            baos.write(toByteArray(totalSamplesInByte, false));
+            // -1 for RF64.
+            baos.write(toByteArray(rf64 ? -1 : (int) totalSamplesInByte, false));
 
             return baos.toByteArray();
         } catch (IOException e) {
@@ -110,15 +189,34 @@ class RiffHeaderData {
         }
     }
 
+    private static void writeLong(OutputStream os, long value) throws IOException {
+        os.write(toByteArray((int) value, false));
+        os.write(toByteArray((int) (value >>> 32), false));
+    }
+
+    private static long readLong(DataInputStream dis, byte[] buf4) throws IOException {
+        dis.readFully(buf4);
+        final long low = toInt(buf4, false) & 0xFFFFFFFFL;
+        dis.readFully(buf4);
+        return low | (long) toInt(buf4, false) << 32;
+    }
+
     public PcmAudioFormat getFormat() {
         return format;
     }
 
-    public int getTotalSamplesInByte() {
+    public long getTotalSamplesInByte() {
         return totalSamplesInByte;
     }
 
-    public int getSampleCount() {
+    /**
+     * Number of bytes before the sample data.
+     */
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public long getSampleCount() {
         return totalSamplesInByte / format.getBytePerSample();
     }
 
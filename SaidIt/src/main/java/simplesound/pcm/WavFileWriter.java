@@ -2,20 +2,32 @@ package simplesound.pcm;
 
 import android.util.Log;
 
+import org.jcaki.Bytes;
+
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Writes a wav file. Careful that it writes the total amount of the bytes information once the close method
  * is called. It has a counter in it to calculate the samle size.
+ * Sample bytes are gathered in a direct buffer and written to the file channel in large blocks, so small
+ * writes do not cost a system call each. The header is patched with a positional write on the same channel.
+ * It has room for a ds64 chunk, so a file whose samples outgrow a RIFF header is closed as RF64 instead.
  */
 public class WavFileWriter implements Closeable {
 
+    static final int BUFFER_SIZE = 256 * 1024;
+
     private final WavAudioFormat pcmAudioFormat;
-    private final PcmMonoOutputStream pos;
-    private int totalSampleBytesWritten = 0;
-    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long totalSampleBytesWritten = 0;
+    private final int headerSize;
 
     public WavFileWriter(WavAudioFormat wavAudioFormat, File file) throws IOException {
         if (wavAudioFormat.isBigEndian())
@@ -24,54 +36,105 @@ public class WavFileWriter implements Closeable {
             throw new IllegalArgumentException("Wav file cannot contain unsigned data for this sampleSize:"
                     + wavAudioFormat.getSampleSizeInBits());
         this.pcmAudioFormat = wavAudioFormat;
-        this.file = file;
-        this.pos = new PcmMonoOutputStream(wavAudioFormat, file);
-        pos.write(new RiffHeaderData(wavAudioFormat, 0).asByteArray());
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        final byte[] header = new RiffHeaderData(wavAudioFormat, 0).asByteArray();
+        buffer.put(header);
+        this.headerSize = header.length;
     }
 
     public WavFileWriter write(byte[] bytes) throws IOException {
-        checkLimit(totalSampleBytesWritten, bytes.length);
-        pos.write(bytes);
-        totalSampleBytesWritten += bytes.length;
-        return this;
+        return write(bytes, 0, bytes.length);
     }
 
     public WavFileWriter write(byte[] bytes, int offset, int count) throws IOException {
-        checkLimit(totalSampleBytesWritten, count);
-        pos.write(bytes, offset, count);
-        totalSampleBytesWritten += count;
+        while (count > 0) {
+            final int n = Math.min(count, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+            count -= n;
+            totalSampleBytesWritten += n;
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+        }
         return this;
     }
 
-    private void checkLimit(int total, int toAdd) {
-        final long result = total + toAdd;
-        if (result >= Integer.MAX_VALUE) {
-            throw new IllegalStateException("Size of bytes is too big:" + result);
+    /**
+     * Appends raw sample bytes from a range of another file using FileChannel.transferTo,
+     * so the data never passes through a Java buffer.
+     */
+    public WavFileWriter transferFrom(FileChannel source, long position, long count) throws IOException {
+        flush();
+        while (count > 0) {
+            final long transferred = source.transferTo(position, count, channel);
+            if (transferred <= 0)
+                throw new EOFException("Source ended before " + count + " more bytes could be transferred.");
+            position += transferred;
+            count -= transferred;
+            totalSampleBytesWritten += transferred;
         }
+        return this;
     }
 
-    public WavFileWriter write(int[] samples) throws IOException {
-        final int bytePerSample = pcmAudioFormat.getBytePerSample();
-        checkLimit(totalSampleBytesWritten, samples.length * bytePerSample);
-        pos.write(samples);
-        totalSampleBytesWritten += samples.length * bytePerSample;
+    /**
+     * Leaves room for count sample bytes, to be filled with {@link #writeAt(long, byte[], int, int)}.
+     * The following writes go after it.
+     */
+    public WavFileWriter reserve(long count) throws IOException {
+        flush();
+        channel.position(channel.position() + count);
+        totalSampleBytesWritten += count;
         return this;
     }
 
+    /**
+     * Writes sample bytes into room left by {@link #reserve(long)}. It may be called from another thread
+     * while samples are appended, but must be done before close is called.
+     *
+     * @param sampleOffset offset from the first sample byte of the file.
+     */
+    public void writeAt(long sampleOffset, byte[] bytes, int offset, int count) throws IOException {
+        writeFully(ByteBuffer.wrap(bytes, offset, count), headerSize + sampleOffset);
+    }
+
+    public WavFileWriter write(int[] samples) throws IOException {
+        return write(Bytes.toByteArray(samples, samples.length, pcmAudioFormat.getBytePerSample(), pcmAudioFormat.isBigEndian()));
+    }
+
     public WavFileWriter write(short[] samples) throws IOException {
-        checkLimit(totalSampleBytesWritten, samples.length * 2);
-        pos.write(samples);
-        totalSampleBytesWritten += samples.length * 2;
-        return this;
+        return write(Bytes.toByteArray(samples, samples.length, pcmAudioFormat.isBigEndian()));
     }
 
     WavFileWriter writeNormalized(double[] samples) throws IOException {
         return this;
     }
 
+    /**
+     * Writes the buffered bytes out to the file.
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
     public void close() throws IOException {
-        pos.close();
-        PcmAudioHelper.modifyRiffSizeData(file, totalSampleBytesWritten);
+        try {
+            flush();
+            writeFully(ByteBuffer.wrap(new RiffHeaderData(pcmAudioFormat, totalSampleBytesWritten).asByteArray()), 0);
+        } finally {
+            channel.close();
+        }
     }
 
     public PcmAudioFormat getWavFormat() {
@@ -79,7 +142,7 @@ public class WavFileWriter implements Closeable {
     }
 
 
-    public int getTotalSampleBytesWritten() {
+    public long getTotalSampleBytesWritten() {
         return totalSampleBytesWritten;
     }
 }
@@ -0,0 +1,150 @@
+package eu.mrogalski.saidit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AudioRingBufferTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(1024, new AudioRingBuffer(1000).getCapacity());
+        assertEquals(1024, new AudioRingBuffer(1024).getCapacity());
+        assertEquals(65536, new AudioRingBuffer(40000).getCapacity());
+    }
+
+    @Test
+    public void wrappedDataIsDrainedInTwoPartsWithPositions() throws IOException {
+        final AudioRingBuffer ring = new AudioRingBuffer(16);
+        assertTrue(ring.offer(sequence(0, 12), 0, 12));
+        ring.drain(new Collector());
+        assertTrue(ring.offer(sequence(12, 10), 0, 10));
+        assertEquals(10, ring.getQueuedBytes());
+
+        final Collector collector = new Collector();
+        assertEquals(10, ring.drain(collector));
+        assertEquals(2, collector.positions.size());
+        assertEquals(12L, (long) collector.positions.get(0));
+        assertEquals(16L, (long) collector.positions.get(1));
+        assertArrayEquals(sequence(12, 10), collector.bytes());
+        assertTrue(ring.isEmpty());
+        assertEquals(22, ring.getWritePosition());
+    }
+
+    @Test
+    public void blocksThatDoNotFitAreDroppedWhole() throws IOException {
+        final AudioRingBuffer ring = new AudioRingBuffer(16);
+        assertTrue(ring.offer(sequence(0, 10), 0, 10));
+        assertFalse(ring.offer(sequence(10, 7), 0, 7));
+        assertTrue(ring.offer(sequence(10, 6), 0, 6));
+        assertEquals(1, ring.getOverruns());
+        assertEquals(7, ring.getDroppedBytes());
+        assertEquals(16, ring.getHighWaterMark());
+
+        final Collector collector = new Collector();
+        ring.drain(collector);
+        assertArrayEquals(sequence(0, 16), collector.bytes());
+    }
+
+    @Test
+    public void failingConsumerStillReleasesTheSpace() {
+        final AudioRingBuffer ring = new AudioRingBuffer(16);
+        ring.offer(sequence(0, 16), 0, 16);
+        try {
+            ring.drain(new AudioRingBuffer.Consumer() {
+                @Override
+                public void consume(byte[] array, int offset, int count, long position) throws IOException {
+                    throw new IOException("full");
+                }
+            });
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(sequence(16, 16), 0, 16));
+    }
+
+    @Test
+    public void concurrentProducerAndConsumerKeepTheOrder() throws Exception {
+        final AudioRingBuffer ring = new AudioRingBuffer(4096);
+        final int total = 4 * 1024 * 1024;
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int next = 0;
+                while (next < total) {
+                    final int length = Math.min(total - next, 1 + next % 700);
+                    if (ring.offer(sequence(next, length), 0, length)) {
+                        next += length;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        // Dropped blocks are retried, so every byte arrives once and in order
+        final long[] expected = {0};
+        final AudioRingBuffer.Consumer checker = new AudioRingBuffer.Consumer() {
+            @Override
+            public void consume(byte[] array, int offset, int count, long position) {
+                assertEquals(expected[0], position);
+                for (int i = 0; i < count; i++) {
+                    assertEquals((byte) (position + i), array[offset + i]);
+                }
+                expected[0] += count;
+            }
+        };
+        while (expected[0] < total) {
+            if (ring.drain(checker) == 0) {
+                Thread.yield();
+            }
+        }
+        producer.join();
+        assertEquals(total, ring.getWritePosition());
+    }
+
+    private static byte[] sequence(int start, int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (start + i);
+        }
+        return data;
+    }
+
+    private static class Collector implements AudioRingBuffer.Consumer {
+        final List<Long> positions = new ArrayList<>();
+        final List<byte[]> blocks = new ArrayList<>();
+
+        @Override
+        public void consume(byte[] array, int offset, int count, long position) {
+            positions.add(position);
+            final byte[] block = new byte[count];
+            System.arraycopy(array, offset, block, 0, count);
+            blocks.add(block);
+        }
+
+        byte[] bytes() {
+            int length = 0;
+            for (byte[] block : blocks) {
+                length += block.length;
+            }
+            final byte[] all = new byte[length];
+            int offset = 0;
+            for (byte[] block : blocks) {
+                System.arraycopy(block, 0, all, offset, block.length);
+                offset += block.length;
+            }
+            return all;
+        }
+    }
+}
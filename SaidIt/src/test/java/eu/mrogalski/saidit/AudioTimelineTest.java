@@ -0,0 +1,122 @@
+package eu.mrogalski.saidit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioTimelineTest {
+
+    private static final int BYTES_PER_SECOND = 32000; // 16 kHz, 16-bit mono
+    private static final long SECOND = 1000000000L;
+    private static final long START = 1000 * SECOND;
+    private static final long WALL_START = 1700000000000L;
+
+    @Test
+    public void emptyTimelineHasNoTimes() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 0);
+        assertEquals(-1, timeline.getElapsedNanos(0));
+        assertEquals(-1, timeline.getWallMillis(0));
+        assertEquals(-1, timeline.findPosition(START));
+    }
+
+    @Test
+    public void continuousAudioIsTimedFromTheByteRate() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 0);
+        for (int i = 0; i < 100; i++) {
+            timeline.append(i * 3200L, 3200, START + i * SECOND / 10, WALL_START + i * 100);
+        }
+        assertEquals(0, timeline.getGapCount());
+        assertEquals(START + 5 * SECOND / 2, timeline.getElapsedNanos(80000));
+        assertEquals(WALL_START + 2500, timeline.getWallMillis(80000));
+        assertEquals(80000, timeline.findPosition(START + 5 * SECOND / 2));
+        assertEquals(80000, timeline.findPositionAtWallClock(WALL_START + 2500));
+    }
+
+    @Test
+    public void positionsFoundByTimeAreFrameAligned() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 0);
+        timeline.append(0, 32000, START, WALL_START);
+        // 1/64000 s after the first byte is half way through the first sample
+        assertEquals(0, timeline.findPosition(START + SECOND / 64000));
+        assertEquals(2, timeline.findPosition(START + SECOND / 16000));
+    }
+
+    @Test
+    public void jitterWithinTheToleranceIsNotAGap() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 0);
+        timeline.append(0, 32000, START, WALL_START);
+        timeline.append(32000, 32000, START + SECOND + AudioTimeline.GAP_TOLERANCE_NANOS / 2, WALL_START + 1000);
+        assertEquals(0, timeline.getGapCount());
+        assertEquals(START + SECOND, timeline.getElapsedNanos(32000));
+    }
+
+    @Test
+    public void droppedAudioLeavesAGap() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 0);
+        timeline.append(0, 32000, START, WALL_START);
+        // Two seconds were not captured
+        timeline.append(32000, 32000, START + 3 * SECOND, WALL_START + 3000);
+        assertEquals(1, timeline.getGapCount());
+        assertEquals(START + 3 * SECOND + SECOND / 2, timeline.getElapsedNanos(48000));
+        assertEquals(WALL_START + 3500, timeline.getWallMillis(48000));
+        // A time in the gap maps to the first byte after it
+        assertEquals(32000, timeline.findPosition(START + 2 * SECOND));
+        assertEquals(48000, timeline.findPosition(START + 3 * SECOND + SECOND / 2));
+    }
+
+    @Test
+    public void lookupsStayWithinTheStream() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 0);
+        timeline.append(6400, 32000, START, WALL_START);
+        assertEquals(6400, timeline.findPosition(START - SECOND));
+        assertEquals(38400, timeline.findPosition(START + 10 * SECOND));
+    }
+
+    @Test
+    public void boundariesAreReanchoredSoDriftDoesNotAddUp() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 32000);
+        // The capture clock runs 1 ms per second slow against the byte rate
+        long elapsed = START;
+        for (int i = 0; i < 20; i++) {
+            timeline.append(i * 32000L, 32000, elapsed, WALL_START + i * 1000);
+            elapsed += SECOND + SECOND / 1000;
+        }
+        assertEquals(0, timeline.getGapCount());
+        assertEquals(START + 19 * (SECOND + SECOND / 1000), timeline.getElapsedNanos(19 * 32000L), SECOND / 1000);
+    }
+
+    @Test
+    public void markedAnchorReplacesOneAtTheSamePosition() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 0);
+        timeline.mark(0, START, WALL_START);
+        timeline.mark(0, START + SECOND, WALL_START + 1000);
+        assertEquals(START + SECOND, timeline.getElapsedNanos(0));
+    }
+
+    @Test
+    public void trimmedTimelineStillTimesTheRemainingAudio() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 3200);
+        // Enough anchors to grow the arrays several times, trimmed as they go so the ring wraps
+        for (int i = 0; i < 1000; i++) {
+            timeline.append(i * 3200L, 3200, START + i * SECOND / 10, WALL_START + i * 100);
+            if (i % 10 == 0) {
+                timeline.trim(Math.max(0, (i - 50) * 3200L));
+            }
+        }
+        for (int i = 940; i < 1000; i += 3) {
+            assertEquals(START + i * SECOND / 10, timeline.getElapsedNanos(i * 3200L));
+            assertEquals(i * 3200L, timeline.findPosition(START + i * SECOND / 10));
+        }
+    }
+
+    @Test
+    public void followsAllowsTheGapTolerance() {
+        final AudioTimeline timeline = new AudioTimeline(BYTES_PER_SECOND, 2, 0);
+        assertTrue(timeline.follows(START, 32000, START + SECOND));
+        assertTrue(timeline.follows(START, 32000, START + SECOND + AudioTimeline.GAP_TOLERANCE_NANOS));
+        assertFalse(timeline.follows(START, 32000, START + SECOND + AudioTimeline.GAP_TOLERANCE_NANOS + 1));
+        assertEquals(SECOND / 2, timeline.nanosFor(16000));
+    }
+}
@@ -0,0 +1,114 @@
+package eu.mrogalski.saidit;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LosslessAudioCodecTest {
+
+    private final LosslessAudioCodec codec = new LosslessAudioCodec();
+
+    @Test
+    public void silenceIsCompressed() {
+        final byte[] pcm = new byte[8192];
+        final int size = roundTrip(pcm, 0, pcm.length);
+        assertTrue("silence took " + size + " bytes", size < pcm.length / 8);
+    }
+
+    @Test
+    public void sineIsCompressed() {
+        final byte[] pcm = sine(4096, 440, 8000);
+        final int size = roundTrip(pcm, 0, pcm.length);
+        assertTrue("sine took " + size + " bytes", size < pcm.length);
+    }
+
+    @Test
+    public void spikesTakeTheEscapePath() {
+        // Quiet audio sets a small Rice parameter, so the full-scale spikes do not fit a unary quotient
+        final byte[] pcm = new byte[8192];
+        final Random random = new Random(1);
+        for (int i = 0; i < pcm.length / 2; i++) {
+            putSample(pcm, i, i % 512 == 0 ? (i % 1024 == 0 ? 32767 : -32768) : random.nextInt(7) - 3);
+        }
+        final int size = roundTrip(pcm, 0, pcm.length);
+        assertTrue("spiky block took " + size + " bytes", size < pcm.length);
+    }
+
+    @Test
+    public void noiseIsStoredVerbatim() {
+        final byte[] pcm = new byte[8192];
+        new Random(2).nextBytes(pcm);
+        assertEquals(LosslessAudioCodec.HEADER_SIZE + pcm.length, roundTrip(pcm, 0, pcm.length));
+    }
+
+    @Test
+    public void oddAndShortBlocksAreStoredVerbatim() {
+        final byte[] pcm = sine(100, 1000, 1000);
+        assertEquals(LosslessAudioCodec.HEADER_SIZE + 7, roundTrip(pcm, 1, 7));
+        assertEquals(LosslessAudioCodec.HEADER_SIZE + 4, roundTrip(pcm, 2, 4));
+        assertEquals(LosslessAudioCodec.HEADER_SIZE, roundTrip(pcm, 0, 0));
+    }
+
+    @Test
+    public void randomBlocksAtOddOffsetsRoundTrip() {
+        final Random random = new Random(3);
+        for (int n = 0; n < 500; n++) {
+            final int length = random.nextInt(10000);
+            final int offset = random.nextInt(5);
+            final byte[] pcm = new byte[offset + length];
+            switch (n % 4) {
+                case 0:
+                    random.nextBytes(pcm);
+                    break;
+                case 1:
+                    break; // silence
+                case 2:
+                    final byte[] sine = sine(pcm.length / 2 + 1, 50 + random.nextInt(5000), 1 + random.nextInt(32767));
+                    System.arraycopy(sine, 0, pcm, 0, pcm.length);
+                    break;
+                default:
+                    for (int i = 0; i + 1 < pcm.length; i += 2) {
+                        pcm[i] = (byte) 0xFF;
+                        pcm[i + 1] = (byte) (random.nextBoolean() ? 0x7F : 0x80);
+                    }
+                    break;
+            }
+            roundTrip(pcm, offset, length);
+        }
+    }
+
+    /**
+     * Encodes and decodes a block at odd buffer offsets and checks that the PCM comes back unchanged.
+     * @return Encoded size
+     */
+    private int roundTrip(byte[] pcm, int offset, int length) {
+        final byte[] encoded = new byte[3 + LosslessAudioCodec.maxEncodedSize(length)];
+        final int size = codec.encode(pcm, offset, length, encoded, 3);
+        assertTrue(size <= LosslessAudioCodec.maxEncodedSize(length));
+        assertEquals(length, LosslessAudioCodec.decodedLength(encoded, 3));
+
+        final byte[] decoded = new byte[1 + length];
+        assertEquals(length, codec.decode(encoded, 3, decoded, 1));
+        final byte[] expected = new byte[1 + length];
+        System.arraycopy(pcm, offset, expected, 1, length);
+        assertArrayEquals(expected, decoded);
+        return size;
+    }
+
+    private static byte[] sine(int samples, double frequency, int amplitude) {
+        final byte[] pcm = new byte[2 * samples];
+        for (int i = 0; i < samples; i++) {
+            putSample(pcm, i, (int) (amplitude * Math.sin(2 * Math.PI * frequency * i / 16000)));
+        }
+        return pcm;
+    }
+
+    private static void putSample(byte[] pcm, int index, int sample) {
+        pcm[2 * index] = (byte) sample;
+        pcm[2 * index + 1] = (byte) (sample >> 8);
+    }
+}
@@ -0,0 +1,163 @@
+package eu.mrogalski.saidit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LosslessSegmentFileTest {
+
+    private static final int FRAME_BYTES = LosslessSegmentFile.FRAME_BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void finishedSegmentIsIndexedFromItsSeekTable() throws IOException {
+        final File file = folder.newFile("finished.lac");
+        final byte[] pcm = audio(5 * FRAME_BYTES + 1234);
+        final LosslessSegmentFile.Index written = write(file, pcm, true);
+        assertEquals(6, written.frameCount);
+
+        final LosslessSegmentFile.Index loaded = LosslessSegmentFile.load(file);
+        assertEquals(written.frameCount, loaded.frameCount);
+        assertEquals(pcm.length, loaded.pcmLength);
+        assertEquals(written.dataLength, loaded.dataLength);
+        for (long position : new long[] {0, 1, FRAME_BYTES - 1, FRAME_BYTES, 3 * FRAME_BYTES + 777, pcm.length - 1}) {
+            assertArrayEquals(Arrays.copyOfRange(pcm, (int) position, pcm.length), read(file, loaded, position));
+        }
+    }
+
+    @Test
+    public void unfinishedSegmentIsIndexedByWalkingItsFrames() throws IOException {
+        final File file = folder.newFile("unfinished.lac");
+        final byte[] pcm = audio(3 * FRAME_BYTES + 500);
+        write(file, pcm, false);
+        final long fileLength = file.length();
+
+        // The partial frame was never written, the whole frames are all there
+        final LosslessSegmentFile.Index loaded = LosslessSegmentFile.load(file);
+        assertEquals(3, loaded.frameCount);
+        assertEquals(3 * FRAME_BYTES, loaded.pcmLength);
+        assertEquals(fileLength, file.length());
+        assertArrayEquals(Arrays.copyOf(pcm, 3 * FRAME_BYTES), read(file, loaded, 0));
+    }
+
+    @Test
+    public void tornFrameIsCutOff() throws IOException {
+        final File file = folder.newFile("torn.lac");
+        final byte[] pcm = audio(4 * FRAME_BYTES);
+        final LosslessSegmentFile.Index written = write(file, pcm, true);
+        // Lose the seek table and the end of the last frame
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(written.dataLength - 3);
+        }
+
+        final LosslessSegmentFile.Index loaded = LosslessSegmentFile.load(file);
+        assertEquals(3, loaded.frameCount);
+        assertEquals(3 * FRAME_BYTES, loaded.pcmLength);
+        assertEquals(written.frameOffsets[3], file.length());
+        assertArrayEquals(Arrays.copyOf(pcm, 3 * FRAME_BYTES), read(file, loaded, 0));
+    }
+
+    @Test
+    public void truncateKeepsWholeFrames() throws IOException {
+        final File file = folder.newFile("truncated.lac");
+        final byte[] pcm = audio(4 * FRAME_BYTES + 100);
+        final LosslessSegmentFile.Index written = write(file, pcm, true);
+
+        final LosslessSegmentFile.Index truncated = LosslessSegmentFile.truncate(file, written, 2 * FRAME_BYTES + 10);
+        assertEquals(2, truncated.frameCount);
+        assertEquals(2 * FRAME_BYTES, truncated.pcmLength);
+        assertEquals(written.frameOffsets[2], file.length());
+
+        final LosslessSegmentFile.Index loaded = LosslessSegmentFile.load(file);
+        assertEquals(2, loaded.frameCount);
+        assertArrayEquals(Arrays.copyOf(pcm, 2 * FRAME_BYTES), read(file, loaded, 0));
+    }
+
+    @Test
+    public void pendingAudioIsReadableBeforeItIsEncoded() throws IOException {
+        final File file = folder.newFile("pending.lac");
+        final byte[] pcm = audio(FRAME_BYTES + 300);
+        final LosslessSegmentFile.Writer writer = new LosslessSegmentFile.Writer(file);
+        writer.write(pcm, 0, pcm.length);
+        assertEquals(pcm.length, writer.getLength());
+
+        final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        writer.readPending(100, new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                pending.write(array, offset, count);
+                return 0;
+            }
+        });
+        writer.abort();
+        assertArrayEquals(Arrays.copyOfRange(pcm, FRAME_BYTES + 100, pcm.length), pending.toByteArray());
+    }
+
+    /**
+     * Writes the PCM in blocks of random sizes.
+     */
+    private static LosslessSegmentFile.Index write(File file, byte[] pcm, boolean finish) throws IOException {
+        final LosslessSegmentFile.Writer writer = new LosslessSegmentFile.Writer(file);
+        final Random random = new Random(pcm.length);
+        for (int offset = 0; offset < pcm.length; ) {
+            final int count = Math.min(pcm.length - offset, 1 + random.nextInt(3000));
+            writer.write(pcm, offset, count);
+            offset += count;
+        }
+        if (finish) {
+            return writer.finish();
+        }
+        final LosslessSegmentFile.Index index = writer.getIndex();
+        writer.abort();
+        return index;
+    }
+
+    private static byte[] read(File file, LosslessSegmentFile.Index index, long position) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LosslessSegmentFile.read(file, index, position, new AudioMemory.Consumer() {
+            @Override
+            public int consume(byte[] array, int offset, int count) {
+                out.write(array, offset, count);
+                return 0;
+            }
+        });
+        return out.toByteArray();
+    }
+
+    /**
+     * A mix of a tone, silence and noise, so frames are stored both predicted and verbatim.
+     */
+    private static byte[] audio(int length) {
+        final byte[] pcm = new byte[length];
+        final Random random = new Random(length);
+        for (int i = 0; i + 1 < length; i += 2) {
+            final int sample;
+            switch (i / FRAME_BYTES % 3) {
+                case 0:
+                    sample = (int) (8000 * Math.sin(i * 0.01));
+                    break;
+                case 1:
+                    sample = 0;
+                    break;
+                default:
+                    sample = random.nextInt(65536) - 32768;
+                    break;
+            }
+            pcm[i] = (byte) sample;
+            pcm[i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
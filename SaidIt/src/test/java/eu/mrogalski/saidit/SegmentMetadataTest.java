@@ -0,0 +1,118 @@
+package eu.mrogalski.saidit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentMetadataTest {
+
+    private static final int BLOCK_BYTES = SegmentMetadata.BLOCK_BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void headerAndRecordsAreReadBack() throws IOException {
+        final File file = folder.newFile("segment.meta");
+        final byte[] pcm = pcm(2 * BLOCK_BYTES + 1000);
+        write(file, pcm, true);
+
+        final SegmentMetadata metadata = SegmentMetadata.read(file);
+        assertNotNull(metadata);
+        assertTrue(metadata.matches(48000, 1, 16));
+        assertEquals(123456789L, metadata.startElapsedNanos);
+        assertEquals(987654321L, metadata.startWallMillis);
+        assertEquals(3, metadata.blockCount);
+        assertEquals(BLOCK_BYTES, metadata.blockLengths[0]);
+        assertEquals(1000, metadata.blockLengths[2]);
+    }
+
+    @Test
+    public void corruptHeaderIsRejected() throws IOException {
+        final File file = folder.newFile("corrupt.meta");
+        write(file, pcm(100), true);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            raf.write(0x44); // sample rate
+        }
+        assertNull(SegmentMetadata.read(file));
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws IOException {
+        final File file = folder.newFile("torn.meta");
+        write(file, pcm(3 * BLOCK_BYTES), true);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        assertEquals(2, SegmentMetadata.read(file).blockCount);
+    }
+
+    @Test
+    public void intactSegmentIsValidToTheEnd() throws IOException {
+        final File file = folder.newFile("intact.meta");
+        final byte[] pcm = pcm(2 * BLOCK_BYTES + 1000);
+        write(file, pcm, true);
+        assertEquals(pcm.length, verify(file, pcm, false));
+    }
+
+    @Test
+    public void corruptBlockEndsTheValidData() throws IOException {
+        final File file = folder.newFile("damaged.meta");
+        final byte[] pcm = pcm(4 * BLOCK_BYTES);
+        write(file, pcm, true);
+        pcm[2 * BLOCK_BYTES + 10] ^= 1;
+        assertEquals(2 * BLOCK_BYTES, verify(file, pcm, true));
+    }
+
+    @Test
+    public void unrecordedTailIsCutToWholeFramesOnlyWhenTrusted() throws IOException {
+        final File file = folder.newFile("tail.meta");
+        final byte[] pcm = pcm(BLOCK_BYTES + 501);
+        // The process died before the record of the partial block was written
+        write(file, pcm, false);
+        assertEquals(BLOCK_BYTES + 500, verify(file, pcm, true));
+        assertEquals(BLOCK_BYTES, verify(file, pcm, false));
+    }
+
+    private static void write(File file, byte[] pcm, boolean finish) throws IOException {
+        final SegmentMetadata metadata = new SegmentMetadata(48000, 1, 16, 123456789L, 987654321L);
+        final SegmentMetadata.Writer writer = new SegmentMetadata.Writer(file, metadata);
+        final Random random = new Random(pcm.length);
+        for (int offset = 0; offset < pcm.length; ) {
+            final int count = Math.min(pcm.length - offset, 1 + random.nextInt(20000));
+            writer.update(pcm, offset, count);
+            offset += count;
+        }
+        if (finish) {
+            writer.finish();
+        }
+    }
+
+    /**
+     * Feeds the PCM in odd pieces, as reads from a segment file would.
+     */
+    private static long verify(File file, byte[] pcm, boolean trustTail) throws IOException {
+        final SegmentMetadata.Verifier verifier = new SegmentMetadata.Verifier(SegmentMetadata.read(file), trustTail);
+        for (int offset = 0; offset < pcm.length; offset += 777) {
+            verifier.consume(pcm, offset, Math.min(777, pcm.length - offset));
+        }
+        return verifier.getValidLength();
+    }
+
+    private static byte[] pcm(int length) {
+        final byte[] pcm = new byte[length];
+        new Random(7).nextBytes(pcm);
+        return pcm;
+    }
+}
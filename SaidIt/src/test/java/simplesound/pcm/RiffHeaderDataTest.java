@@ -0,0 +1,113 @@
+package simplesound.pcm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RiffHeaderDataTest {
+
+    private static final WavAudioFormat FORMAT = WavAudioFormat.mono16Bit(48000);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void riffHeaderIsReadBack() throws IOException {
+        final byte[] header = new RiffHeaderData(FORMAT, 96000).asByteArray();
+        assertEquals(RiffHeaderData.HEADER_SIZE, header.length);
+        assertEquals("RIFF", id(header, 0));
+        assertEquals("JUNK", id(header, 12));
+        assertEquals(RiffHeaderData.HEADER_SIZE - 8 + 96000, littleEndian(header).getInt(4));
+
+        final RiffHeaderData read = parse(header);
+        assertEquals(96000, read.getTotalSamplesInByte());
+        assertEquals(RiffHeaderData.HEADER_SIZE, read.getHeaderSize());
+        assertEquals(48000, read.getFormat().getSampleRate());
+        assertEquals(1, read.getFormat().getChannels());
+        assertEquals(16, read.getFormat().getSampleSizeInBits());
+        assertEquals(1.0, read.timeSeconds(), 1e-9);
+    }
+
+    @Test
+    public void largestRiffDataStaysRiff() throws IOException {
+        final RiffHeaderData data = new RiffHeaderData(FORMAT, RiffHeaderData.MAX_RIFF_DATA_SIZE);
+        assertFalse(data.isRf64());
+        final byte[] header = data.asByteArray();
+        assertEquals("RIFF", id(header, 0));
+        assertEquals(0xFFFFFFFFL, littleEndian(header).getInt(4) & 0xFFFFFFFFL);
+        assertEquals(RiffHeaderData.MAX_RIFF_DATA_SIZE, parse(header).getTotalSamplesInByte());
+    }
+
+    @Test
+    public void largerDataIsWrittenAsRf64() throws IOException {
+        final long size = 6L * 1024 * 1024 * 1024;
+        final RiffHeaderData data = new RiffHeaderData(FORMAT, size);
+        assertTrue(data.isRf64());
+        final byte[] header = data.asByteArray();
+        assertEquals(RiffHeaderData.HEADER_SIZE, header.length);
+        assertEquals("RF64", id(header, 0));
+        assertEquals(-1, littleEndian(header).getInt(4));
+        assertEquals("ds64", id(header, 12));
+        assertEquals(RiffHeaderData.HEADER_SIZE - 8 + size, littleEndian(header).getLong(20));
+        assertEquals(size, littleEndian(header).getLong(28));
+        assertEquals(size / 2, littleEndian(header).getLong(36));
+        assertEquals(-1, littleEndian(header).getInt(RiffHeaderData.HEADER_SIZE - 4));
+
+        final RiffHeaderData read = parse(header);
+        assertEquals(size, read.getTotalSamplesInByte());
+        assertEquals(RiffHeaderData.HEADER_SIZE, read.getHeaderSize());
+    }
+
+    @Test
+    public void plainRiffHeaderIsRead() throws IOException {
+        // 44-byte header as written by other tools, without the JUNK chunk
+        final ByteBuffer header = ByteBuffer.allocate(RiffHeaderData.PCM_RIFF_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(36 + 1000).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        header.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(16000).putInt(32000).putShort((short) 2).putShort((short) 16);
+        header.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(1000);
+
+        final RiffHeaderData read = parse(header.array());
+        assertEquals(1000, read.getTotalSamplesInByte());
+        assertEquals(RiffHeaderData.PCM_RIFF_HEADER_SIZE, read.getHeaderSize());
+        assertEquals(16000, read.getFormat().getSampleRate());
+    }
+
+    @Test
+    public void wavFileWriterPatchesTheHeaderOnClose() throws IOException {
+        final File file = folder.newFile("test.wav");
+        final WavFileWriter writer = new WavFileWriter(FORMAT, file);
+        writer.write(new byte[1000]);
+        writer.reserve(24);
+        writer.write(new byte[300]);
+        writer.close();
+
+        final RiffHeaderData read = new RiffHeaderData(file);
+        assertEquals(1324, read.getTotalSamplesInByte());
+        assertEquals(RiffHeaderData.HEADER_SIZE + 1324, file.length());
+    }
+
+    private static RiffHeaderData parse(byte[] header) throws IOException {
+        return new RiffHeaderData(new DataInputStream(new ByteArrayInputStream(header)));
+    }
+
+    private static ByteBuffer littleEndian(byte[] header) {
+        return ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String id(byte[] header, int offset) {
+        return new String(header, offset, 4, StandardCharsets.US_ASCII);
+    }
+}